@@ -1,18 +1,24 @@
 package com.mmp.android.mpmetrics;
 
+import android.bluetooth.BluetoothAdapter;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.MessageQueue;
 import android.os.Process;
 import android.os.SystemClock;
 import android.util.DisplayMetrics;
 
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
-import com.mmp.android.util.Base64Coder;
+import com.mmp.android.util.BatchPayload;
 import com.mmp.android.util.HttpService;
 import com.mmp.android.util.MPLog;
 import com.mmp.android.util.RemoteService;
@@ -24,9 +30,24 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLSocketFactory;
 
@@ -44,6 +65,7 @@ import javax.net.ssl.SSLSocketFactory;
     /* package */ AnalyticsMessages(final Context context) {
         mContext = context;
         mConfig = getConfig(context);
+        mOwnerClient = createOwnerClient(context);
         mWorker = createWorker();
         getPoster().checkIsMmpBlocked();
     }
@@ -52,6 +74,11 @@ import javax.net.ssl.SSLSocketFactory;
         return new Worker();
     }
 
+    // Null when this process owns the queue, see QueueOwnerService
+    protected QueueOwnerClient createOwnerClient(Context context) {
+        return QueueOwnerClient.forCurrentProcess(context);
+    }
+
     /**
      * Use this to get an instance of AnalyticsMessages instead of creating one directly
      * for yourself.
@@ -80,6 +107,15 @@ import javax.net.ssl.SSLSocketFactory;
         mWorker.runMessage(m);
     }
 
+    // Staged like tracked events and written as soon as the worker gets to them, in transactions
+    // of at most IngestionBatchSize records.
+    public void eventsBatchMessage(final List<EventDescription> eventDescriptions) {
+        final Message m = Message.obtain();
+        m.what = ENQUEUE_EVENT_BATCH;
+        m.obj = eventDescriptions;
+        mWorker.runMessage(m);
+    }
+
     // Must be thread safe.
     public void peopleMessage(final PeopleDescription peopleDescription) {
         final Message m = Message.obtain();
@@ -149,6 +185,23 @@ import javax.net.ssl.SSLSocketFactory;
         mWorker.runMessage(m);
     }
 
+    // Must be thread safe.
+    public void cleanupAutomaticEventsMessage(final String token) {
+        final Message m = Message.obtain();
+        m.what = CLEANUP_AUTOMATIC_EVENTS;
+        m.obj = token;
+
+        mWorker.runMessage(m);
+    }
+
+    // Operations other processes spooled for us, see QueueOwnerService
+    public void drainSpooledOperations() {
+        final Message m = Message.obtain();
+        m.what = DRAIN_SPOOL;
+
+        mWorker.runMessage(m);
+    }
+
     public void hardKill() {
         final Message m = Message.obtain();
         m.what = KILL_WORKER;
@@ -172,7 +225,7 @@ import javax.net.ssl.SSLSocketFactory;
     }
 
     protected RemoteService getPoster() {
-        return new HttpService();
+        return new HttpService(mConfig.getGzipBatchUploads());
     }
 
     ////////////////////////////////////////////////////
@@ -189,18 +242,101 @@ import javax.net.ssl.SSLSocketFactory;
                                 String token,
                                 boolean isAutomatic,
                                 JSONObject sessionMetada) {
+            this(eventName, properties, token, isAutomatic, sessionMetada, MPDbAdapter.PRIORITY_NORMAL);
+        }
+
+        public EventDescription(String eventName,
+                                JSONObject properties,
+                                String token,
+                                boolean isAutomatic,
+                                JSONObject sessionMetada,
+                                int priority) {
+            this(eventName, properties, token, isAutomatic, sessionMetada, priority, null, null);
+        }
+
+        public EventDescription(String eventName,
+                                JSONObject properties,
+                                String token,
+                                boolean isAutomatic,
+                                JSONObject sessionMetada,
+                                int priority,
+                                PropertySnapshot referrerProperties,
+                                PropertySnapshot superProperties) {
+            this(eventName, properties, token, isAutomatic, sessionMetada, priority, referrerProperties, superProperties, null);
+        }
+
+        // The referrer and super properties snapshots are merged under the event's own properties,
+        // and the encoded properties, if any, over them
+        public EventDescription(String eventName,
+                                JSONObject properties,
+                                String token,
+                                boolean isAutomatic,
+                                JSONObject sessionMetada,
+                                int priority,
+                                PropertySnapshot referrerProperties,
+                                PropertySnapshot superProperties,
+                                EventProperties.Encoded encodedProperties) {
             super(token, properties);
             mEventName = eventName;
             mIsAutomatic = isAutomatic;
             mSessionMetadata = sessionMetada;
+            mPriority = priority;
+            mReferrerProperties = referrerProperties;
+            mSuperProperties = superProperties;
+            mEncodedProperties = encodedProperties;
         }
 
         public String getEventName() {
             return mEventName;
         }
 
+        // All of the event's properties, including its referrer and super properties
         public JSONObject getProperties() {
-            return getMessage();
+            if (null == mReferrerProperties && null == mSuperProperties && null == mEncodedProperties) {
+                return getMessage();
+            }
+            final JSONObject ret = new JSONObject();
+            try {
+                addPropertiesTo(ret);
+            } catch (final JSONException e) {
+                MPLog.e(LOGTAG, "Cannot merge the properties of event " + mEventName, e);
+            }
+            return ret;
+        }
+
+        public void addPropertiesTo(JSONObject ob) throws JSONException {
+            addJSONPropertiesTo(ob);
+            if (null != mEncodedProperties) {
+                mEncodedProperties.addTo(ob);
+            }
+        }
+
+        // Everything but the encoded properties, which are left as text
+        public void addJSONPropertiesTo(JSONObject ob) throws JSONException {
+            if (null != mReferrerProperties) {
+                mReferrerProperties.addTo(ob);
+            }
+            if (null != mSuperProperties) {
+                mSuperProperties.addTo(ob);
+            }
+            final JSONObject properties = getMessage();
+            if (null != properties) {
+                for (final Iterator<String> keys = properties.keys(); keys.hasNext();) {
+                    final String key = keys.next();
+                    ob.put(key, properties.get(key));
+                }
+            }
+        }
+
+        // Properties given as an EventProperties, or null
+        public EventProperties.Encoded getEncodedProperties() {
+            return mEncodedProperties;
+        }
+
+        // Identifies the referrer and super properties the event was tracked with
+        public String getPropertySnapshotVersions() {
+            return (null == mReferrerProperties ? "-" : Long.toString(mReferrerProperties.getVersion())) + "/" +
+                    (null == mSuperProperties ? "-" : Long.toString(mSuperProperties.getVersion()));
         }
 
         public JSONObject getSessionMetadata() {
@@ -211,14 +347,28 @@ import javax.net.ssl.SSLSocketFactory;
             return mIsAutomatic;
         }
 
+        // One of the MPDbAdapter.PRIORITY_ values
+        public int getPriority() {
+            return mPriority;
+        }
+
         private final String mEventName;
         private final JSONObject mSessionMetadata;
         private final boolean mIsAutomatic;
+        private final int mPriority;
+        private final PropertySnapshot mReferrerProperties;
+        private final PropertySnapshot mSuperProperties;
+        private final EventProperties.Encoded mEncodedProperties;
     }
 
     static class PeopleDescription extends MmpMessageDescription {
         public PeopleDescription(JSONObject message, String token) {
+            this(message, token, false);
+        }
+
+        public PeopleDescription(JSONObject message, String token, boolean isCritical) {
             super(token, message);
+            mIsCritical = isCritical;
         }
 
         @Override
@@ -229,6 +379,13 @@ import javax.net.ssl.SSLSocketFactory;
         public boolean isAnonymous() {
             return !getMessage().has("$distinct_id");
         }
+
+        // Critical updates are sent right away instead of waiting for the next flush
+        public boolean isCritical() {
+            return mIsCritical;
+        }
+
+        private final boolean mIsCritical;
     }
 
     static class GroupDescription extends MmpMessageDescription {
@@ -344,6 +501,22 @@ import javax.net.ssl.SSLSocketFactory;
     // XXX: Worker class is unnecessary, should be just a subclass of HandlerThread
     class Worker {
         public Worker() {
+            mIngestionQueue = new IngestionQueue(mConfig.getIngestionQueueCapacity(), IngestionQueue.Policy.fromName(mConfig.getIngestionQueuePolicy()),
+                    mConfig.getIngestionQueueBlockTimeout(), new IngestionQueue.EvictionListener() {
+                @Override
+                public void onEvicted(Object item) {
+                    final Handler handler;
+                    synchronized (mHandlerLock) {
+                        handler = mHandler;
+                    }
+                    // Otherwise the worker has already taken it, and will skip it
+                    if (handler != null && handler.hasMessages(ENQUEUE_EVENTS, item)) {
+                        handler.removeMessages(ENQUEUE_EVENTS, item);
+                        mIngestionQueue.forget(item);
+                    }
+                }
+            });
+            mIngestionSpill = new QueueSpool(mContext, INGESTION_SPILL_DIRECTORY);
             mHandler = restartWorkerThread();
         }
 
@@ -354,16 +527,84 @@ import javax.net.ssl.SSLSocketFactory;
         }
 
         public void runMessage(Message msg) {
+            if (!admit(msg)) {
+                return;
+            }
             synchronized(mHandlerLock) {
                 if (mHandler == null) {
                     // We died under suspicious circumstances. Don't try to send any more events.
                     logAboutMessageToMmp("Dead mmp worker dropping a message: " + msg.what);
+                    mIngestionQueue.release(msg.obj, countIngestedRecords(msg));
                 } else {
                     mHandler.sendMessage(msg);
                 }
             }
         }
 
+        // Applies the ingestion queue policy to events, people and group updates.
+        // Returns false if the message was dropped or spilled, instead of being let through.
+        private boolean admit(Message msg) {
+            final int records = countIngestedRecords(msg);
+            if (records == 0) {
+                return true;
+            }
+
+            final Handler handler;
+            synchronized(mHandlerLock) {
+                handler = mHandler;
+            }
+            // Neither the worker, which would wait for itself, nor the main thread, which would
+            // stall the UI, waits for room.
+            final Looper looper = Looper.myLooper();
+            final boolean mayBlock = looper != Looper.getMainLooper() && (handler == null || handler.getLooper() != looper);
+            final boolean isAutomatic = msg.what == ENQUEUE_EVENTS && ((EventDescription) msg.obj).isAutomatic();
+            final boolean isUpdate = msg.what == ENQUEUE_PEOPLE || msg.what == ENQUEUE_GROUP;
+            final IngestionQueue.Admission admission = mIngestionQueue.admit(msg.obj, records, isAutomatic, isUpdate, mayBlock);
+            if (admission == IngestionQueue.Admission.ADMITTED) {
+                return true;
+            }
+
+            if (admission == IngestionQueue.Admission.SPILL && spill(msg)) {
+                logAboutMessageToMmp("Ingestion queue is full, spilled " + records + " records to disk");
+            } else {
+                if (admission == IngestionQueue.Admission.SPILL) {
+                    mIngestionQueue.spillFailed(records);
+                }
+                logAboutMessageToMmp("Ingestion queue is full, dropping " + records + " records");
+            }
+            return false;
+        }
+
+        // Writes the records to the spill file in the same form other processes hand them over in,
+        // see replayOperations(). This is file I/O on the tracking thread, which may be the main
+        // thread: it's only done while the queue is full, and is the price of not losing records.
+        private boolean spill(Message msg) {
+            final List<String> operations = new ArrayList<>();
+            try {
+                if (msg.what == ENQUEUE_EVENTS) {
+                    operations.add(newEventOperation((EventDescription) msg.obj).toString());
+                } else if (msg.what == ENQUEUE_EVENT_BATCH) {
+                    @SuppressWarnings("unchecked")
+                    final List<EventDescription> eventDescriptions = (List<EventDescription>) msg.obj;
+                    for (final EventDescription eventDescription : eventDescriptions) {
+                        operations.add(newEventOperation(eventDescription).toString());
+                    }
+                } else if (msg.what == ENQUEUE_PEOPLE) {
+                    final PeopleDescription message = (PeopleDescription) msg.obj;
+                    final MPDbAdapter.Table peopleTable = message.isAnonymous() ? MPDbAdapter.Table.ANONYMOUS_PEOPLE : MPDbAdapter.Table.PEOPLE;
+                    final int priority = message.isCritical() ? MPDbAdapter.PRIORITY_CRITICAL : MPDbAdapter.PRIORITY_NORMAL;
+                    operations.add(newRecordOperation(message.getToken(), peopleTable, false, priority, message.getMessage()).toString());
+                } else if (msg.what == ENQUEUE_GROUP) {
+                    final GroupDescription message = (GroupDescription) msg.obj;
+                    operations.add(newRecordOperation(message.getToken(), MPDbAdapter.Table.GROUPS, false, MPDbAdapter.PRIORITY_NORMAL, message.getMessage()).toString());
+                }
+            } catch (final JSONException e) {
+                MPLog.e(LOGTAG, "Could not spill message " + msg.what + " to disk", e);
+                return false;
+            }
+            return mIngestionSpill.append(INGESTION_SPILL_FILE, operations);
+        }
+
         // NOTE that the returned worker will run FOREVER, unless you send a hard kill
         // (which you really shouldn't)
         protected Handler restartWorkerThread() {
@@ -380,56 +621,147 @@ import javax.net.ssl.SSLSocketFactory;
                 mSystemInformation = SystemInformation.getInstance(mContext);
                 mDecideChecker = createDecideChecker();
                 mFlushInterval = mConfig.getFlushInterval();
+                mUploadExecutor = createUploadExecutor();
+                final Map<MPDbAdapter.Table, UploadBatchSizer> batchSizers = new EnumMap<>(MPDbAdapter.Table.class);
+                for (final MPDbAdapter.Table table : new MPDbAdapter.Table[] { MPDbAdapter.Table.EVENTS, MPDbAdapter.Table.PEOPLE, MPDbAdapter.Table.GROUPS }) {
+                    batchSizers.put(table, new UploadBatchSizer(mConfig.getBulkUploadLimit(), mConfig.getUploadBatchByteLimit()));
+                }
+                mBatchSizers = Collections.unmodifiableMap(batchSizers);
+                mDuplicateEventFilter = new DuplicateEventFilter(mConfig.getDuplicateEventWindow());
+                registerDevicePropertiesReceiver();
+                if (mIngestionQueue.getPolicy() == IngestionQueue.Policy.SPILL_TO_DISK) {
+                    // Records spilled before the app was last stopped
+                    sendEmptyMessage(DRAIN_INGESTION_SPILL);
+                }
+            }
+
+            // One thread per uploaded table, so a slow events upload doesn't hold back people or groups.
+            protected ExecutorService createUploadExecutor() {
+                final ThreadPoolExecutor executor = new ThreadPoolExecutor(UPLOAD_THREADS, UPLOAD_THREADS, 30, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, "com.mmp.android.AnalyticsUploader");
+                    }
+                });
+                executor.allowCoreThreadTimeOut(true);
+                return executor;
             }
 
             protected DecideChecker createDecideChecker() {
                 return new DecideChecker(mContext, mConfig);
             }
 
+            // Only sees messages taken off the queue. Operations replayed in place go straight to handleMessage.
+            @Override
+            public void dispatchMessage(Message msg) {
+                final int records = countIngestedRecords(msg);
+                if (records > 0) {
+                    final boolean evicted = !mIngestionQueue.release(msg.obj, records);
+                    if (mIngestionQueue.takeSpillDrain()) {
+                        sendEmptyMessage(DRAIN_INGESTION_SPILL);
+                    }
+                    if (evicted) {
+                        logAboutMessageToMmp("Skipping an automatic event dropped to make room in the ingestion queue");
+                        return;
+                    }
+                }
+                super.dispatchMessage(msg);
+            }
+
             @Override
             public void handleMessage(Message msg) {
-                if (mDbAdapter == null) {
+                if (mDbAdapter == null && mOwnerClient == null) {
                     mDbAdapter = makeDbAdapter(mContext);
-                    mDbAdapter.cleanupEvents(System.currentTimeMillis() - mConfig.getDataExpiration(), MPDbAdapter.Table.EVENTS);
-                    mDbAdapter.cleanupEvents(System.currentTimeMillis() - mConfig.getDataExpiration(), MPDbAdapter.Table.PEOPLE);
+                    scheduleExpiry();
                 }
 
                 try {
                     int returnCode = MPDbAdapter.DB_UNDEFINED_CODE;
                     String token = null;
 
+                    if (msg.what == KILL_WORKER) {
+                        mStagedRecords.clear();
+                    } else if (msg.what != ENQUEUE_PEOPLE && msg.what != ENQUEUE_GROUP && msg.what != ENQUEUE_EVENTS && msg.what != ENQUEUE_EVENT_BATCH && msg.what != EXPIRE_RECORDS) {
+                        // Everything else works on the DB, so it must see the records staged before it.
+                        commitStagedRecords();
+                    }
+
+                    if (mOwnerClient != null && forwardToOwner(msg)) {
+                        return;
+                    }
+
                     if (msg.what == ENQUEUE_PEOPLE) {
                         final PeopleDescription message = (PeopleDescription) msg.obj;
                         final MPDbAdapter.Table peopleTable = message.isAnonymous() ? MPDbAdapter.Table.ANONYMOUS_PEOPLE : MPDbAdapter.Table.PEOPLE;
 
                         logAboutMessageToMmp("Queuing people record for sending later");
                         logAboutMessageToMmp("    " + message.toString());
-                        token = message.getToken();
-                        int numRowsTable = mDbAdapter.addJSON(message.getMessage(), token, peopleTable, false);
-                        returnCode = message.isAnonymous() ? 0 : numRowsTable;
+                        final int priority = message.isCritical() ? MPDbAdapter.PRIORITY_CRITICAL : MPDbAdapter.PRIORITY_NORMAL;
+                        stageRecord(new MPDbAdapter.PendingRecord(message.getMessage(), message.getToken(), peopleTable, false, priority));
+                        if (message.isCritical() && peopleTable == MPDbAdapter.Table.PEOPLE) {
+                            requestCriticalFlush(message.getToken(), peopleTable);
+                        }
                     } else if (msg.what == ENQUEUE_GROUP) {
                         final GroupDescription message = (GroupDescription) msg.obj;
 
                         logAboutMessageToMmp("Queuing group record for sending later");
                         logAboutMessageToMmp("    " + message.toString());
-                        token = message.getToken();
-                        returnCode = mDbAdapter.addJSON(message.getMessage(), token, MPDbAdapter.Table.GROUPS, false);
+                        stageRecord(new MPDbAdapter.PendingRecord(message.getMessage(), message.getToken(), MPDbAdapter.Table.GROUPS, false));
                     } else if (msg.what == ENQUEUE_EVENTS) {
                         final EventDescription eventDescription = (EventDescription) msg.obj;
+                        if (isDuplicate(eventDescription)) {
+                            logAboutMessageToMmp("Dropping " + eventDescription.getEventName() + ", identical to an event tracked moments ago");
+                            return;
+                        }
                         try {
-                            final JSONObject message = prepareEventObject(eventDescription);
+                            final MPDbAdapter.PendingRecord record = prepareEventRecord(eventDescription);
                             logAboutMessageToMmp("Queuing event for sending later");
-                            logAboutMessageToMmp("    " + message.toString());
-                            token = eventDescription.getToken();
+                            logAboutMessageToMmp("    " + record.getJSONText());
 
-                            DecideMessages decide = mDecideChecker.getDecideMessages(token);
+                            DecideMessages decide = mDecideChecker.getDecideMessages(eventDescription.getToken());
                             if (decide != null && eventDescription.isAutomatic() && !decide.shouldTrackAutomaticEvent()) {
                                 return;
                             }
-                            returnCode = mDbAdapter.addJSON(message, token, MPDbAdapter.Table.EVENTS, eventDescription.isAutomatic());
+                            stageRecord(record);
+                            if (eventDescription.getPriority() >= MPDbAdapter.PRIORITY_CRITICAL) {
+                                requestCriticalFlush(eventDescription.getToken(), MPDbAdapter.Table.EVENTS);
+                            }
                         } catch (final JSONException e) {
                             MPLog.e(LOGTAG, "Exception tracking event " + eventDescription.getEventName(), e);
                         }
+                    } else if (msg.what == ENQUEUE_EVENT_BATCH) {
+                        @SuppressWarnings("unchecked")
+                        final List<EventDescription> eventDescriptions = (List<EventDescription>) msg.obj;
+                        for (final EventDescription eventDescription : eventDescriptions) {
+                            if (isDuplicate(eventDescription)) {
+                                continue;
+                            }
+                            try {
+                                final MPDbAdapter.PendingRecord record = prepareEventRecord(eventDescription);
+                                final DecideMessages decide = mDecideChecker.getDecideMessages(eventDescription.getToken());
+                                if (decide != null && eventDescription.isAutomatic() && !decide.shouldTrackAutomaticEvent()) {
+                                    continue;
+                                }
+                                stageRecord(record);
+                                if (eventDescription.getPriority() >= MPDbAdapter.PRIORITY_CRITICAL) {
+                                    requestCriticalFlush(eventDescription.getToken(), MPDbAdapter.Table.EVENTS);
+                                }
+                            } catch (final JSONException e) {
+                                MPLog.e(LOGTAG, "Exception tracking event " + eventDescription.getEventName(), e);
+                            }
+                        }
+                        logAboutMessageToMmp("Queuing a batch of " + eventDescriptions.size() + " events for sending later");
+                        // The batch is already here, so there's nothing to linger for
+                        commitStagedRecords();
+                    } else if (msg.what == COMMIT_STAGED_RECORDS) {
+                        // Staged records were already written above.
                     } else if (msg.what == PUSH_ANONYMOUS_PEOPLE_RECORDS) {
                         final PushAnonymousPeopleDescription pushAnonymousPeopleDescription = (PushAnonymousPeopleDescription) msg.obj;
                         final String distinctId = pushAnonymousPeopleDescription.getDistinctId();
@@ -441,6 +773,7 @@ import javax.net.ssl.SSLSocketFactory;
                         mDbAdapter.cleanupAllEvents(MPDbAdapter.Table.ANONYMOUS_PEOPLE, token);
                     } else if (msg.what == REWRITE_EVENT_PROPERTIES) {
                         final UpdateEventsPropertiesDescription description = (UpdateEventsPropertiesDescription) msg.obj;
+                        discardPrefetchedBatches(description.getToken());
                         int updatedEvents = mDbAdapter.rewriteEventDataWithProperties(description.getProperties(), description.getToken());
                         MPLog.d(LOGTAG, updatedEvents + " stored events were updated with new properties.");
                     } else if (msg.what == FLUSH_QUEUE) {
@@ -448,7 +781,7 @@ import javax.net.ssl.SSLSocketFactory;
                         updateFlushFrequency();
                         token = (String) msg.obj;
                         boolean shouldCheckDecide = msg.arg1 == 1 ? true : false;
-                        sendAllData(mDbAdapter, token);
+                        sendAllData(mDbAdapter, token, true);
                         if (shouldCheckDecide && SystemClock.elapsedRealtime() >= mDecideRetryAfter) {
                             try {
                                 mDecideChecker.runDecideCheck(token, getPoster());
@@ -456,6 +789,16 @@ import javax.net.ssl.SSLSocketFactory;
                                 mDecideRetryAfter = SystemClock.elapsedRealtime() + e.getRetryAfter() * 1000;
                             }
                         }
+                    } else if (msg.what == FLUSH_CRITICAL) {
+                        // The critical records were committed with the rest of the staged records above
+                        token = (String) msg.obj;
+                        final Set<MPDbAdapter.Table> tables = mCriticalFlushes.remove(token);
+                        if (null != tables && getPoster().isOnline(mContext, mConfig.getOfflineMode())) {
+                            logAboutMessageToMmp("Flushing critical records for project " + token);
+                            for (final MPDbAdapter.Table table : tables) {
+                                sendData(mDbAdapter, token, table, getEndpoint(table), MPDbAdapter.PRIORITY_CRITICAL, false);
+                            }
+                        }
                     } else if (msg.what == INSTALL_DECIDE_CHECK) {
                         logAboutMessageToMmp("Installing a check for in-app notifications");
                         final DecideMessages check = (DecideMessages) msg.obj;
@@ -474,10 +817,47 @@ import javax.net.ssl.SSLSocketFactory;
                         mDbAdapter.cleanupAllEvents(MPDbAdapter.Table.PEOPLE, token);
                         mDbAdapter.cleanupAllEvents(MPDbAdapter.Table.GROUPS, token);
                         mDbAdapter.cleanupAllEvents(MPDbAdapter.Table.ANONYMOUS_PEOPLE, token);
+                        discardPrefetchedBatches(token);
+                    } else if (msg.what == CLEANUP_AUTOMATIC_EVENTS) {
+                        token = (String) msg.obj;
+                        mDbAdapter.cleanupAutomaticEvents(token);
+                        discardPrefetchedBatches(token);
+                    } else if (msg.what == DRAIN_SPOOL) {
+                        // One drain reads everything spooled so far, whoever asked for it
+                        removeMessages(DRAIN_SPOOL);
+                        if (mSpool == null) {
+                            mSpool = new QueueSpool(mContext);
+                        }
+                        final int drained = mSpool.drain(new QueueSpool.OperationsReader() {
+                            @Override
+                            public void onOperations(List<String> operations) {
+                                replayOperations(operations);
+                                // Stored before the spool file is emptied
+                                commitStagedRecords();
+                            }
+                        });
+                        logAboutMessageToMmp("Replayed " + drained + " spooled operations from other processes");
+                    } else if (msg.what == DRAIN_INGESTION_SPILL) {
+                        final int drained = mIngestionSpill.drain(new QueueSpool.OperationsReader() {
+                            @Override
+                            public void onOperations(List<String> operations) {
+                                replayOperations(operations);
+                                // Stored before the spill file is emptied
+                                commitStagedRecords();
+                            }
+                        });
+                        logAboutMessageToMmp("Read back " + drained + " records spilled while the ingestion queue was full");
+                    } else if (msg.what == UPLOAD_COMPLETE) {
+                        onUploadComplete((UploadResult) msg.obj);
+                    } else if (msg.what == EXPIRE_RECORDS) {
+                        expireRecords();
                     } else if (msg.what == KILL_WORKER) {
                         MPLog.w(LOGTAG, "Worker received a hard kill. Dumping all events and force-killing. Thread id " + Thread.currentThread().getId());
                         synchronized(mHandlerLock) {
+                            // Deleting the DB also closes the worker's connection and cached statements
                             mDbAdapter.deleteDB();
+                            mUploadExecutor.shutdown();
+                            unregisterDevicePropertiesReceiver();
                             mHandler = null;
                             Looper.myLooper().quit();
                         }
@@ -486,37 +866,16 @@ import javax.net.ssl.SSLSocketFactory;
                     }
 
                     ///////////////////////////
-                    if ((returnCode >= mConfig.getBulkUploadLimit() || returnCode == MPDbAdapter.DB_OUT_OF_MEMORY_ERROR) && mFailedRetries <= 0 && token != null) {
-                        logAboutMessageToMmp("Flushing queue due to bulk upload limit (" + returnCode + ") for project " + token);
-                        updateFlushFrequency();
-                        sendAllData(mDbAdapter, token);
-                        if (SystemClock.elapsedRealtime() >= mDecideRetryAfter) {
-                            try {
-                                mDecideChecker.runDecideCheck(token, getPoster());
-                            } catch (RemoteService.ServiceUnavailableException e) {
-                                mDecideRetryAfter = SystemClock.elapsedRealtime() + e.getRetryAfter() * 1000;
-                            }
-                        }
-                    } else if (returnCode > 0 && !hasMessages(FLUSH_QUEUE, token)) {
-                        // The !hasMessages(FLUSH_QUEUE, token) check is a courtesy for the common case
-                        // of delayed flushes already enqueued from inside of this thread.
-                        // Callers outside of this thread can still send
-                        // a flush right here, so we may end up with two flushes
-                        // in our queue, but we're OK with that.
-
-                        logAboutMessageToMmp("Queue depth " + returnCode + " - Adding flush in " + mFlushInterval);
-                        if (mFlushInterval >= 0) {
-                            final Message flushMessage = Message.obtain();
-                            flushMessage.what = FLUSH_QUEUE;
-                            flushMessage.obj = token;
-                            flushMessage.arg1 = 1;
-                            sendMessageDelayed(flushMessage, mFlushInterval);
-                        }
-                    }
+                    checkQueueDepth(returnCode, token, MPDbAdapter.Table.PEOPLE);
                 } catch (final RuntimeException e) {
                     MPLog.e(LOGTAG, "Worker threw an unhandled exception", e);
                     synchronized (mHandlerLock) {
                         mHandler = null;
+                        mUploadExecutor.shutdown();
+                        unregisterDevicePropertiesReceiver();
+                        if (mDbAdapter != null) {
+                            mDbAdapter.close();
+                        }
                         try {
                             Looper.myLooper().quit();
                             MPLog.e(LOGTAG, "Mmp will not process any more analytics messages", e);
@@ -531,108 +890,568 @@ import javax.net.ssl.SSLSocketFactory;
                 return mTrackEngageRetryAfter;
             }
 
-            private void sendAllData(MPDbAdapter dbAdapter, String token) {
+            protected int getUploadBatchSize(MPDbAdapter.Table table) {
+                return mBatchSizers.get(table).getBatchSize();
+            }
+
+            protected DuplicateEventFilter getDuplicateEventFilter() {
+                return mDuplicateEventFilter;
+            }
+
+            private void stageRecord(MPDbAdapter.PendingRecord record) {
+                mStagedRecords.add(record);
+                if (mStagedRecords.size() >= mConfig.getIngestionBatchSize()) {
+                    commitStagedRecords();
+                } else if (!hasMessages(COMMIT_STAGED_RECORDS)) {
+                    // With no linger time this lands behind the messages already queued,
+                    // so a burst of tracking calls is written as a single transaction.
+                    sendEmptyMessageDelayed(COMMIT_STAGED_RECORDS, mConfig.getIngestionLingerTime());
+                }
+            }
+
+            private void commitStagedRecords() {
+                removeMessages(COMMIT_STAGED_RECORDS);
+                if (mStagedRecords.isEmpty()) {
+                    return;
+                }
+
+                final List<MPDbAdapter.PendingRecord> records = new ArrayList<>(mStagedRecords);
+                mStagedRecords.clear();
+                if (mOwnerClient != null) {
+                    final List<String> operations = new ArrayList<>(records.size());
+                    for (final MPDbAdapter.PendingRecord record : records) {
+                        try {
+                            operations.add(newRecordOperation(record.getToken(), record.getTable(), record.isAutomaticRecord(), record.getPriority(), record.getJSON()).toString());
+                        } catch (final JSONException e) {
+                            MPLog.e(LOGTAG, "Could not hand a record over to the queue owner", e);
+                        }
+                    }
+                    mOwnerClient.send(operations);
+                    logAboutMessageToMmp("Handed " + operations.size() + " staged records to the queue owner process");
+                    return;
+                }
+
+                final int[] counts = mDbAdapter.addJSON(records);
+                logAboutMessageToMmp("Wrote " + records.size() + " staged records to the database");
+
+                // Anonymous people updates don't count towards the upload limit until they're identified.
+                final Map<String, Integer> queueDepths = new LinkedHashMap<>();
+                final Map<String, MPDbAdapter.PendingRecord> queues = new HashMap<>();
+                for (int i = 0; i < records.size(); i++) {
+                    final MPDbAdapter.PendingRecord record = records.get(i);
+                    final int count = record.getTable() == MPDbAdapter.Table.ANONYMOUS_PEOPLE && counts[i] >= 0 ? 0 : counts[i];
+                    final String queueKey = getUploadKey(record.getTable(), record.getToken());
+                    final Integer previous = queueDepths.get(queueKey);
+                    if (previous == null || (previous != MPDbAdapter.DB_OUT_OF_MEMORY_ERROR && (count == MPDbAdapter.DB_OUT_OF_MEMORY_ERROR || count > previous))) {
+                        queueDepths.put(queueKey, count);
+                        queues.put(queueKey, record);
+                    }
+                }
+
+                for (final Map.Entry<String, Integer> entry : queueDepths.entrySet()) {
+                    final MPDbAdapter.PendingRecord queue = queues.get(entry.getKey());
+                    checkQueueDepth(entry.getValue(), queue.getToken(), queue.getTable());
+                }
+            }
+
+            // Flushes a table that went over the bulk upload limit right away, or schedules the
+            // usual flush for it.
+            private void checkQueueDepth(int returnCode, String token, MPDbAdapter.Table table) {
+                final boolean overLimit = (returnCode >= mConfig.getBulkUploadLimit() || returnCode == MPDbAdapter.DB_OUT_OF_MEMORY_ERROR) && token != null;
+                // Ahead of the usual cadence, so low priority and automatic records wait unless the data is free
+                final boolean fullFlush = overLimit && mSystemInformation.isUnmeteredNetwork();
+                if (overLimit && canFlushAhead(token, table, returnCode, fullFlush)) {
+                    logAboutMessageToMmp("Flushing queue due to bulk upload limit (" + returnCode + ") for project " + token);
+                    updateFlushFrequency();
+                    sendAllData(mDbAdapter, token, fullFlush);
+                    // At most once per flush interval, the decide request blocks this thread
+                    final long now = SystemClock.elapsedRealtime();
+                    final Long nextDecideCheck = mNextBulkDecideChecks.get(token);
+                    if (now >= mDecideRetryAfter && (nextDecideCheck == null || now >= nextDecideCheck)) {
+                        mNextBulkDecideChecks.put(token, now + Math.max(0, mFlushInterval));
+                        try {
+                            mDecideChecker.runDecideCheck(token, getPoster());
+                        } catch (RemoteService.ServiceUnavailableException e) {
+                            mDecideRetryAfter = SystemClock.elapsedRealtime() + e.getRetryAfter() * 1000;
+                        }
+                    }
+                } else if (returnCode > 0 && !hasMessages(FLUSH_QUEUE, token)) {
+                    // The !hasMessages(FLUSH_QUEUE, token) check is a courtesy for the common case
+                    // of delayed flushes already enqueued from inside of this thread.
+                    // Callers outside of this thread can still send
+                    // a flush right here, so we may end up with two flushes
+                    // in our queue, but we're OK with that.
+
+                    logAboutMessageToMmp("Queue depth " + returnCode + " - Adding flush in " + mFlushInterval);
+                    if (mFlushInterval >= 0) {
+                        final Message flushMessage = Message.obtain();
+                        flushMessage.what = FLUSH_QUEUE;
+                        flushMessage.obj = token;
+                        flushMessage.arg1 = 1;
+                        sendMessageDelayed(flushMessage, mFlushInterval);
+                    }
+                }
+            }
+
+            // A flush ahead of schedule, and the decide check that comes with it, only helps when it
+            // can start an upload. An upload in flight already keeps going until the table is empty,
+            // and its rows stay in the table until each batch completes. A table backing off after a
+            // failed upload has its retry flush scheduled already. The queue depth counts low
+            // priority and automatic records too, which a flush on a metered network leaves behind.
+            private boolean canFlushAhead(String token, MPDbAdapter.Table table, int returnCode, boolean fullFlush) {
+                final String uploadKey = getUploadKey(table, token);
+                if (mUploads.containsKey(uploadKey)) {
+                    return false;
+                }
+                final UploadCircuitBreaker breaker = mCircuitBreakers.get(uploadKey);
+                if (breaker != null && breaker.isOpen(SystemClock.elapsedRealtime())) {
+                    return false;
+                }
+                if (!fullFlush) {
+                    final int limit = returnCode == MPDbAdapter.DB_OUT_OF_MEMORY_ERROR ? 1 : mConfig.getBulkUploadLimit();
+                    return mDbAdapter.getQueueDepth(table, token, false, MPDbAdapter.PRIORITY_NORMAL, limit) >= limit;
+                }
+                return true;
+            }
+
+            // A full flush sends every lane. Otherwise low priority events and automatic records are
+            // left for the next full flush.
+            private void sendAllData(MPDbAdapter dbAdapter, String token, boolean fullFlush) {
                 final RemoteService poster = getPoster();
                 if (!poster.isOnline(mContext, mConfig.getOfflineMode())) {
                     logAboutMessageToMmp("Not flushing data to Mmp because the device is not connected to the internet.");
                     return;
                 }
 
-                sendData(dbAdapter, token, MPDbAdapter.Table.EVENTS, mConfig.getEventsEndpoint());
-                sendData(dbAdapter, token, MPDbAdapter.Table.PEOPLE, mConfig.getPeopleEndpoint());
-                sendData(dbAdapter, token, MPDbAdapter.Table.GROUPS, mConfig.getGroupsEndpoint());
+                final int minPriority = fullFlush ? MPDbAdapter.PRIORITY_LOW : MPDbAdapter.PRIORITY_NORMAL;
+                sendData(dbAdapter, token, MPDbAdapter.Table.EVENTS, mConfig.getEventsEndpoint(), minPriority, fullFlush);
+                sendData(dbAdapter, token, MPDbAdapter.Table.PEOPLE, mConfig.getPeopleEndpoint(), minPriority, fullFlush);
+                sendData(dbAdapter, token, MPDbAdapter.Table.GROUPS, mConfig.getGroupsEndpoint(), minPriority, fullFlush);
             }
 
-            private void sendData(MPDbAdapter dbAdapter, String token, MPDbAdapter.Table table, String url) {
-                final RemoteService poster = getPoster();
+            private String getEndpoint(MPDbAdapter.Table table) {
+                if (table == MPDbAdapter.Table.PEOPLE) {
+                    return mConfig.getPeopleEndpoint();
+                } else if (table == MPDbAdapter.Table.GROUPS) {
+                    return mConfig.getGroupsEndpoint();
+                }
+                return mConfig.getEventsEndpoint();
+            }
+
+            // Critical records are committed and sent as soon as the messages queued ahead of them
+            // are handled. Every critical record staged until then goes out with the same flush.
+            private void requestCriticalFlush(String token, MPDbAdapter.Table table) {
+                if (mOwnerClient != null) {
+                    // The owner flushes them when it sees their priority
+                    commitStagedRecords();
+                    return;
+                }
+                Set<MPDbAdapter.Table> tables = mCriticalFlushes.get(token);
+                if (null == tables) {
+                    tables = EnumSet.noneOf(MPDbAdapter.Table.class);
+                    mCriticalFlushes.put(token, tables);
+                }
+                tables.add(table);
+                if (!hasMessages(FLUSH_CRITICAL, token)) {
+                    sendMessage(obtainMessage(FLUSH_CRITICAL, token));
+                }
+            }
+
+            // Starts draining the table on the upload executor, unless it's already being drained.
+            // Reading, deleting and scheduling retries all stay on this thread; only the network
+            // requests run elsewhere, so queuing new records never waits on a slow upload.
+            private void sendData(MPDbAdapter dbAdapter, String token, MPDbAdapter.Table table, String url, int minPriority, boolean allowAutomaticEvents) {
+                // Another process may be the one running decide checks for this token
                 DecideMessages decideMessages = mDecideChecker.getDecideMessages(token);
-                boolean includeAutomaticEvents = true;
-                if (decideMessages == null || decideMessages.isAutomaticEventsEnabled() == null) {
+                final Boolean automaticEventsEnabled = decideMessages != null ? decideMessages.isAutomaticEventsEnabled() : mRemoteAutomaticEvents.get(token);
+                boolean includeAutomaticEvents = allowAutomaticEvents;
+                if (automaticEventsEnabled == null) {
                     includeAutomaticEvents = false;
                 }
-                String[] eventsData = dbAdapter.generateDataString(table, token, includeAutomaticEvents);
-                Integer queueCount = 0;
-                if (eventsData != null) {
-                    queueCount = Integer.valueOf(eventsData[2]);
+
+                final String uploadKey = getUploadKey(table, token);
+                final TableUpload inFlight = mUploads.get(uploadKey);
+                if (inFlight != null) {
+                    // The upload in flight keeps going until the table is empty, and then
+                    // carries on with any lanes it wasn't reading
+                    inFlight.widen(minPriority, includeAutomaticEvents);
+                    return;
+                }
+                if (!getCircuitBreaker(uploadKey).allowRequest(SystemClock.elapsedRealtime())) {
+                    logAboutMessageToMmp("Not flushing " + table.getName() + " for project " + token + ", backing off after a failed upload.");
+                    return;
                 }
 
-                while (eventsData != null && queueCount > 0) {
-                    final String lastId = eventsData[0];
-                    final String rawMessage = eventsData[1];
+                // A batch sent before without a response goes first, with the lanes it was read from
+                final MPDbAdapter.UploadAttempt pending = dbAdapter.getUploadAttempt(table, token);
+                final TableUpload upload;
+                if (pending != null) {
+                    upload = new TableUpload(uploadKey, token, table, url, pending.getIncludeAutomaticEvents(), pending.getMinPriority());
+                    upload.widen(minPriority, includeAutomaticEvents);
+                    upload.mNextBatch = readAttempt(dbAdapter, upload, pending);
+                } else {
+                    upload = new TableUpload(uploadKey, token, table, url, includeAutomaticEvents, minPriority);
+                    upload.mNextBatch = readBatch(dbAdapter, upload, null);
+                }
+                if (upload.mNextBatch == null) {
+                    return;
+                }
+
+                mUploads.put(uploadKey, upload);
+                sendNextBatch(dbAdapter, upload);
+            }
 
-                    final String encodedData = Base64Coder.encodeString(rawMessage);
-                    final Map<String, Object> params = new HashMap<String, Object>();
-                    params.put("data", encodedData);
-                    if (MPConfig.DEBUG) {
-                        params.put("verbose", "1");
+            private void sendNextBatch(MPDbAdapter dbAdapter, final TableUpload upload) {
+                final String[] batch = upload.mNextBatch;
+                final RemoteService poster = getPoster();
+                final SSLSocketFactory socketFactory = mConfig.getSSLSocketFactory();
+                // Stored before the request goes out, so a response lost to a crash still leads
+                // to the same rows being sent again under the same id.
+                final MPDbAdapter.UploadAttempt attempt = upload.mNextAttempt != null ? upload.mNextAttempt.next() : newUploadAttempt(upload, batch);
+                upload.mNextAttempt = null;
+                dbAdapter.putUploadAttempt(attempt);
+                mUploadExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        final UploadResult result = postBatch(poster, socketFactory, upload, batch, attempt);
+                        sendMessage(obtainMessage(UPLOAD_COMPLETE, result));
                     }
+                });
 
-                    boolean deleteEvents = true;
-                    byte[] response;
-                    try {
-                        final SSLSocketFactory socketFactory = mConfig.getSSLSocketFactory();
-                        response = poster.performRequest(url, params, socketFactory);
-                        if (null == response) {
-                            deleteEvents = false;
-                            logAboutMessageToMmp("Response was null, unexpected failure posting to " + url + ".");
-                        } else {
-                            deleteEvents = true; // Delete events on any successful post, regardless of 1 or 0 response
-                            String parsedResponse;
+                // Read the following batch while this one is in flight. Its rows come after the
+                // ones being sent, so they survive the delete of the current batch.
+                upload.mNextBatch = readBatch(dbAdapter, upload, batch[0]);
+            }
+
+            private String[] readBatch(MPDbAdapter dbAdapter, TableUpload upload, String afterId) {
+                final UploadBatchSizer sizer = mBatchSizers.get(upload.mTable);
+                return dbAdapter.generateDataString(upload.mTable, upload.mToken, upload.mIncludeAutomaticEvents, afterId, sizer.getBatchSize(), sizer.getByteLimit(), upload.mMinPriority);
+            }
+
+            // Reads exactly the rows of an earlier batch, whatever the batch size is now. A smaller
+            // batch size after a timeout only applies to the batches read after it.
+            private String[] readAttempt(MPDbAdapter dbAdapter, TableUpload upload, MPDbAdapter.UploadAttempt pending) {
+                final String[] batch = dbAdapter.generateDataString(upload.mTable, upload.mToken, pending.getIncludeAutomaticEvents(),
+                        String.valueOf(pending.getFirstId() - 1), Integer.MAX_VALUE, Integer.MAX_VALUE, pending.getMinPriority(), String.valueOf(pending.getLastId()));
+                if (batch == null) {
+                    // Its rows expired or were cleared in the meantime
+                    dbAdapter.clearUploadAttempt(upload.mTable, upload.mToken);
+                    return readBatch(dbAdapter, upload, null);
+                }
+                upload.mNextAttempt = pending;
+                return batch;
+            }
+
+            // The id names the rows of the batch, not its bytes, so it stays the same when property
+            // overlays change the text sent. The time of the first send keeps ids apart if row ids
+            // start over after the database is deleted.
+            private MPDbAdapter.UploadAttempt newUploadAttempt(TableUpload upload, String[] batch) {
+                final long firstId = Long.parseLong(batch[3]);
+                final long lastId = Long.parseLong(batch[0]);
+                final String identity = upload.mToken + "/" + upload.mTable.getName() + "/" + firstId + "/" + lastId + "/" + System.currentTimeMillis();
+                return new MPDbAdapter.UploadAttempt(upload.mTable, upload.mToken, firstId, lastId, upload.mIncludeAutomaticEvents, upload.mMinPriority,
+                        getBatchId(identity), 1);
+            }
+
+            // Runs on the upload executor, so it must not touch the DB or the handler's state.
+            private UploadResult postBatch(RemoteService poster, SSLSocketFactory socketFactory, TableUpload upload, String[] batch, MPDbAdapter.UploadAttempt attempt) {
+                final String url = upload.mUrl;
+                final String rawMessage = batch[1];
+                final BatchPayload payload = new BatchPayload(rawMessage);
+
+                final Map<String, Object> params = new HashMap<String, Object>();
+                params.put("data", payload);
+                params.put("batch_id", attempt.getBatchId());
+                params.put("attempt", Integer.toString(attempt.getAttempt()));
+                if (MPConfig.DEBUG) {
+                    params.put("verbose", "1");
+                }
+
+                boolean deleteEvents = true;
+                boolean timedOut = false;
+                long retryAfter = -1;
+                byte[] response;
+                final long requestStart = SystemClock.elapsedRealtime();
+                try {
+                    response = poster.performRequest(url, params, socketFactory);
+                    if (null == response) {
+                        deleteEvents = false;
+                        logAboutMessageToMmp("Response was null, unexpected failure posting to " + url + ".");
+                    } else {
+                        deleteEvents = true; // Delete events on any successful post, regardless of 1 or 0 response
+                        String parsedResponse;
+                        try {
+                            parsedResponse = new String(response, "UTF-8");
+                        } catch (UnsupportedEncodingException e) {
+                            throw new RuntimeException("UTF not supported on this platform?", e);
+                        }
+
+                        logAboutMessageToMmp("Successfully posted to " + url + ": \n" + rawMessage);
+                        logAboutMessageToMmp("Response was " + parsedResponse);
+                    }
+                } catch (final OutOfMemoryError e) {
+                    MPLog.e(LOGTAG, "Out of memory when posting to " + url + ".", e);
+                } catch (final MalformedURLException e) {
+                    MPLog.e(LOGTAG, "Cannot interpret " + url + " as a URL.", e);
+                } catch (final RemoteService.ServiceUnavailableException e) {
+                    logAboutMessageToMmp("Cannot post message to " + url + ".", e);
+                    deleteEvents = false;
+                    retryAfter = e.getRetryAfter() * 1000;
+                } catch (final SocketTimeoutException e) {
+                    logAboutMessageToMmp("Cannot post message to " + url + ".", e);
+                    deleteEvents = false;
+                    timedOut = true;
+                } catch (final IOException e) {
+                    logAboutMessageToMmp("Cannot post message to " + url + ".", e);
+                    deleteEvents = false;
+                }
+
+                final long latency = SystemClock.elapsedRealtime() - requestStart;
+                return new UploadResult(upload, batch[0], deleteEvents, timedOut, latency, retryAfter, attempt);
+            }
+
+            private String getBatchId(String identity) {
+                try {
+                    final byte[] digest = MessageDigest.getInstance("SHA-256").digest(identity.getBytes("UTF-8"));
+                    final StringBuilder ret = new StringBuilder(BATCH_ID_BYTES * 2);
+                    for (int i = 0; i < BATCH_ID_BYTES; i++) {
+                        ret.append(Character.forDigit((digest[i] >> 4) & 0xf, 16)).append(Character.forDigit(digest[i] & 0xf, 16));
+                    }
+                    return ret.toString();
+                } catch (final NoSuchAlgorithmException e) {
+                    throw new RuntimeException("SHA-256 not supported on this platform?", e);
+                } catch (final UnsupportedEncodingException e) {
+                    throw new RuntimeException("UTF not supported on this platform?", e);
+                }
+            }
+
+            // Back on the worker thread once a batch has been posted (or failed to post).
+            private void onUploadComplete(UploadResult result) {
+                final TableUpload upload = result.mUpload;
+                final String token = upload.mToken;
+                final UploadBatchSizer sizer = mBatchSizers.get(upload.mTable);
+
+                if (result.mDeleteEvents) {
+                    sizer.onSuccess(result.mLatency);
+                    getCircuitBreaker(upload.mKey).onSuccess();
+                    mDbAdapter.clearUploadAttempt(upload.mTable, token);
+
+                    // Batches of a table are sent one at a time, so deletes happen in queue order.
+                    logAboutMessageToMmp("Not retrying this batch of events, deleting them from DB.");
+                    mDbAdapter.cleanupEvents(result.mLastId, upload.mTable, token, upload.mIncludeAutomaticEvents, upload.mMinPriority);
+
+                    if (upload.mNextBatch == null) {
+                        // Nothing was left when we prefetched, but more may have been queued since.
+                        upload.mNextBatch = readBatch(mDbAdapter, upload, result.mLastId);
+                    }
+                    if (upload.mNextBatch == null && upload.applyWidening()) {
+                        // Lower lanes were asked for while this one drained, start over from their oldest record
+                        upload.mNextBatch = readBatch(mDbAdapter, upload, null);
+                    }
+                    if (upload.mNextBatch != null && getPoster().isOnline(mContext, mConfig.getOfflineMode())) {
+                        sendNextBatch(mDbAdapter, upload);
+                    } else {
+                        mUploads.remove(upload.mKey);
+                    }
+                } else {
+                    mUploads.remove(upload.mKey);
+                    // The attempt stays stored, so the retry sends the same rows with the same id
+                    if (result.mTimedOut) {
+                        sizer.onTimeout();
+                        logAboutMessageToMmp("Upload to " + upload.mUrl + " timed out, sending " + sizer.getBatchSize() + " records at a time");
+                    }
+
+                    // Only this table's breaker opens. The retry flush finds the other tables of the
+                    // project unaffected, and any flush before then skips this one.
+                    mTrackEngageRetryAfter = getCircuitBreaker(upload.mKey).onFailure(SystemClock.elapsedRealtime(), result.mRetryAfter);
+                    final Message flushMessage = Message.obtain();
+                    flushMessage.what = FLUSH_QUEUE;
+                    flushMessage.obj = token;
+                    sendMessageDelayed(flushMessage, mTrackEngageRetryAfter);
+                    logAboutMessageToMmp("Retrying batch " + result.mAttempt.getBatchId() + " of " + upload.mTable.getName() + " (attempt " + result.mAttempt.getAttempt() + " failed) in " + mTrackEngageRetryAfter + " ms");
+                }
+            }
+
+            private String getUploadKey(MPDbAdapter.Table table, String token) {
+                return table.getName() + "/" + token;
+            }
+
+            private UploadCircuitBreaker getCircuitBreaker(String uploadKey) {
+                UploadCircuitBreaker breaker = mCircuitBreakers.get(uploadKey);
+                if (breaker == null) {
+                    breaker = new UploadCircuitBreaker(mRandom);
+                    mCircuitBreakers.put(uploadKey, breaker);
+                }
+                return breaker;
+            }
+
+            // Records older than DataExpiration are removed a pass at a time, and only when the worker
+            // has nothing else to do, so a large backlog never holds up the records being tracked.
+            private void scheduleExpiry() {
+                mExpiryTime = System.currentTimeMillis() - mConfig.getDataExpiration();
+                mExpiryTableIndex = 0;
+                Looper.myQueue().addIdleHandler(mExpiryIdleHandler);
+            }
+
+            private void expireRecords() {
+                final MPDbAdapter.Table table = MPDbAdapter.Table.values()[mExpiryTableIndex];
+                final long start = SystemClock.elapsedRealtime();
+                final int deleted = mDbAdapter.cleanupEvents(mExpiryTime, table, EXPIRY_PASS_SIZE);
+                logAboutMessageToMmp("Expired " + deleted + " records from " + table.getName() + " in " + (SystemClock.elapsedRealtime() - start) + "ms");
+                if (deleted > 0) {
+                    discardPrefetchedBatches(null);
+                }
+
+                if (deleted < EXPIRY_PASS_SIZE) {
+                    mExpiryTableIndex++;
+                }
+                if (mExpiryTableIndex < MPDbAdapter.Table.values().length) {
+                    Looper.myQueue().addIdleHandler(mExpiryIdleHandler);
+                }
+            }
+
+            // In a process that doesn't own the queue, hands the messages that work on it to the owner.
+            // Returns false for messages that are still handled here.
+            private boolean forwardToOwner(Message msg) {
+                try {
+                    JSONObject operation = null;
+                    if (msg.what == COMMIT_STAGED_RECORDS) {
+                        return true; // Already handed over above
+                    } else if (msg.what == PUSH_ANONYMOUS_PEOPLE_RECORDS) {
+                        final PushAnonymousPeopleDescription description = (PushAnonymousPeopleDescription) msg.obj;
+                        operation = newOperation(OPERATION_PUSH_ANONYMOUS_PEOPLE, description.getToken());
+                        operation.put("distinct_id", description.getDistinctId());
+                    } else if (msg.what == CLEAR_ANONYMOUS_UPDATES) {
+                        operation = newOperation(OPERATION_CLEAR_ANONYMOUS_PEOPLE, ((MmpDescription) msg.obj).getToken());
+                    } else if (msg.what == EMPTY_QUEUES) {
+                        operation = newOperation(OPERATION_EMPTY_QUEUES, ((MmpDescription) msg.obj).getToken());
+                    } else if (msg.what == CLEANUP_AUTOMATIC_EVENTS) {
+                        operation = newOperation(OPERATION_CLEANUP_AUTOMATIC_EVENTS, (String) msg.obj);
+                    } else if (msg.what == REWRITE_EVENT_PROPERTIES) {
+                        final UpdateEventsPropertiesDescription description = (UpdateEventsPropertiesDescription) msg.obj;
+                        operation = newOperation(OPERATION_REWRITE_EVENT_PROPERTIES, description.getToken());
+                        operation.put("properties", new JSONObject(description.getProperties()));
+                    } else if (msg.what == FLUSH_QUEUE) {
+                        final String token = (String) msg.obj;
+                        if (msg.arg1 == 1 && SystemClock.elapsedRealtime() >= mDecideRetryAfter) {
                             try {
-                                parsedResponse = new String(response, "UTF-8");
-                            } catch (UnsupportedEncodingException e) {
-                                throw new RuntimeException("UTF not supported on this platform?", e);
-                            }
-                            if (mFailedRetries > 0) {
-                                mFailedRetries = 0;
-                                removeMessages(FLUSH_QUEUE, token);
+                                mDecideChecker.runDecideCheck(token, getPoster());
+                            } catch (RemoteService.ServiceUnavailableException e) {
+                                mDecideRetryAfter = SystemClock.elapsedRealtime() + e.getRetryAfter() * 1000;
                             }
+                        }
+                        operation = newOperation(OPERATION_FLUSH, token);
+                        final DecideMessages decideMessages = mDecideChecker.getDecideMessages(token);
+                        if (decideMessages != null && decideMessages.isAutomaticEventsEnabled() != null) {
+                            operation.put("automatic_events", decideMessages.isAutomaticEventsEnabled());
+                        }
+                    } else if (msg.what == KILL_WORKER) {
+                        // The queue belongs to the owner, only this process stops sending to it
+                        synchronized(mHandlerLock) {
+                            mHandler = null;
+                            mUploadExecutor.shutdown();
+                            unregisterDevicePropertiesReceiver();
+                            Looper.myLooper().quit();
+                        }
+                        return true;
+                    } else {
+                        return false;
+                    }
 
-                            logAboutMessageToMmp("Successfully posted to " + url + ": \n" + rawMessage);
-                            logAboutMessageToMmp("Response was " + parsedResponse);
+                    mOwnerClient.send(Collections.singletonList(operation.toString()));
+                } catch (final JSONException e) {
+                    MPLog.e(LOGTAG, "Could not hand message " + msg.what + " over to the queue owner", e);
+                }
+                return true;
+            }
+
+            // Runs operations handed over by other processes as if they'd been made here.
+            private void replayOperations(List<String> operations) {
+                for (final String line : operations) {
+                    try {
+                        final JSONObject operation = new JSONObject(line);
+                        final String type = operation.getString("op");
+                        final String token = operation.getString("token");
+                        final Message msg = Message.obtain();
+                        if (OPERATION_RECORD.equals(type)) {
+                            final MPDbAdapter.Table table = getTable(operation.getString("table"));
+                            final int priority = operation.optInt("priority", MPDbAdapter.PRIORITY_NORMAL);
+                            stageRecord(new MPDbAdapter.PendingRecord(operation.getJSONObject("data"), token, table, operation.optBoolean("automatic"), priority));
+                            if (priority >= MPDbAdapter.PRIORITY_CRITICAL && (table == MPDbAdapter.Table.EVENTS || table == MPDbAdapter.Table.PEOPLE)) {
+                                requestCriticalFlush(token, table);
+                            }
+                            continue;
+                        } else if (OPERATION_EVENT.equals(type)) {
+                            // Spilled by this process, see Worker.spill()
+                            msg.what = ENQUEUE_EVENTS;
+                            msg.obj = new EventDescription(operation.optString("name", null), operation.getJSONObject("properties"), token,
+                                    operation.optBoolean("automatic"), operation.optJSONObject("metadata"), operation.optInt("priority", MPDbAdapter.PRIORITY_NORMAL));
+                        } else if (OPERATION_PUSH_ANONYMOUS_PEOPLE.equals(type)) {
+                            msg.what = PUSH_ANONYMOUS_PEOPLE_RECORDS;
+                            msg.obj = new PushAnonymousPeopleDescription(operation.getString("distinct_id"), token);
+                        } else if (OPERATION_CLEAR_ANONYMOUS_PEOPLE.equals(type)) {
+                            msg.what = CLEAR_ANONYMOUS_UPDATES;
+                            msg.obj = new MmpDescription(token);
+                        } else if (OPERATION_EMPTY_QUEUES.equals(type)) {
+                            msg.what = EMPTY_QUEUES;
+                            msg.obj = new MmpDescription(token);
+                        } else if (OPERATION_CLEANUP_AUTOMATIC_EVENTS.equals(type)) {
+                            msg.what = CLEANUP_AUTOMATIC_EVENTS;
+                            msg.obj = token;
+                        } else if (OPERATION_REWRITE_EVENT_PROPERTIES.equals(type)) {
+                            final JSONObject properties = operation.getJSONObject("properties");
+                            final Map<String, String> props = new HashMap<>();
+                            for (final Iterator<String> keys = properties.keys(); keys.hasNext();) {
+                                final String key = keys.next();
+                                props.put(key, properties.getString(key));
+                            }
+                            msg.what = REWRITE_EVENT_PROPERTIES;
+                            msg.obj = new UpdateEventsPropertiesDescription(token, props);
+                        } else if (OPERATION_FLUSH.equals(type)) {
+                            if (operation.has("automatic_events")) {
+                                mRemoteAutomaticEvents.put(token, operation.getBoolean("automatic_events"));
+                            }
+                            // The other process ran its own decide check
+                            msg.what = FLUSH_QUEUE;
+                            msg.obj = token;
+                            msg.arg1 = 0;
+                        } else {
+                            MPLog.w(LOGTAG, "Ignoring unknown queue operation " + type);
+                            continue;
                         }
-                    } catch (final OutOfMemoryError e) {
-                        MPLog.e(LOGTAG, "Out of memory when posting to " + url + ".", e);
-                    } catch (final MalformedURLException e) {
-                        MPLog.e(LOGTAG, "Cannot interpret " + url + " as a URL.", e);
-                    } catch (final RemoteService.ServiceUnavailableException e) {
-                        logAboutMessageToMmp("Cannot post message to " + url + ".", e);
-                        deleteEvents = false;
-                        mTrackEngageRetryAfter = e.getRetryAfter() * 1000;
-                    } catch (final SocketTimeoutException e) {
-                        logAboutMessageToMmp("Cannot post message to " + url + ".", e);
-                        deleteEvents = false;
-                    } catch (final IOException e) {
-                        logAboutMessageToMmp("Cannot post message to " + url + ".", e);
-                        deleteEvents = false;
+                        // Handled in place, so it sees the records staged before it and not the ones after
+                        handleMessage(msg);
+                    } catch (final JSONException e) {
+                        MPLog.e(LOGTAG, "Ignoring malformed queue operation from another process", e);
                     }
+                }
+            }
 
-                    if (deleteEvents) {
-                        logAboutMessageToMmp("Not retrying this batch of events, deleting them from DB.");
-                        dbAdapter.cleanupEvents(lastId, table, token, includeAutomaticEvents);
-                    } else {
-                        removeMessages(FLUSH_QUEUE, token);
-                        mTrackEngageRetryAfter = Math.max((long)Math.pow(2, mFailedRetries) * 60000, mTrackEngageRetryAfter);
-                        mTrackEngageRetryAfter = Math.min(mTrackEngageRetryAfter, 10 * 60 * 1000); // limit 10 min
-                        final Message flushMessage = Message.obtain();
-                        flushMessage.what = FLUSH_QUEUE;
-                        flushMessage.obj = token;
-                        sendMessageDelayed(flushMessage, mTrackEngageRetryAfter);
-                        mFailedRetries++;
-                        logAboutMessageToMmp("Retrying this batch of events in " + mTrackEngageRetryAfter + " ms");
-                        break;
+            private MPDbAdapter.Table getTable(String name) throws JSONException {
+                for (final MPDbAdapter.Table table : MPDbAdapter.Table.values()) {
+                    if (table.getName().equals(name)) {
+                        return table;
                     }
+                }
+                throw new JSONException("Unknown table " + name);
+            }
 
-                    eventsData = dbAdapter.generateDataString(table, token, includeAutomaticEvents);
-                    if (eventsData != null) {
-                        queueCount = Integer.valueOf(eventsData[2]);
+            // Prefetched batches go stale when the rows they were read from change.
+            private void discardPrefetchedBatches(String token) {
+                for (final TableUpload upload : mUploads.values()) {
+                    if (token == null || token.equals(upload.mToken)) {
+                        upload.mNextBatch = null;
                     }
                 }
             }
 
-            private JSONObject getDefaultEventProperties()
-                    throws JSONException {
-                final JSONObject ret = new JSONObject();
+            // Properties that can't change while the process is alive, computed once.
+            private Map<String, Object> getStaticEventProperties() {
+                if (mStaticEventProperties != null) {
+                    return mStaticEventProperties;
+                }
+
+                final Map<String, Object> ret = new LinkedHashMap<>();
 
                 ret.put("mp_lib", "android");
                 ret.put("$lib_version", MPConfig.VERSION);
@@ -701,6 +1520,23 @@ import javax.net.ssl.SSLSocketFactory;
                 if (null != hasTelephony)
                     ret.put("$has_telephone", hasTelephony.booleanValue());
 
+                final String bluetoothVersion = mSystemInformation.getBluetoothVersion();
+                if (bluetoothVersion != null)
+                    ret.put("$bluetooth_version", bluetoothVersion);
+
+                mStaticEventProperties = Collections.unmodifiableMap(ret);
+                return mStaticEventProperties;
+            }
+
+            // Network and bluetooth state, refreshed on connectivity or bluetooth broadcasts, or once it's too old.
+            private Map<String, Object> getVolatileEventProperties() {
+                final long now = SystemClock.elapsedRealtime();
+                if (mVolatileEventProperties != null && now < mVolatileEventPropertiesExpiry) {
+                    return mVolatileEventProperties;
+                }
+
+                final Map<String, Object> ret = new LinkedHashMap<>();
+
                 final String carrier = mSystemInformation.getCurrentNetworkOperator();
                 if (null != carrier && !carrier.trim().isEmpty())
                     ret.put("$carrier", carrier);
@@ -717,24 +1553,78 @@ import javax.net.ssl.SSLSocketFactory;
                 if (isBluetoothEnabled != null)
                     ret.put("$bluetooth_enabled", isBluetoothEnabled);
 
-                final String bluetoothVersion = mSystemInformation.getBluetoothVersion();
-                if (bluetoothVersion != null)
-                    ret.put("$bluetooth_version", bluetoothVersion);
+                mVolatileEventProperties = Collections.unmodifiableMap(ret);
+                mVolatileEventPropertiesExpiry = now + VOLATILE_EVENT_PROPERTIES_TTL;
+                return mVolatileEventProperties;
+            }
+
+            private void registerDevicePropertiesReceiver() {
+                final IntentFilter filter = new IntentFilter();
+                filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
+                filter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
+                final BroadcastReceiver receiver = new BroadcastReceiver() {
+                    @Override
+                    public void onReceive(Context context, Intent intent) {
+                        mVolatileEventPropertiesExpiry = 0;
+                    }
+                };
+                try {
+                    // Delivered on this handler, so the snapshot is only ever touched from the worker thread
+                    mContext.registerReceiver(receiver, filter, null, this);
+                    mDevicePropertiesReceiver = receiver;
+                } catch (final RuntimeException e) {
+                    MPLog.w(LOGTAG, "Could not listen for connectivity changes, device properties will be refreshed every " + VOLATILE_EVENT_PROPERTIES_TTL + " ms", e);
+                }
+            }
 
-                return ret;
+            // Must be called before the looper quits, or the context keeps the handler and worker alive.
+            private void unregisterDevicePropertiesReceiver() {
+                if (mDevicePropertiesReceiver == null) {
+                    return;
+                }
+                try {
+                    mContext.unregisterReceiver(mDevicePropertiesReceiver);
+                } catch (final RuntimeException e) {
+                    MPLog.w(LOGTAG, "Could not stop listening for connectivity changes", e);
+                }
+                mDevicePropertiesReceiver = null;
+            }
+
+            private boolean isDuplicate(EventDescription eventDescription) {
+                final EventProperties.Encoded encoded = eventDescription.getEncodedProperties();
+                return mDuplicateEventFilter.isDuplicate(eventDescription.getToken(), eventDescription.getEventName(), eventDescription.getPropertySnapshotVersions(),
+                        eventDescription.getMessage(), null == encoded ? null : encoded.getText(), SystemClock.elapsedRealtime());
+            }
+
+            private MPDbAdapter.PendingRecord prepareEventRecord(EventDescription eventDescription) throws JSONException {
+                if (null == eventDescription.getEncodedProperties()) {
+                    return new MPDbAdapter.PendingRecord(prepareEventObject(eventDescription), eventDescription.getToken(), MPDbAdapter.Table.EVENTS,
+                            eventDescription.isAutomatic(), eventDescription.getPriority());
+                }
+                return new MPDbAdapter.PendingRecord(prepareEventText(eventDescription), eventDescription.getToken(), MPDbAdapter.Table.EVENTS,
+                        eventDescription.isAutomatic(), eventDescription.getPriority());
+            }
+
+            // Same as prepareEventObject, but copies the encoded properties into the text as they are
+            private String prepareEventText(EventDescription eventDescription) throws JSONException {
+                final EventProperties.Encoded encoded = eventDescription.getEncodedProperties();
+                final JSONObject sendProperties = new JSONObject(getStaticEventProperties());
+                for (final Map.Entry<String, Object> entry : getVolatileEventProperties().entrySet()) {
+                    sendProperties.put(entry.getKey(), entry.getValue());
+                }
+                sendProperties.put("token", eventDescription.getToken());
+                eventDescription.addJSONPropertiesTo(sendProperties);
+                return encoded.toEventText(eventDescription.getEventName(), sendProperties, eventDescription.getSessionMetadata());
             }
 
             private JSONObject prepareEventObject(EventDescription eventDescription) throws JSONException {
                 final JSONObject eventObj = new JSONObject();
-                final JSONObject eventProperties = eventDescription.getProperties();
-                final JSONObject sendProperties = getDefaultEventProperties();
-                sendProperties.put("token", eventDescription.getToken());
-                if (eventProperties != null) {
-                    for (final Iterator<?> iter = eventProperties.keys(); iter.hasNext();) {
-                        final String key = (String) iter.next();
-                        sendProperties.put(key, eventProperties.get(key));
-                    }
+                final JSONObject sendProperties = new JSONObject(getStaticEventProperties());
+                for (final Map.Entry<String, Object> entry : getVolatileEventProperties().entrySet()) {
+                    sendProperties.put(entry.getKey(), entry.getValue());
                 }
+                sendProperties.put("token", eventDescription.getToken());
+                eventDescription.addPropertiesTo(sendProperties);
                 eventObj.put("event", eventDescription.getEventName());
                 eventObj.put("properties", sendProperties);
                 eventObj.put("$mp_metadata", eventDescription.getSessionMetadata());
@@ -742,13 +1632,100 @@ import javax.net.ssl.SSLSocketFactory;
             }
 
             private MPDbAdapter mDbAdapter;
+            private final List<MPDbAdapter.PendingRecord> mStagedRecords = new ArrayList<>();
+            private final Map<String, TableUpload> mUploads = new HashMap<>();
+            private final ExecutorService mUploadExecutor;
+            private final Map<MPDbAdapter.Table, UploadBatchSizer> mBatchSizers;
+            private Map<String, Object> mStaticEventProperties;
+            private Map<String, Object> mVolatileEventProperties;
+            private BroadcastReceiver mDevicePropertiesReceiver; // Null if it couldn't be registered, or once the worker stops
+            private long mVolatileEventPropertiesExpiry;
             private final DecideChecker mDecideChecker;
             private final long mFlushInterval;
             private long mDecideRetryAfter;
-            private long mTrackEngageRetryAfter;
-            private int mFailedRetries;
+            private final Map<String, Long> mNextBulkDecideChecks = new HashMap<>(); // By token, for flushes over the bulk upload limit
+            private final Map<String, UploadCircuitBreaker> mCircuitBreakers = new HashMap<>();
+            private final DuplicateEventFilter mDuplicateEventFilter;
+            private final Map<String, Set<MPDbAdapter.Table>> mCriticalFlushes = new HashMap<>();
+            private final Map<String, Boolean> mRemoteAutomaticEvents = new HashMap<>(); // Decide results of other processes
+            private QueueSpool mSpool;
+            private final Random mRandom = new Random();
+            private long mTrackEngageRetryAfter; // The most recent backoff delay, for tests and diagnostics
+            private long mExpiryTime;
+            private int mExpiryTableIndex;
+            private final MessageQueue.IdleHandler mExpiryIdleHandler = new MessageQueue.IdleHandler() {
+                @Override
+                public boolean queueIdle() {
+                    // Runs the next pass behind anything enqueued in the meantime
+                    sendEmptyMessage(EXPIRE_RECORDS);
+                    return false;
+                }
+            };
         }// AnalyticsMessageHandler
 
+        // The batches of one table and token being uploaded, one request at a time.
+        // Which records it reads only changes between batches, see widen().
+        private class TableUpload {
+            public TableUpload(String key, String token, MPDbAdapter.Table table, String url, boolean includeAutomaticEvents, int minPriority) {
+                mKey = key;
+                mToken = token;
+                mTable = table;
+                mUrl = url;
+                mIncludeAutomaticEvents = includeAutomaticEvents;
+                mMinPriority = minPriority;
+                mWidenedIncludeAutomaticEvents = includeAutomaticEvents;
+                mWidenedMinPriority = minPriority;
+            }
+
+            // Asks for more lanes, read once the current ones are drained.
+            public void widen(int minPriority, boolean includeAutomaticEvents) {
+                mWidenedMinPriority = Math.min(mWidenedMinPriority, minPriority);
+                mWidenedIncludeAutomaticEvents |= includeAutomaticEvents;
+            }
+
+            // Returns true if the upload now reads more records than before.
+            public boolean applyWidening() {
+                if (mWidenedMinPriority == mMinPriority && mWidenedIncludeAutomaticEvents == mIncludeAutomaticEvents) {
+                    return false;
+                }
+                mMinPriority = mWidenedMinPriority;
+                mIncludeAutomaticEvents = mWidenedIncludeAutomaticEvents;
+                return true;
+            }
+
+            private final String mKey;
+            private final String mToken;
+            private final MPDbAdapter.Table mTable;
+            private final String mUrl;
+            // Only touched on the worker thread
+            private boolean mIncludeAutomaticEvents;
+            private int mMinPriority;
+            private boolean mWidenedIncludeAutomaticEvents;
+            private int mWidenedMinPriority;
+            private String[] mNextBatch;
+            private MPDbAdapter.UploadAttempt mNextAttempt; // Set when mNextBatch is an earlier batch sent again
+        }
+
+        private class UploadResult {
+            public UploadResult(TableUpload upload, String lastId, boolean deleteEvents, boolean timedOut, long latency, long retryAfter, MPDbAdapter.UploadAttempt attempt) {
+                mUpload = upload;
+                mLastId = lastId;
+                mDeleteEvents = deleteEvents;
+                mTimedOut = timedOut;
+                mLatency = latency;
+                mRetryAfter = retryAfter;
+                mAttempt = attempt;
+            }
+
+            private final TableUpload mUpload;
+            private final String mLastId;
+            private final boolean mDeleteEvents;
+            private final boolean mTimedOut;
+            private final long mLatency;
+            private final long mRetryAfter; // Milliseconds the server asked us to wait, or -1
+            private final MPDbAdapter.UploadAttempt mAttempt;
+        }
+
         private void updateFlushFrequency() {
             final long now = System.currentTimeMillis();
             final long newFlushCount = mFlushCount + 1;
@@ -768,6 +1745,8 @@ import javax.net.ssl.SSLSocketFactory;
 
         private final Object mHandlerLock = new Object();
         private Handler mHandler;
+        private final IngestionQueue mIngestionQueue;
+        private final QueueSpool mIngestionSpill;
         private long mFlushCount = 0;
         private long mAveFlushFrequency = 0;
         private long mLastFlushTime = -1;
@@ -777,10 +1756,98 @@ import javax.net.ssl.SSLSocketFactory;
     public long getTrackEngageRetryAfter() {
         return ((Worker.AnalyticsMessageHandler) mWorker.mHandler).getTrackEngageRetryAfter();
     }
+
+    /**
+     * @param table one of the uploaded tables: events, people or groups
+     * @return the number of records that will be sent in the next upload of the table
+     */
+    public int getUploadBatchSize(MPDbAdapter.Table table) {
+        return ((Worker.AnalyticsMessageHandler) mWorker.mHandler).getUploadBatchSize(table);
+    }
+
+    /**
+     * @return the number of events dropped as duplicates, see MPConfig.DuplicateEventWindow
+     */
+    public long getDroppedDuplicateEventCount() {
+        return ((Worker.AnalyticsMessageHandler) mWorker.mHandler).getDuplicateEventFilter().getDroppedEventCount();
+    }
+
+    /**
+     * @return the approximate number of bytes not queued or uploaded thanks to dropped duplicates
+     */
+    public long getDuplicateEventBytesSaved() {
+        return ((Worker.AnalyticsMessageHandler) mWorker.mHandler).getDuplicateEventFilter().getSavedBytes();
+    }
+
+    /**
+     * @return the number of events, people and group updates waiting for the worker, see MPConfig.IngestionQueueCapacity
+     */
+    public int getIngestionQueueDepth() {
+        return mWorker.mIngestionQueue.getDepth();
+    }
+
+    /**
+     * @return the most events, people and group updates that have been waiting for the worker at once
+     */
+    public int getIngestionQueueHighWaterMark() {
+        return mWorker.mIngestionQueue.getHighWaterMark();
+    }
+
+    /**
+     * @return the number of records dropped because the ingestion queue was full, see MPConfig.IngestionQueuePolicy
+     */
+    public long getDroppedIngestionCount() {
+        return mWorker.mIngestionQueue.getDroppedCount();
+    }
+
+    /**
+     * @return the number of records written to disk because the ingestion queue was full
+     */
+    public long getSpilledIngestionCount() {
+        return mWorker.mIngestionQueue.getSpilledCount();
+    }
+
+    // The records a message hands to the worker, or 0 for messages the ingestion queue doesn't count
+    private static int countIngestedRecords(Message msg) {
+        if (msg.what == ENQUEUE_EVENTS || msg.what == ENQUEUE_PEOPLE || msg.what == ENQUEUE_GROUP) {
+            return 1;
+        } else if (msg.what == ENQUEUE_EVENT_BATCH) {
+            return ((List<?>) msg.obj).size();
+        }
+        return 0;
+    }
+
+    private static JSONObject newOperation(String type, String token) throws JSONException {
+        final JSONObject operation = new JSONObject();
+        operation.put("op", type);
+        operation.put("token", token);
+        return operation;
+    }
+
+    private static JSONObject newRecordOperation(String token, MPDbAdapter.Table table, boolean isAutomatic, int priority, JSONObject data) throws JSONException {
+        final JSONObject operation = newOperation(OPERATION_RECORD, token);
+        operation.put("table", table.getName());
+        operation.put("automatic", isAutomatic);
+        operation.put("priority", priority);
+        operation.put("data", data);
+        return operation;
+    }
+
+    // The event as tracked, before the worker adds device properties to it
+    private static JSONObject newEventOperation(EventDescription eventDescription) throws JSONException {
+        final JSONObject operation = newOperation(OPERATION_EVENT, eventDescription.getToken());
+        operation.put("name", eventDescription.getEventName());
+        operation.put("properties", eventDescription.getProperties());
+        operation.put("automatic", eventDescription.isAutomatic());
+        operation.put("priority", eventDescription.getPriority());
+        operation.put("metadata", eventDescription.getSessionMetadata());
+        return operation;
+    }
     /////////////////////////////////////////////////////////
 
     // Used across thread boundaries
     private final Worker mWorker;
+    private final QueueOwnerClient mOwnerClient;
     protected final Context mContext;
     protected final MPConfig mConfig;
 
@@ -794,7 +1861,34 @@ import javax.net.ssl.SSLSocketFactory;
     private static final int EMPTY_QUEUES = 6; // Remove any local (and pending to be flushed) events or people/group updates from the db
     private static final int CLEAR_ANONYMOUS_UPDATES = 7; // Remove anonymous people updates from DB
     private static final int REWRITE_EVENT_PROPERTIES = 8; // Update or add properties to existing queued events
+    private static final int COMMIT_STAGED_RECORDS = 9; // Write the staged events, people and group records to the DB in one transaction
+    private static final int UPLOAD_COMPLETE = 10; // A batch upload finished on the upload executor
+    private static final int EXPIRE_RECORDS = 11; // Remove the next pass of expired records, scheduled when the worker is idle
     private static final int INSTALL_DECIDE_CHECK = 12; // Run this DecideCheck at intervals until it isDestroyed()
+    private static final int FLUSH_CRITICAL = 13; // submit the critical events and people updates staged so far
+    private static final int CLEANUP_AUTOMATIC_EVENTS = 14; // Remove queued automatic events, decide turned them off
+    private static final int DRAIN_SPOOL = 16; // Replay the queue operations other processes spooled
+    private static final int ENQUEUE_EVENT_BATCH = 17; // push the given events to the events DB in one transaction
+    private static final int DRAIN_INGESTION_SPILL = 18; // Queue the records spilled to disk while the ingestion queue was full
+
+    // Queue operations handed between processes, see QueueOwnerService
+    private static final String OPERATION_RECORD = "record";
+    private static final String OPERATION_EVENT = "event"; // only spilled, never handed between processes
+    private static final String OPERATION_FLUSH = "flush";
+    private static final String OPERATION_PUSH_ANONYMOUS_PEOPLE = "push_anonymous_people";
+    private static final String OPERATION_CLEAR_ANONYMOUS_PEOPLE = "clear_anonymous_people";
+    private static final String OPERATION_EMPTY_QUEUES = "empty_queues";
+    private static final String OPERATION_CLEANUP_AUTOMATIC_EVENTS = "cleanup_automatic_events";
+    private static final String OPERATION_REWRITE_EVENT_PROPERTIES = "rewrite_event_properties";
+
+    private static final String INGESTION_SPILL_DIRECTORY = "mmp_ingestion_spill";
+    private static final String INGESTION_SPILL_FILE = "records";
+
+    private static final int UPLOAD_THREADS = 3; // events, people and groups
+    private static final int EXPIRY_PASS_SIZE = 500; // expired records removed per idle pass
+    private static final int BATCH_ID_BYTES = 16; // of the SHA-256 of a batch's identity
+
+    private static final long VOLATILE_EVENT_PROPERTIES_TTL = 5 * 60 * 1000; // refresh network properties at least every 5 minutes
 
     private static final String LOGTAG = "MmpAPI.Messages";
 
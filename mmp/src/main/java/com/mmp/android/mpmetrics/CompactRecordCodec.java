@@ -0,0 +1,321 @@
+package com.mmp.android.mpmetrics;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A compact binary encoding for queued records, stored in place of their JSON text.
+ *
+ * <p>A record is a format version byte followed by a tagged value. Counts, lengths and integers
+ * are varints, strings are length-prefixed UTF-8, and keys or values found in a fixed table of
+ * common names (such as $os, $model or mp_lib) are written as a small index instead of their
+ * text. Decoding writes the record's JSON text straight into a StringBuilder, producing the same
+ * text as {@link JSONObject#toString()} would, without building a JSONObject.
+ */
+/* package */ class CompactRecordCodec {
+
+    public static byte[] encode(JSONObject record) throws JSONException {
+        final Writer writer = new Writer();
+        writer.writeByte(FORMAT_VERSION);
+        writeObject(writer, record);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Appends the JSON text of an encoded record.
+     *
+     * @throws JSONException if the record isn't in a format this version understands
+     */
+    public static void appendJson(byte[] encoded, StringBuilder out) throws JSONException {
+        if (encoded.length == 0 || encoded[0] != FORMAT_VERSION) {
+            throw new JSONException("Unknown record format");
+        }
+        final Reader reader = new Reader(encoded);
+        reader.mPosition = 1;
+        readValue(reader, out, 0);
+    }
+
+    public static String toJson(byte[] encoded) throws JSONException {
+        final StringBuilder out = new StringBuilder(encoded.length * 2);
+        appendJson(encoded, out);
+        return out.toString();
+    }
+
+    private static void writeObject(Writer writer, JSONObject object) throws JSONException {
+        writer.writeByte(TAG_OBJECT);
+        writer.writeVarint(object.length());
+        for (final Iterator<String> keys = object.keys(); keys.hasNext();) {
+            final String key = keys.next();
+            final Integer interned = INTERNED_INDEXES.get(key);
+            if (interned != null) {
+                writer.writeVarint(interned + 1);
+            } else {
+                writer.writeVarint(0);
+                writer.writeString(key);
+            }
+            writeValue(writer, object.get(key));
+        }
+    }
+
+    private static void writeValue(Writer writer, Object value) throws JSONException {
+        if (value == null || value == JSONObject.NULL) {
+            writer.writeByte(TAG_NULL);
+        } else if (value instanceof Boolean) {
+            writer.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            final long l = ((Number) value).longValue();
+            writer.writeByte(TAG_INT);
+            writer.writeVarint((l << 1) ^ (l >> 63));
+        } else if (value instanceof Double) {
+            writer.writeByte(TAG_DOUBLE);
+            writer.writeLong(Double.doubleToLongBits((Double) value));
+        } else if (value instanceof Number) {
+            // Kept as the exact text JSONObject would have written
+            writer.writeByte(TAG_NUMBER_TEXT);
+            writer.writeString(JSONObject.numberToString((Number) value));
+        } else if (value instanceof JSONObject) {
+            writeObject(writer, (JSONObject) value);
+        } else if (value instanceof JSONArray) {
+            final JSONArray array = (JSONArray) value;
+            writer.writeByte(TAG_ARRAY);
+            writer.writeVarint(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                writeValue(writer, array.get(i));
+            }
+        } else {
+            final String string = value.toString();
+            final Integer interned = INTERNED_INDEXES.get(string);
+            if (interned != null) {
+                writer.writeByte(TAG_INTERNED);
+                writer.writeVarint(interned);
+            } else {
+                writer.writeByte(TAG_STRING);
+                writer.writeString(string);
+            }
+        }
+    }
+
+    private static void readValue(Reader reader, StringBuilder out, int depth) throws JSONException {
+        if (depth > MAX_DEPTH) {
+            throw new JSONException("Record nested too deeply");
+        }
+        final int tag = reader.readByte();
+        switch (tag) {
+            case TAG_NULL:
+                out.append("null");
+                break;
+            case TAG_FALSE:
+                out.append("false");
+                break;
+            case TAG_TRUE:
+                out.append("true");
+                break;
+            case TAG_INT: {
+                final long zigzag = reader.readVarint();
+                out.append((zigzag >>> 1) ^ -(zigzag & 1));
+                break;
+            }
+            case TAG_DOUBLE:
+                out.append(JSONObject.numberToString(Double.longBitsToDouble(reader.readLong())));
+                break;
+            case TAG_NUMBER_TEXT:
+                out.append(reader.readString());
+                break;
+            case TAG_STRING:
+                out.append(JSONObject.quote(reader.readString()));
+                break;
+            case TAG_INTERNED:
+                out.append(JSONObject.quote(interned(reader.readVarint())));
+                break;
+            case TAG_OBJECT: {
+                final long length = reader.readVarint();
+                out.append('{');
+                for (long i = 0; i < length; i++) {
+                    if (i > 0) {
+                        out.append(',');
+                    }
+                    final long key = reader.readVarint();
+                    out.append(JSONObject.quote(key == 0 ? reader.readString() : interned(key - 1)));
+                    out.append(':');
+                    readValue(reader, out, depth + 1);
+                }
+                out.append('}');
+                break;
+            }
+            case TAG_ARRAY: {
+                final long length = reader.readVarint();
+                out.append('[');
+                for (long i = 0; i < length; i++) {
+                    if (i > 0) {
+                        out.append(',');
+                    }
+                    readValue(reader, out, depth + 1);
+                }
+                out.append(']');
+                break;
+            }
+            default:
+                throw new JSONException("Unknown value tag " + tag);
+        }
+    }
+
+    private static String interned(long index) throws JSONException {
+        if (index < 0 || index >= INTERNED.length) {
+            throw new JSONException("Unknown interned string " + index);
+        }
+        return INTERNED[(int) index];
+    }
+
+    private static class Writer {
+        public void writeByte(int b) {
+            ensureCapacity(1);
+            mBuffer[mPosition++] = (byte) b;
+        }
+
+        public void writeVarint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                mBuffer[mPosition++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            mBuffer[mPosition++] = (byte) value;
+        }
+
+        public void writeLong(long value) {
+            ensureCapacity(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                mBuffer[mPosition++] = (byte) (value >>> shift);
+            }
+        }
+
+        public void writeString(String string) {
+            final byte[] bytes = utf8(string);
+            writeVarint(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, mBuffer, mPosition, bytes.length);
+            mPosition += bytes.length;
+        }
+
+        public byte[] toByteArray() {
+            final byte[] ret = new byte[mPosition];
+            System.arraycopy(mBuffer, 0, ret, 0, mPosition);
+            return ret;
+        }
+
+        private void ensureCapacity(int needed) {
+            if (mPosition + needed > mBuffer.length) {
+                final byte[] grown = new byte[Math.max(mBuffer.length * 2, mPosition + needed)];
+                System.arraycopy(mBuffer, 0, grown, 0, mPosition);
+                mBuffer = grown;
+            }
+        }
+
+        private byte[] mBuffer = new byte[256];
+        private int mPosition = 0;
+    }
+
+    private static class Reader {
+        public Reader(byte[] buffer) {
+            mBuffer = buffer;
+        }
+
+        public int readByte() throws JSONException {
+            if (mPosition >= mBuffer.length) {
+                throw new JSONException("Truncated record");
+            }
+            return mBuffer[mPosition++] & 0xFF;
+        }
+
+        public long readVarint() throws JSONException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new JSONException("Malformed varint");
+        }
+
+        public long readLong() throws JSONException {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | readByte();
+            }
+            return value;
+        }
+
+        public String readString() throws JSONException {
+            final long length = readVarint();
+            if (length < 0 || length > mBuffer.length - mPosition) {
+                throw new JSONException("Truncated record");
+            }
+            try {
+                final String ret = new String(mBuffer, mPosition, (int) length, "UTF-8");
+                mPosition += (int) length;
+                return ret;
+            } catch (final UnsupportedEncodingException e) {
+                throw new RuntimeException("UTF not supported on this platform?", e);
+            }
+        }
+
+        private final byte[] mBuffer;
+        private int mPosition;
+    }
+
+    private static byte[] utf8(String string) {
+        try {
+            return string.getBytes("UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF not supported on this platform?", e);
+        }
+    }
+
+    private static final byte FORMAT_VERSION = 1;
+
+    // Records nest a few levels at most, this only keeps a corrupt row from overflowing the stack
+    private static final int MAX_DEPTH = 512;
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_FALSE = 1;
+    private static final int TAG_TRUE = 2;
+    private static final int TAG_INT = 3;
+    private static final int TAG_DOUBLE = 4;
+    private static final int TAG_STRING = 5;
+    private static final int TAG_INTERNED = 6;
+    private static final int TAG_OBJECT = 7;
+    private static final int TAG_ARRAY = 8;
+    private static final int TAG_NUMBER_TEXT = 9;
+
+    // Stored records refer to these by position: only ever append to this list, and bump
+    // FORMAT_VERSION if an entry has to change. Fewer than 128 entries keeps each one a single byte.
+    private static final String[] INTERNED = {
+        "event", "properties", "token", "distinct_id", "time", "$mp_metadata",
+        "$mp_event_id", "$mp_session_id", "$mp_session_seq_id", "$mp_session_start_sec",
+        "mp_lib", "android", "$lib_version", "$os", "Android", "$os_version",
+        "$manufacturer", "$brand", "$model", "$google_play_services", "available",
+        "$screen_dpi", "$screen_height", "$screen_width", "$app_version", "$app_version_string",
+        "$app_release", "$app_build_number", "$has_nfc", "$has_telephone", "$carrier",
+        "$wifi", "$radio", "$bluetooth_enabled", "$bluetooth_version", "$device_id",
+        "$user_id", "$had_persisted_distinct_id", "$duration", "$token", "$distinct_id",
+        "$time", "$set", "$set_once", "$add", "$append", "$union", "$remove", "$unset",
+        "$delete", "$group_key", "$group_id", "$transactions", "$amount",
+        "$android_devices", "$android_app_version", "$android_app_version_code",
+        "mp_country_code", "$ae_first_open", "$ae_session", "$ae_session_length",
+        "$ae_updated", "$ae_crashed", "$identify", "$create_alias", "$merge", "$opt_in",
+    };
+
+    private static final Map<String, Integer> INTERNED_INDEXES = new HashMap<>();
+    static {
+        for (int i = 0; i < INTERNED.length; i++) {
+            INTERNED_INDEXES.put(INTERNED[i], i);
+        }
+    }
+}
@@ -123,7 +123,8 @@ import java.util.Set;
         mUpdatesFromMmp.storeVariants(mVariants);
 
         if (mAutomaticEventsEnabled == null && !automaticEvents) {
-            MPDbAdapter.getInstance(mContext).cleanupAutomaticEvents(mToken);
+            // On the worker, which may hand it to the process owning the queue
+            AnalyticsMessages.getInstance(mContext).cleanupAutomaticEventsMessage(mToken);
         }
         mAutomaticEventsEnabled = automaticEvents;
 
@@ -0,0 +1,97 @@
+package com.mmp.android.mpmetrics;
+
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recognizes events tracked again with the same name, distinct id and properties within a short
+ * window, as apps tracking from tight loops tend to do.
+ *
+ * <p>Events are compared by a 64-bit hash of their project token, name and properties, leaving out
+ * the tracking time, and only the most recent events are remembered. Properties shared by every
+ * event are compared by version rather than by value. Each repeat pushes the window
+ * forward, so an event tracked continuously is kept once per quiet period.
+ *
+ * <p>Only used from the worker thread, but the counters can be read from any thread.
+ */
+/* package */ class DuplicateEventFilter {
+
+    /* package */ DuplicateEventFilter(long windowMillis) {
+        mWindowMillis = windowMillis;
+    }
+
+    /**
+     * @param propertiesVersion identifies the properties added to every event, such as super properties
+     * @param encodedProperties properties given as JSON text, or null
+     * @param now the current {@link android.os.SystemClock#elapsedRealtime()}
+     * @return true if the event should be dropped
+     */
+    public boolean isDuplicate(String token, String eventName, String propertiesVersion, JSONObject properties, String encodedProperties, long now) {
+        if (mWindowMillis <= 0) {
+            return false;
+        }
+
+        final StringBuilder fingerprint = new StringBuilder();
+        fingerprint.append(token).append('\u0000').append(eventName).append('\u0000').append(propertiesVersion).append('\u0000');
+        if (null != properties) {
+            for (final Iterator<String> keys = properties.keys(); keys.hasNext();) {
+                final String key = keys.next();
+                if (!"time".equals(key)) {
+                    fingerprint.append(key).append('=').append(properties.opt(key)).append('\u0000');
+                }
+            }
+        }
+        if (null != encodedProperties) {
+            fingerprint.append(encodedProperties);
+        }
+
+        final byte[] bytes;
+        try {
+            bytes = fingerprint.toString().getBytes("UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF not supported on this platform?", e);
+        }
+        long hash = FNV_OFFSET_BASIS;
+        for (final byte b : bytes) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+
+        final Long lastSeen = mRecentEvents.put(hash, now);
+        if (null != lastSeen && now - lastSeen < mWindowMillis) {
+            mDroppedEvents.incrementAndGet();
+            mSavedBytes.addAndGet(bytes.length);
+            return true;
+        }
+        return false;
+    }
+
+    // Events dropped so far.
+    public long getDroppedEventCount() {
+        return mDroppedEvents.get();
+    }
+
+    // Approximate bytes of event names and properties that weren't queued or uploaded.
+    public long getSavedBytes() {
+        return mSavedBytes.get();
+    }
+
+    private final long mWindowMillis;
+    private final AtomicLong mDroppedEvents = new AtomicLong();
+    private final AtomicLong mSavedBytes = new AtomicLong();
+    private final Map<Long, Long> mRecentEvents = new LinkedHashMap<Long, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+            return size() > MAX_REMEMBERED_EVENTS;
+        }
+    };
+
+    private static final int MAX_REMEMBERED_EVENTS = 256;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+}
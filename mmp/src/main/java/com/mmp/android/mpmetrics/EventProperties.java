@@ -0,0 +1,310 @@
+package com.mmp.android.mpmetrics;
+
+import com.mmp.android.util.MPLog;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Properties of an event or people update, built from primitive values and written straight to
+ * JSON text instead of going through a {@link JSONObject}.
+ *
+ * <p>Meant for events tracked very often, where boxing every value and building a JSONObject for
+ * each call adds up. Builders are pooled, so a typical call looks like this:
+ *
+ *<pre>
+ *{@code
+ *
+ * EventProperties properties = EventProperties.obtain()
+ *         .putString("Screen", "Checkout")
+ *         .putLong("Items", itemCount)
+ *         .putDouble("Total", total);
+ * mmp.trackProperties("Viewed Cart", properties);
+ * properties.recycle();
+ *}
+ *</pre>
+ *
+ * <p>The properties are copied when they're tracked, so a builder can be cleared, reused or
+ * recycled right away. Putting a name twice keeps the latest value. Not thread safe.
+ */
+public class EventProperties {
+
+    /**
+     * @return an empty builder, from the pool if one is available
+     */
+    public static EventProperties obtain() {
+        synchronized (sPoolLock) {
+            final EventProperties ret = sPool;
+            if (null != ret) {
+                sPool = ret.mNext;
+                ret.mNext = null;
+                sPoolSize--;
+                return ret;
+            }
+        }
+        return new EventProperties();
+    }
+
+    public EventProperties() {
+        mText = new StringBuilder(INITIAL_CAPACITY);
+        mNames = new ArrayList<>();
+        mOffsets = new int[INITIAL_PROPERTIES];
+    }
+
+    /**
+     * Clears the builder and returns it to the pool. It must not be used afterwards.
+     */
+    public void recycle() {
+        clear();
+        if (mText.capacity() > MAX_POOLED_CAPACITY) {
+            return; // Don't hold on to the memory of an unusually large event
+        }
+        synchronized (sPoolLock) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                mNext = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
+
+    public EventProperties clear() {
+        mText.setLength(0);
+        mNames.clear();
+        return this;
+    }
+
+    public EventProperties putLong(String name, long value) {
+        if (startProperty(name)) {
+            mText.append(value);
+        }
+        return this;
+    }
+
+    /**
+     * NaN and infinite values can't be sent to Mmp, and are left out.
+     */
+    public EventProperties putDouble(String name, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            MPLog.w(LOGTAG, "Property " + name + " is " + value + ", which can't be sent to Mmp");
+            return this;
+        }
+        if (startProperty(name)) {
+            // Same as JSONObject, which writes whole numbers without a fraction. The cast clamps
+            // 2^63 and above to Long.MAX_VALUE, which compares equal to 2^63 as a double.
+            final long asLong = (long) value;
+            if (value == asLong && asLong != Long.MAX_VALUE) {
+                mText.append(asLong);
+            } else {
+                mText.append(value);
+            }
+        }
+        return this;
+    }
+
+    public EventProperties putBoolean(String name, boolean value) {
+        if (startProperty(name)) {
+            mText.append(value);
+        }
+        return this;
+    }
+
+    /**
+     * @param value the value, or null to send a JSON null
+     */
+    public EventProperties putString(String name, String value) {
+        if (startProperty(name)) {
+            if (null == value) {
+                mText.append("null");
+            } else {
+                appendQuoted(mText, value);
+            }
+        }
+        return this;
+    }
+
+    public int size() {
+        return mNames.size();
+    }
+
+    public JSONObject toJSONObject() {
+        try {
+            return new JSONObject(encode().toJSONString());
+        } catch (final JSONException e) {
+            // Everything we write is valid JSON
+            throw new RuntimeException("Could not read back event properties", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return encode().toJSONString();
+    }
+
+    /**
+     * @return an immutable copy of the properties
+     */
+    /* package */ Encoded encode() {
+        final String text = mText.length() == 0 ? "" : mText.substring(1);
+        return new Encoded(text, mNames.toArray(new String[mNames.size()]));
+    }
+
+    // Writes the separator and name of a property, dropping any earlier value it had.
+    private boolean startProperty(String name) {
+        if (null == name) {
+            MPLog.w(LOGTAG, "Can't have null names in event properties");
+            return false;
+        }
+
+        final int existing = mNames.indexOf(name);
+        if (existing >= 0) {
+            final int start = mOffsets[existing];
+            final int end = existing + 1 < mNames.size() ? mOffsets[existing + 1] : mText.length();
+            mText.delete(start, end);
+            mNames.remove(existing);
+            for (int i = existing; i < mNames.size(); i++) {
+                mOffsets[i] = mOffsets[i + 1] - (end - start);
+            }
+        }
+
+        if (mNames.size() == mOffsets.length) {
+            mOffsets = Arrays.copyOf(mOffsets, mOffsets.length * 2);
+        }
+        mOffsets[mNames.size()] = mText.length();
+        mNames.add(name);
+        mText.append(',');
+        appendQuoted(mText, name);
+        mText.append(':');
+        return true;
+    }
+
+    // Escapes the same characters as org.json, apart from '/', which doesn't need it.
+    /* package */ static void appendQuoted(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0, length = value.length(); i < length; i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                    out.append('\\').append(c);
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '\b':
+                    out.append("\\b");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\f':
+                    out.append("\\f");
+                    break;
+                default:
+                    if (c <= 0x1F || c == 0x2028 || c == 0x2029) {
+                        out.append("\\u");
+                        final String hex = Integer.toHexString(c);
+                        for (int pad = hex.length(); pad < 4; pad++) {
+                            out.append('0');
+                        }
+                        out.append(hex);
+                    } else {
+                        out.append(c);
+                    }
+                    break;
+            }
+        }
+        out.append('"');
+    }
+
+    /**
+     * Properties as tracked: the members of a JSON object, without the braces, and their names.
+     */
+    /* package */ static class Encoded {
+        /* package */ Encoded(String text, String[] names) {
+            mText = text;
+            mNames = names;
+        }
+
+        // Empty if there are no properties
+        public String getText() {
+            return mText;
+        }
+
+        public String[] getNames() {
+            return mNames;
+        }
+
+        public String toJSONString() {
+            return "{" + mText + "}";
+        }
+
+        /**
+         * Writes an event record the way a JSONObject with the event name, the properties merged
+         * with these and the metadata would be written, without parsing these. Properties with
+         * the name of one of these are removed from properties, these take their place.
+         */
+        public String toEventText(String eventName, JSONObject properties, JSONObject metadata) {
+            for (final String name : mNames) {
+                properties.remove(name);
+            }
+
+            final String base = properties.toString();
+            final StringBuilder text = new StringBuilder(base.length() + mText.length() + 256);
+            text.append('{');
+            if (null != eventName) {
+                text.append("\"event\":");
+                appendQuoted(text, eventName);
+                text.append(',');
+            }
+            // The properties object without its closing brace, followed by these
+            text.append("\"properties\":").append(base, 0, base.length() - 1);
+            if (mText.length() > 0) {
+                text.append(properties.length() > 0 ? "," : "").append(mText);
+            }
+            text.append('}');
+            if (null != metadata) {
+                text.append(",\"$mp_metadata\":").append(metadata.toString());
+            }
+            return text.append('}').toString();
+        }
+
+        // Parses the properties, for the paths that need them as objects.
+        public void addTo(JSONObject ob) throws JSONException {
+            if (mNames.length == 0) {
+                return;
+            }
+            final JSONObject properties = new JSONObject(toJSONString());
+            for (final String name : mNames) {
+                ob.put(name, properties.get(name));
+            }
+        }
+
+        private final String mText;
+        private final String[] mNames;
+    }
+
+    // Every property starts with a comma, dropped when the text is encoded
+    private final StringBuilder mText;
+    private final List<String> mNames;
+    private int[] mOffsets; // Where each property starts in mText
+    private EventProperties mNext;
+
+    private static final Object sPoolLock = new Object();
+    private static EventProperties sPool;
+    private static int sPoolSize;
+
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int INITIAL_PROPERTIES = 16;
+    private static final int MAX_POOLED_CAPACITY = 16 * 1024;
+    private static final int MAX_POOL_SIZE = 8;
+
+    private static final String LOGTAG = "MmpAPI.EventProperties";
+}
@@ -0,0 +1,271 @@
+package com.mmp.android.mpmetrics;
+
+import com.mmp.android.util.MPLog;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Counts the events, people and group updates handed to the worker and not yet picked up, and
+ * decides what happens to new ones once there are too many, see MPConfig.IngestionQueueCapacity.
+ *
+ * <p>Tracking threads call {@link #admit} before posting a message to the worker, and the worker
+ * calls {@link #release} when it takes the message off its queue. A batch counts as one record
+ * per event. Thread safe.
+ */
+/* package */ class IngestionQueue {
+
+    /**
+     * What happens to records tracked while the queue is full, see com.mmp.android.MPConfig.IngestionQueuePolicy.
+     */
+    public enum Policy {
+        BLOCK ("block"),
+        DROP_NEWEST ("drop_newest"),
+        DROP_AUTOMATIC_FIRST ("drop_automatic_first"),
+        SPILL_TO_DISK ("spill_to_disk");
+
+        Policy(String name) {
+            mPolicyName = name;
+        }
+
+        public String getName() {
+            return mPolicyName;
+        }
+
+        public static Policy fromName(String name) {
+            for (final Policy policy : values()) {
+                if (policy.mPolicyName.equals(name)) {
+                    return policy;
+                }
+            }
+            MPLog.w(LOGTAG, "Unknown ingestion queue policy " + name + ", using " + DROP_AUTOMATIC_FIRST.getName());
+            return DROP_AUTOMATIC_FIRST;
+        }
+
+        private final String mPolicyName;
+    }
+
+    public enum Admission {
+        ADMITTED, // post the message to the worker
+        DROPPED, // discard the records
+        SPILL // write the records to disk instead
+    }
+
+    public interface EvictionListener {
+        /**
+         * Called, without any lock held, with an automatic event whose records were dropped to make
+         * room. The worker skips it if it's still queued, but it's best removed from the queue.
+         */
+        void onEvicted(Object item);
+    }
+
+    /**
+     * @param capacity the most records waiting at once, or 0 for no limit
+     */
+    /* package */ IngestionQueue(int capacity, Policy policy, long blockTimeoutMillis, EvictionListener evictionListener) {
+        mCapacity = capacity;
+        mPolicy = policy;
+        mBlockTimeoutMillis = blockTimeoutMillis;
+        mEvictionListener = evictionListener;
+    }
+
+    /**
+     * Makes room for records about to be handed to the worker, according to the policy.
+     *
+     * @param item the message object, the same one later passed to {@link #release}
+     * @param records the number of records it holds
+     * @param isAutomatic true if the item is a single automatic event
+     * @param isUpdate true if the item is a people or group update, which DROP_AUTOMATIC_FIRST
+     *                 never drops: it's let through over the capacity if no automatic event can go
+     * @param mayBlock false on the worker thread, which must never wait for itself, and on the main thread
+     */
+    public Admission admit(Object item, int records, boolean isAutomatic, boolean isUpdate, boolean mayBlock) {
+        Object evicted = null;
+        boolean firstDrop = false;
+        try {
+            synchronized (mLock) {
+                if (!hasRoom(records) && mPolicy == Policy.BLOCK && mayBlock) {
+                    long remaining = mBlockTimeoutMillis;
+                    final long deadline = System.currentTimeMillis() + remaining;
+                    while (!hasRoom(records) && remaining > 0) {
+                        try {
+                            mLock.wait(remaining);
+                        } catch (final InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                        remaining = deadline - System.currentTimeMillis();
+                    }
+                }
+
+                if (!hasRoom(records)) {
+                    if (mPolicy == Policy.SPILL_TO_DISK) {
+                        mSpilledRecords += records;
+                        mSpillPending = true;
+                        return Admission.SPILL;
+                    }
+                    if (mPolicy == Policy.DROP_AUTOMATIC_FIRST && !isAutomatic && !mQueuedAutomatic.isEmpty()) {
+                        evicted = mQueuedAutomatic.poll();
+                        mEvicted.add(evicted);
+                        mDepth--;
+                        firstDrop |= countDropped(1);
+                    }
+                    if (!hasRoom(records) && !(isUpdate && mPolicy == Policy.DROP_AUTOMATIC_FIRST)) {
+                        firstDrop |= countDropped(records);
+                        return Admission.DROPPED;
+                    }
+                }
+
+                mDepth += records;
+                mHighWaterMark = Math.max(mHighWaterMark, mDepth);
+                if (isAutomatic && mPolicy == Policy.DROP_AUTOMATIC_FIRST) {
+                    mQueuedAutomatic.add(item);
+                }
+                return Admission.ADMITTED;
+            }
+        } finally {
+            if (firstDrop) {
+                warnAboutDrops();
+            }
+            if (null != evicted) {
+                mEvictionListener.onEvicted(evicted);
+            }
+        }
+    }
+
+    /**
+     * Called by the worker as it takes an admitted item off its queue, or when it removed one
+     * without handling it.
+     *
+     * @return false if the item was evicted, and shouldn't be handled
+     */
+    public boolean release(Object item, int records) {
+        synchronized (mLock) {
+            if (mEvicted.remove(item)) {
+                return false;
+            }
+            if (mPolicy == Policy.DROP_AUTOMATIC_FIRST) {
+                removeQueuedAutomatic(item);
+            }
+            mDepth -= records;
+            mLock.notifyAll();
+            return true;
+        }
+    }
+
+    // Spilled records that couldn't be written are counted as dropped instead.
+    public void spillFailed(int records) {
+        final boolean firstDrop;
+        synchronized (mLock) {
+            mSpilledRecords -= records;
+            firstDrop = countDropped(records);
+        }
+        if (firstDrop) {
+            warnAboutDrops();
+        }
+    }
+
+    // For an evicted item the worker removed from its queue before taking it.
+    public void forget(Object item) {
+        synchronized (mLock) {
+            mEvicted.remove(item);
+        }
+    }
+
+    /**
+     * @return true, once, when records were spilled and the queue has drained enough to read them back
+     */
+    public boolean takeSpillDrain() {
+        synchronized (mLock) {
+            if (mSpillPending && mDepth <= mCapacity / 2) {
+                mSpillPending = false;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    public Policy getPolicy() {
+        return mPolicy;
+    }
+
+    // Records handed to the worker and not picked up yet.
+    public int getDepth() {
+        synchronized (mLock) {
+            return mDepth;
+        }
+    }
+
+    // The most records that have been waiting at once.
+    public int getHighWaterMark() {
+        synchronized (mLock) {
+            return mHighWaterMark;
+        }
+    }
+
+    // Records dropped because the queue was full, including evicted automatic events.
+    public long getDroppedCount() {
+        synchronized (mLock) {
+            return mDroppedRecords;
+        }
+    }
+
+    // Records written to disk because the queue was full.
+    public long getSpilledCount() {
+        synchronized (mLock) {
+            return mSpilledRecords;
+        }
+    }
+
+    // Under mLock. Returns true the first time records are dropped.
+    private boolean countDropped(int records) {
+        mDroppedRecords += records;
+        if (mWarnedAboutDrops) {
+            return false;
+        }
+        mWarnedAboutDrops = true;
+        return true;
+    }
+
+    // Logged once whatever the log level, later drops only show up in debug logging and in the
+    // dropped count.
+    private void warnAboutDrops() {
+        MPLog.w(LOGTAG, "Records are being tracked faster than they can be stored, so the ingestion queue (" + mCapacity + " records, " +
+                mPolicy.getName() + ") is dropping some of them. Raise com.mmp.android.MPConfig.IngestionQueueCapacity or choose another " +
+                "com.mmp.android.MPConfig.IngestionQueuePolicy to keep them.");
+    }
+
+    private boolean hasRoom(int records) {
+        // An item larger than the whole queue still goes through once the queue is empty
+        return mCapacity <= 0 || mDepth == 0 || mDepth + records <= mCapacity;
+    }
+
+    private void removeQueuedAutomatic(Object item) {
+        // Items are nearly always released in the order they were admitted
+        for (final Iterator<Object> iter = mQueuedAutomatic.iterator(); iter.hasNext();) {
+            if (iter.next() == item) {
+                iter.remove();
+                return;
+            }
+        }
+    }
+
+    private final int mCapacity;
+    private final Policy mPolicy;
+    private final long mBlockTimeoutMillis;
+    private final EvictionListener mEvictionListener;
+    private final Object mLock = new Object();
+    private final ArrayDeque<Object> mQueuedAutomatic = new ArrayDeque<>(); // Only with DROP_AUTOMATIC_FIRST
+    private final Set<Object> mEvicted = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+    private int mDepth;
+    private int mHighWaterMark;
+    private long mDroppedRecords;
+    private boolean mWarnedAboutDrops;
+    private long mSpilledRecords;
+    private boolean mSpillPending;
+
+    private static final String LOGTAG = "MmpAPI.IngestionQueue";
+}
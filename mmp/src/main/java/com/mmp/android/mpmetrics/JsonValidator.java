@@ -0,0 +1,205 @@
+package com.mmp.android.mpmetrics;
+
+/**
+ * Checks that stored record text is a complete JSON object without building one.
+ *
+ * <p>Upload batches are assembled by copying the stored text of each record, so a row that was cut
+ * short or corrupted on disk would make the whole batch invalid, and the batch would fail and be
+ * retried forever. This walks the text once, allocating nothing, and follows the JSON grammar
+ * closely enough to reject anything org.json wouldn't parse as an object.
+ */
+/* package */ class JsonValidator {
+
+    private JsonValidator() {
+    }
+
+    /**
+     * @return true if the text is exactly one JSON object, optionally surrounded by whitespace
+     */
+    public static boolean isObject(CharSequence text) {
+        if (text == null) {
+            return false;
+        }
+        int i = skipWhitespace(text, 0);
+        if (i >= text.length() || text.charAt(i) != '{') {
+            return false;
+        }
+        i = value(text, i, 0);
+        return i >= 0 && skipWhitespace(text, i) == text.length();
+    }
+
+    // Returns the index after the value starting at i, or -1 if there isn't a valid one.
+    private static int value(CharSequence text, int i, int depth) {
+        if (i >= text.length() || depth > MAX_DEPTH) {
+            return -1;
+        }
+        final char c = text.charAt(i);
+        switch (c) {
+            case '{':
+                return object(text, i, depth + 1);
+            case '[':
+                return array(text, i, depth + 1);
+            case '"':
+                return string(text, i);
+            case 't':
+                return literal(text, i, "true");
+            case 'f':
+                return literal(text, i, "false");
+            case 'n':
+                return literal(text, i, "null");
+            default:
+                return c == '-' || (c >= '0' && c <= '9') ? number(text, i) : -1;
+        }
+    }
+
+    private static int object(CharSequence text, int i, int depth) {
+        i = skipWhitespace(text, i + 1);
+        if (i < text.length() && text.charAt(i) == '}') {
+            return i + 1;
+        }
+        while (true) {
+            if (i >= text.length() || text.charAt(i) != '"') {
+                return -1;
+            }
+            i = skipWhitespace(text, string(text, i));
+            if (i < 0 || i >= text.length() || text.charAt(i) != ':') {
+                return -1;
+            }
+            i = value(text, skipWhitespace(text, i + 1), depth);
+            if (i < 0) {
+                return -1;
+            }
+            i = skipWhitespace(text, i);
+            if (i >= text.length()) {
+                return -1;
+            }
+            if (text.charAt(i) == '}') {
+                return i + 1;
+            }
+            if (text.charAt(i) != ',') {
+                return -1;
+            }
+            i = skipWhitespace(text, i + 1);
+        }
+    }
+
+    private static int array(CharSequence text, int i, int depth) {
+        i = skipWhitespace(text, i + 1);
+        if (i < text.length() && text.charAt(i) == ']') {
+            return i + 1;
+        }
+        while (true) {
+            i = value(text, i, depth);
+            if (i < 0) {
+                return -1;
+            }
+            i = skipWhitespace(text, i);
+            if (i >= text.length()) {
+                return -1;
+            }
+            if (text.charAt(i) == ']') {
+                return i + 1;
+            }
+            if (text.charAt(i) != ',') {
+                return -1;
+            }
+            i = skipWhitespace(text, i + 1);
+        }
+    }
+
+    private static int string(CharSequence text, int i) {
+        if (i < 0) {
+            return -1;
+        }
+        for (i = i + 1; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c == '"') {
+                return i + 1;
+            } else if (c == '\\') {
+                if (++i >= text.length()) {
+                    return -1;
+                }
+                final char escaped = text.charAt(i);
+                if (escaped == 'u') {
+                    for (int hex = 0; hex < 4; hex++) {
+                        if (++i >= text.length() || Character.digit(text.charAt(i), 16) < 0) {
+                            return -1;
+                        }
+                    }
+                } else if ("\"\\/bfnrt".indexOf(escaped) < 0) {
+                    return -1;
+                }
+            } else if (c < 0x20) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static int number(CharSequence text, int i) {
+        final int start = i;
+        if (text.charAt(i) == '-') {
+            i++;
+        }
+        final int integerStart = i;
+        i = digits(text, i);
+        if (i == integerStart) {
+            return -1;
+        }
+        if (i < text.length() && text.charAt(i) == '.') {
+            final int fractionStart = i + 1;
+            i = digits(text, fractionStart);
+            if (i == fractionStart) {
+                return -1;
+            }
+        }
+        if (i < text.length() && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+            i++;
+            if (i < text.length() && (text.charAt(i) == '+' || text.charAt(i) == '-')) {
+                i++;
+            }
+            final int exponentStart = i;
+            i = digits(text, i);
+            if (i == exponentStart) {
+                return -1;
+            }
+        }
+        return i > start ? i : -1;
+    }
+
+    private static int digits(CharSequence text, int i) {
+        while (i < text.length() && text.charAt(i) >= '0' && text.charAt(i) <= '9') {
+            i++;
+        }
+        return i;
+    }
+
+    private static int literal(CharSequence text, int i, String literal) {
+        if (i + literal.length() > text.length()) {
+            return -1;
+        }
+        for (int j = 0; j < literal.length(); j++) {
+            if (text.charAt(i + j) != literal.charAt(j)) {
+                return -1;
+            }
+        }
+        return i + literal.length();
+    }
+
+    private static int skipWhitespace(CharSequence text, int i) {
+        if (i < 0) {
+            return -1;
+        }
+        while (i < text.length()) {
+            final char c = text.charAt(i);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    // Records nest a few levels at most, this only keeps corrupt input from overflowing the stack
+    private static final int MAX_DEPTH = 512;
+}
@@ -35,12 +35,36 @@ import javax.net.ssl.SSLSocketFactory;
  *     <dt>com.mmp.android.MPConfig.BulkUploadLimit</dt>
  *     <dd>An integer count of messages, the maximum number of messages to queue before an upload attempt. This value should be less than 50.</dd>
  *
+ *     <dt>com.mmp.android.MPConfig.UploadBatchByteLimit</dt>
+ *     <dd>An integer number of bytes, the approximate maximum size of the records sent in a single upload request. A record larger than this is still sent, on its own. Defaults to 256 KB.</dd>
+ *
+ *     <dt>com.mmp.android.MPConfig.IngestionBatchSize</dt>
+ *     <dd>An integer count of records, the maximum number of tracked events, people and group updates the worker stages in memory before writing them to the database in a single transaction. Defaults to 50.</dd>
+ *
+ *     <dt>com.mmp.android.MPConfig.IngestionLingerTime</dt>
+ *     <dd>An integer number of milliseconds, the maximum time a staged record waits for more records before the batch is written. 0 writes as soon as the records already queued have been staged. Defaults to 0.</dd>
+ *
+ *     <dt>com.mmp.android.MPConfig.DuplicateEventWindow</dt>
+ *     <dd>An integer number of milliseconds. An event tracked with the same name, distinct id and properties as one tracked less than this long before is dropped instead of queued. Defaults to 0, which keeps every event.</dd>
+ *
+ *     <dt>com.mmp.android.MPConfig.IngestionQueueCapacity</dt>
+ *     <dd>An integer count of records, the maximum number of tracked events, people and group updates waiting in memory for the worker. Once it's reached, new records are handled according to IngestionQueuePolicy. Defaults to 5000. 0 means no limit, which lets a tracking loop that outpaces the worker grow the heap without bound.</dd>
+ *
+ *     <dt>com.mmp.android.MPConfig.IngestionQueuePolicy</dt>
+ *     <dd>A string, what to do with records tracked while the ingestion queue is full: "block" makes the tracking thread wait up to IngestionQueueBlockTimeout for room and then drops the record (the main thread drops it without waiting), "drop_newest" drops it, "drop_automatic_first" drops the oldest waiting automatic event to make room, or the new event if there is none, and never drops people or group updates, and "spill_to_disk" writes it to a file that the worker reads back once it has caught up. The file is written on the tracking thread, so tracking from the main thread does disk I/O while the queue is full. The first time records are dropped a warning is logged. Defaults to "drop_automatic_first".</dd>
+ *
+ *     <dt>com.mmp.android.MPConfig.IngestionQueueBlockTimeout</dt>
+ *     <dd>An integer number of milliseconds, the longest a tracking thread waits for room in the ingestion queue with the "block" policy. Defaults to 100.</dd>
+ *
  *     <dt>com.mmp.android.MPConfig.FlushInterval</dt>
  *     <dd>An integer number of milliseconds, the maximum time to wait before an upload if the bulk upload limit isn't reached.</dd>
  *
  *     <dt>com.mmp.android.MPConfig.FlushOnBackground</dt>
  *     <dd>A boolean value. If false, the library will not flush the event and people queues when the app goes into the background. Defaults to true.</dd>
  *
+ *     <dt>com.mmp.android.MPConfig.GzipBatchUploads</dt>
+ *     <dd>A boolean value. If true, event, people and group batches are uploaded as a gzip compressed JSON request body instead of a base64 encoded form parameter. Your endpoints must accept Content-Encoding: gzip. Defaults to false.</dd>
+ *
  *     <dt>com.mmp.android.MPConfig.DebugFlushInterval</dt>
  *     <dd>An integer number of milliseconds, the maximum time to wait before an upload if the bulk upload limit isn't reached in debug mode.</dd>
  *
@@ -52,6 +76,24 @@ import javax.net.ssl.SSLSocketFactory;
  *          queue based on the storage capacity of the device, but will always allow queing below this limit. Higher values
  *          will take up more storage even when user storage is very full.</dd>
  *
+ *     <dt>com.mmp.android.MPConfig.QueueRowQuota</dt>
+ *     <dd>An integer count of records, the maximum number of events, people or group updates queued per project in each table. Records over the quota are evicted as they're added, according to QueueEvictionPolicy. Defaults to 0, no quota.</dd>
+ *
+ *     <dt>com.mmp.android.MPConfig.QueueByteQuota</dt>
+ *     <dd>An integer number of bytes, the maximum size of the records in the database. Once it's reached, records of the projects being added to are evicted according to QueueEvictionPolicy, and their space is reused. Defaults to 0, no quota.</dd>
+ *
+ *     <dt>com.mmp.android.MPConfig.QueueEvictionPolicy</dt>
+ *     <dd>A string, which records to evict when a quota is reached or the device runs low on storage: "drop_oldest" evicts the oldest records, "drop_automatic_first" evicts the oldest automatic records before any others, and "downsample" evicts every other one of the oldest records, automatic ones first. Whatever the policy, low priority events are evicted before normal ones and critical events last. Defaults to "drop_oldest".</dd>
+ *
+ *     <dt>com.mmp.android.MPConfig.KeepDatabaseOpen</dt>
+ *     <dd>A boolean value. If true, the database connection stays open for the lifetime of the worker thread, uses write-ahead logging and reuses its compiled statements instead of reopening the database for every operation. Defaults to false.</dd>
+ *
+ *     <dt>com.mmp.android.MPConfig.CompactRecordStorage</dt>
+ *     <dd>A boolean value. If true, queued events and people or group updates are stored in a compact binary encoding instead of JSON text, which takes less space and is faster to turn into upload batches. Records already stored in either format stay readable when this changes. Defaults to false.</dd>
+ *
+ *     <dt>com.mmp.android.MPConfig.SegmentedLogQueue</dt>
+ *     <dd>A boolean value. If true, queued events and people or group updates are kept in an append-only log of memory-mapped segment files instead of the SQLite database. Records queued in the other store are not carried over when this changes. Defaults to false.</dd>
+ *
  *     <dt>com.mmp.android.MPConfig.ResourcePackageName</dt>
  *     <dd>A string java package name. Defaults to the package name of the Application. Users should set if the package name of their R class is different from the application package name due to application id settings.</dd>
  *
@@ -235,9 +277,25 @@ public class MPConfig {
         }
 
         mBulkUploadLimit = metaData.getInt("com.mmp.android.MPConfig.BulkUploadLimit", 40); // 40 records default
+        mUploadBatchByteLimit = Math.max(1, metaData.getInt("com.mmp.android.MPConfig.UploadBatchByteLimit", 256 * 1024)); // 256 Kb
         mFlushInterval = metaData.getInt("com.mmp.android.MPConfig.FlushInterval", 60 * 1000); // one minute default
+        mIngestionBatchSize = Math.max(1, metaData.getInt("com.mmp.android.MPConfig.IngestionBatchSize", 50)); // 50 records default
+        mIngestionLingerTime = Math.max(0, metaData.getInt("com.mmp.android.MPConfig.IngestionLingerTime", 0)); // write once the queue is drained
+        mDuplicateEventWindow = Math.max(0, metaData.getInt("com.mmp.android.MPConfig.DuplicateEventWindow", 0)); // keep duplicates
+        mIngestionQueueCapacity = Math.max(0, metaData.getInt("com.mmp.android.MPConfig.IngestionQueueCapacity", 5000)); // 5000 records
+        final String ingestionQueuePolicy = metaData.getString("com.mmp.android.MPConfig.IngestionQueuePolicy");
+        mIngestionQueuePolicy = null == ingestionQueuePolicy ? "drop_automatic_first" : ingestionQueuePolicy;
+        mIngestionQueueBlockTimeout = Math.max(0, metaData.getInt("com.mmp.android.MPConfig.IngestionQueueBlockTimeout", 100)); // 100 ms
         mFlushOnBackground = metaData.getBoolean("com.mmp.android.MPConfig.FlushOnBackground", true);
+        mGzipBatchUploads = metaData.getBoolean("com.mmp.android.MPConfig.GzipBatchUploads", false);
         mMinimumDatabaseLimit = metaData.getInt("com.mmp.android.MPConfig.MinimumDatabaseLimit", 20 * 1024 * 1024); // 20 Mb
+        mQueueRowQuota = Math.max(0, metaData.getInt("com.mmp.android.MPConfig.QueueRowQuota", 0)); // no quota
+        mQueueByteQuota = Math.max(0, metaData.getInt("com.mmp.android.MPConfig.QueueByteQuota", 0)); // no quota
+        final String queueEvictionPolicy = metaData.getString("com.mmp.android.MPConfig.QueueEvictionPolicy");
+        mQueueEvictionPolicy = null == queueEvictionPolicy ? "drop_oldest" : queueEvictionPolicy;
+        mKeepDatabaseOpen = metaData.getBoolean("com.mmp.android.MPConfig.KeepDatabaseOpen", false);
+        mCompactRecordStorage = metaData.getBoolean("com.mmp.android.MPConfig.CompactRecordStorage", false);
+        mSegmentedLogQueue = metaData.getBoolean("com.mmp.android.MPConfig.SegmentedLogQueue", false);
         mResourcePackageName = metaData.getString("com.mmp.android.MPConfig.ResourcePackageName"); // default is null
         mDisableGestureBindingUI = metaData.getBoolean("com.mmp.android.MPConfig.DisableGestureBindingUI", false);
         mDisableEmulatorBindingUI = metaData.getBoolean("com.mmp.android.MPConfig.DisableEmulatorBindingUI", false);
@@ -333,16 +391,56 @@ public class MPConfig {
         return mBulkUploadLimit;
     }
 
+    // Approximate max size of the records in a single upload. The number of records per upload adapts to the network.
+    public int getUploadBatchByteLimit() {
+        return mUploadBatchByteLimit;
+    }
+
     // Target max milliseconds between flushes. This is advisory.
     public int getFlushInterval() {
         return mFlushInterval;
     }
 
+    // Max number of records staged by the worker before they're written to the DB in one transaction.
+    public int getIngestionBatchSize() {
+        return mIngestionBatchSize;
+    }
+
+    // Max milliseconds a staged record waits for more records before the batch is written.
+    public int getIngestionLingerTime() {
+        return mIngestionLingerTime;
+    }
+
+    // Drop events identical to one tracked less than this many milliseconds ago, or 0 to keep them all.
+    public int getDuplicateEventWindow() {
+        return mDuplicateEventWindow;
+    }
+
+    // Max number of records waiting in memory for the worker, or 0 for no limit.
+    public int getIngestionQueueCapacity() {
+        return mIngestionQueueCapacity;
+    }
+
+    // What happens to records tracked while the ingestion queue is full: "block", "drop_newest", "drop_automatic_first" or "spill_to_disk".
+    public String getIngestionQueuePolicy() {
+        return mIngestionQueuePolicy;
+    }
+
+    // Max milliseconds a tracking thread waits for room in the ingestion queue with the "block" policy.
+    public int getIngestionQueueBlockTimeout() {
+        return mIngestionQueueBlockTimeout;
+    }
+
     // Whether the SDK should flush() queues when the app goes into the background or not.
     public boolean getFlushOnBackground() {
         return mFlushOnBackground;
     }
 
+    // Whether upload batches are sent as a gzip compressed JSON body instead of a base64 form parameter.
+    public boolean getGzipBatchUploads() {
+        return mGzipBatchUploads;
+    }
+
     // Throw away records that are older than this in milliseconds. Should be below the server side age limit for events.
     public long getDataExpiration() {
         return mDataExpiration;
@@ -350,6 +448,36 @@ public class MPConfig {
 
     public int getMinimumDatabaseLimit() { return mMinimumDatabaseLimit; }
 
+    // Evict records of a project once a table holds more than this many of them, or 0 for no quota.
+    public int getQueueRowQuota() {
+        return mQueueRowQuota;
+    }
+
+    // Evict records once the records in the database take up more than this many bytes, or 0 for no quota.
+    public int getQueueByteQuota() {
+        return mQueueByteQuota;
+    }
+
+    // Which records are evicted first: "drop_oldest", "drop_automatic_first" or "downsample".
+    public String getQueueEvictionPolicy() {
+        return mQueueEvictionPolicy;
+    }
+
+    // Whether the worker keeps a single write-ahead logged connection open instead of reopening the DB per operation.
+    public boolean getKeepDatabaseOpen() {
+        return mKeepDatabaseOpen;
+    }
+
+    // Whether new records are stored in the compact binary encoding instead of JSON text.
+    public boolean getCompactRecordStorage() {
+        return mCompactRecordStorage;
+    }
+
+    // Whether records are queued in memory-mapped segment files instead of SQLite.
+    public boolean getSegmentedLogQueue() {
+        return mSegmentedLogQueue;
+    }
+
     public boolean getDisableGestureBindingUI() {
         return mDisableGestureBindingUI;
     }
@@ -554,9 +682,22 @@ public class MPConfig {
         return "Mmp (" + VERSION + ") configured with:\n" +
                 "    AutoShowMmpUpdates " + getAutoShowMmpUpdates() + "\n" +
                 "    BulkUploadLimit " + getBulkUploadLimit() + "\n" +
+                "    UploadBatchByteLimit " + getUploadBatchByteLimit() + "\n" +
                 "    FlushInterval " + getFlushInterval() + "\n" +
+                "    IngestionBatchSize " + getIngestionBatchSize() + "\n" +
+                "    IngestionLingerTime " + getIngestionLingerTime() + "\n" +
+                "    DuplicateEventWindow " + getDuplicateEventWindow() + "\n" +
+                "    IngestionQueueCapacity " + getIngestionQueueCapacity() + "\n" +
+                "    IngestionQueuePolicy " + getIngestionQueuePolicy() + "\n" +
+                "    IngestionQueueBlockTimeout " + getIngestionQueueBlockTimeout() + "\n" +
                 "    DataExpiration " + getDataExpiration() + "\n" +
                 "    MinimumDatabaseLimit " + getMinimumDatabaseLimit() + "\n" +
+                "    QueueRowQuota " + getQueueRowQuota() + "\n" +
+                "    QueueByteQuota " + getQueueByteQuota() + "\n" +
+                "    QueueEvictionPolicy " + getQueueEvictionPolicy() + "\n" +
+                "    KeepDatabaseOpen " + getKeepDatabaseOpen() + "\n" +
+                "    CompactRecordStorage " + getCompactRecordStorage() + "\n" +
+                "    SegmentedLogQueue " + getSegmentedLogQueue() + "\n" +
                 "    DisableAppOpenEvent " + getDisableAppOpenEvent() + "\n" +
                 "    DisableViewCrawler " + getDisableViewCrawler() + "\n" +
                 "    DisableGestureBindingUI " + getDisableGestureBindingUI() + "\n" +
@@ -578,14 +719,29 @@ public class MPConfig {
                 "    NotificationChannelName: " + getNotificationChannelName() + "\n" +
                 "    NotificationChannelImportance: " + getNotificationChannelImportance() + "\n" +
                 "    FlushOnBackground: " + getFlushOnBackground() + "\n" +
+                "    GzipBatchUploads: " + getGzipBatchUploads() + "\n" +
                 "    UseIpAddressForGeolocation: " + getUseIpAddressForGeolocation();
     }
 
     private final int mBulkUploadLimit;
+    private final int mUploadBatchByteLimit;
     private final int mFlushInterval;
+    private final int mIngestionBatchSize;
+    private final int mIngestionLingerTime;
+    private final int mDuplicateEventWindow;
+    private final int mIngestionQueueCapacity;
+    private final String mIngestionQueuePolicy;
+    private final int mIngestionQueueBlockTimeout;
     private final boolean mFlushOnBackground;
+    private final boolean mGzipBatchUploads;
     private final long mDataExpiration;
     private final int mMinimumDatabaseLimit;
+    private final int mQueueRowQuota;
+    private final int mQueueByteQuota;
+    private final String mQueueEvictionPolicy;
+    private final boolean mKeepDatabaseOpen;
+    private final boolean mCompactRecordStorage;
+    private final boolean mSegmentedLogQueue;
     private final boolean mTestMode;
     private final boolean mDisableGestureBindingUI;
     private final boolean mDisableEmulatorBindingUI;
@@ -2,8 +2,15 @@ package com.mmp.android.mpmetrics;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -13,9 +20,13 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDatabaseCorruptException;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteFullException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
 import com.mmp.android.util.MPLog;
 
@@ -47,10 +58,199 @@ import com.mmp.android.util.MPLog;
         private final String mTableName;
     }
 
+    /**
+     * A record waiting to be written to the database, see {@link #addJSON(List)}.
+     */
+    public static class PendingRecord {
+        public PendingRecord(JSONObject json, String token, Table table, boolean isAutomaticRecord) {
+            this(json, token, table, isAutomaticRecord, PRIORITY_NORMAL);
+        }
+
+        /**
+         * @param priority one of PRIORITY_LOW, PRIORITY_NORMAL or PRIORITY_CRITICAL. Only stored for events.
+         */
+        public PendingRecord(JSONObject json, String token, Table table, boolean isAutomaticRecord, int priority) {
+            mJson = json;
+            mJsonText = null;
+            mToken = token;
+            mTable = table;
+            mIsAutomaticRecord = isAutomaticRecord;
+            mPriority = priority;
+        }
+
+        /**
+         * A record that's already JSON text, which is only parsed if it has to be.
+         */
+        public PendingRecord(String jsonText, String token, Table table, boolean isAutomaticRecord, int priority) {
+            mJson = null;
+            mJsonText = jsonText;
+            mToken = token;
+            mTable = table;
+            mIsAutomaticRecord = isAutomaticRecord;
+            mPriority = priority;
+        }
+
+        public JSONObject getJSON() throws JSONException {
+            return null != mJson ? mJson : new JSONObject(mJsonText);
+        }
+
+        public String getJSONText() {
+            return null != mJsonText ? mJsonText : mJson.toString();
+        }
+
+        public String getToken() {
+            return mToken;
+        }
+
+        public Table getTable() {
+            return mTable;
+        }
+
+        public boolean isAutomaticRecord() {
+            return mIsAutomaticRecord;
+        }
+
+        public int getPriority() {
+            return mPriority;
+        }
+
+        private final JSONObject mJson;
+        private final String mJsonText;
+        private final String mToken;
+        private final Table mTable;
+        private final boolean mIsAutomaticRecord;
+        private final int mPriority;
+    }
+
+    /**
+     * A batch handed to the network for upload. It's kept in the database until the server confirms
+     * the batch, so a batch whose response was lost is sent again with the same rows, the same id
+     * and the next attempt number, even after the process restarts.
+     */
+    public static class UploadAttempt {
+        public UploadAttempt(Table table, String token, long firstId, long lastId, boolean includeAutomaticEvents, int minPriority, String batchId, int attempt) {
+            mTable = table;
+            mToken = token;
+            mFirstId = firstId;
+            mLastId = lastId;
+            mIncludeAutomaticEvents = includeAutomaticEvents;
+            mMinPriority = minPriority;
+            mBatchId = batchId;
+            mAttempt = attempt;
+        }
+
+        public Table getTable() {
+            return mTable;
+        }
+
+        public String getToken() {
+            return mToken;
+        }
+
+        // The batch is the rows of the token from firstId through lastId in its lanes
+        public long getFirstId() {
+            return mFirstId;
+        }
+
+        public long getLastId() {
+            return mLastId;
+        }
+
+        public boolean getIncludeAutomaticEvents() {
+            return mIncludeAutomaticEvents;
+        }
+
+        public int getMinPriority() {
+            return mMinPriority;
+        }
+
+        public String getBatchId() {
+            return mBatchId;
+        }
+
+        // 1 for the first time the batch is sent
+        public int getAttempt() {
+            return mAttempt;
+        }
+
+        // The same batch, sent once more
+        public UploadAttempt next() {
+            return new UploadAttempt(mTable, mToken, mFirstId, mLastId, mIncludeAutomaticEvents, mMinPriority, mBatchId, mAttempt + 1);
+        }
+
+        private final Table mTable;
+        private final String mToken;
+        private final long mFirstId;
+        private final long mLastId;
+        private final boolean mIncludeAutomaticEvents;
+        private final int mMinPriority;
+        private final String mBatchId;
+        private final int mAttempt;
+    }
+
+    /**
+     * Which records are evicted when a queue quota is reached, see com.mmp.android.MPConfig.QueueEvictionPolicy.
+     */
+    public enum EvictionPolicy {
+        DROP_OLDEST ("drop_oldest"),
+        DROP_AUTOMATIC_FIRST ("drop_automatic_first"),
+        DOWNSAMPLE ("downsample");
+
+        EvictionPolicy(String name) {
+            mPolicyName = name;
+        }
+
+        public String getName() {
+            return mPolicyName;
+        }
+
+        public static EvictionPolicy fromName(String name) {
+            for (final EvictionPolicy policy : values()) {
+                if (policy.mPolicyName.equals(name)) {
+                    return policy;
+                }
+            }
+            MPLog.w(LOGTAG, "Unknown queue eviction policy " + name + ", using " + DROP_OLDEST.getName());
+            return DROP_OLDEST;
+        }
+
+        private final String mPolicyName;
+    }
+
+    /**
+     * Why records were evicted, see {@link #getEvictedRecordCount(EvictionReason)}.
+     */
+    public enum EvictionReason {
+        ROW_QUOTA, // a table held more records of a project than QueueRowQuota
+        BYTE_QUOTA, // the records took up more than QueueByteQuota
+        LOW_STORAGE, // the database was larger than the free space left on the device
+        STORAGE_FULL // writing to the database failed because the disk was full
+    }
+
     public static final String KEY_DATA = "data";
     public static final String KEY_CREATED_AT = "created_at";
     public static final String KEY_AUTOMATIC_DATA = "automatic_data";
     public static final String KEY_TOKEN = "token";
+    public static final String KEY_MAX_EVENT_ID = "max_event_id";
+    public static final String KEY_PRIORITY = "priority";
+    public static final String KEY_TABLE_NAME = "table_name";
+    public static final String KEY_FIRST_ID = "first_id";
+    public static final String KEY_LAST_ID = "last_id";
+    public static final String KEY_MIN_PRIORITY = "min_priority";
+    public static final String KEY_BATCH_ID = "batch_id";
+    public static final String KEY_ATTEMPT = "attempt";
+
+    // Events are read in priority lanes: an upload with a minimum priority only reads, and only
+    // deletes, the events at or above it. Other tables have a single lane.
+    public static final int PRIORITY_LOW = -1;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_CRITICAL = 1;
+
+    // Property patches for queued events, applied when the events are read for upload. Not a
+    // queue of its own, so it isn't part of Table.
+    private static final String PROPERTY_OVERLAYS_TABLE = "event_property_overlays";
+    // The batch being uploaded for each table and token, see UploadAttempt.
+    private static final String UPLOAD_ATTEMPTS_TABLE = "upload_attempts";
 
     public static final int ID_COLUMN_INDEX = 0;
     public static final int DATA_COLUMN_INDEX = 1;
@@ -66,8 +266,14 @@ import com.mmp.android.util.MPLog;
     private static final int MIN_DB_VERSION = 4;
 
     // If you increment DATABASE_VERSION, don't forget to define migration
-    private static final int DATABASE_VERSION = 7; // current database version
-    private static final int MAX_DB_VERSION = 7; // Max database version onUpdate can migrate to.
+    private static final int DATABASE_VERSION = 12; // current database version
+    private static final int MAX_DB_VERSION = 12; // Max database version onUpdate can migrate to.
+
+    private static final int MIN_EVICTION_CHUNK = 100; // records evicted per queue when storage runs out
+    private static final int PROMOTION_CHUNK_SIZE = 500; // anonymous people updates read at a time when identifying
+    private static final int DELETE_CHUNK_SIZE = 500; // ids listed in one DELETE when evicting by position
+    private static final int[] EVICTION_ORDER = { PRIORITY_LOW, PRIORITY_NORMAL, PRIORITY_CRITICAL }; // of events
+    private static final int[] SINGLE_PRIORITY = { PRIORITY_NORMAL }; // of the other tables
 
 
     private static final String CREATE_EVENTS_TABLE =
@@ -75,7 +281,8 @@ import com.mmp.android.util.MPLog;
         KEY_DATA + " STRING NOT NULL, " +
         KEY_CREATED_AT + " INTEGER NOT NULL, " +
         KEY_AUTOMATIC_DATA + " INTEGER DEFAULT 0, " +
-        KEY_TOKEN + " STRING NOT NULL DEFAULT '')";
+        KEY_TOKEN + " STRING NOT NULL DEFAULT '', " +
+        KEY_PRIORITY + " INTEGER NOT NULL DEFAULT " + PRIORITY_NORMAL + ")";
     private static final String CREATE_PEOPLE_TABLE =
        "CREATE TABLE " + Table.PEOPLE.getName() + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
         KEY_DATA + " STRING NOT NULL, " +
@@ -94,6 +301,22 @@ import com.mmp.android.util.MPLog;
                     KEY_CREATED_AT + " INTEGER NOT NULL, " +
                     KEY_AUTOMATIC_DATA + " INTEGER DEFAULT 0, " +
                     KEY_TOKEN + " STRING NOT NULL DEFAULT '')";
+    private static final String CREATE_PROPERTY_OVERLAYS_TABLE =
+            "CREATE TABLE " + PROPERTY_OVERLAYS_TABLE + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    KEY_DATA + " STRING NOT NULL, " +
+                    KEY_CREATED_AT + " INTEGER NOT NULL, " +
+                    KEY_MAX_EVENT_ID + " INTEGER NOT NULL, " +
+                    KEY_TOKEN + " STRING NOT NULL DEFAULT '')";
+    private static final String CREATE_UPLOAD_ATTEMPTS_TABLE =
+            "CREATE TABLE " + UPLOAD_ATTEMPTS_TABLE + " (" + KEY_TABLE_NAME + " STRING NOT NULL, " +
+                    KEY_TOKEN + " STRING NOT NULL DEFAULT '', " +
+                    KEY_FIRST_ID + " INTEGER NOT NULL, " +
+                    KEY_LAST_ID + " INTEGER NOT NULL, " +
+                    KEY_AUTOMATIC_DATA + " INTEGER NOT NULL, " +
+                    KEY_MIN_PRIORITY + " INTEGER NOT NULL, " +
+                    KEY_BATCH_ID + " STRING NOT NULL, " +
+                    KEY_ATTEMPT + " INTEGER NOT NULL, " +
+                    "PRIMARY KEY (" + KEY_TABLE_NAME + ", " + KEY_TOKEN + "))";
     private static final String EVENTS_TIME_INDEX =
         "CREATE INDEX IF NOT EXISTS time_idx ON " + Table.EVENTS.getName() +
         " (" + KEY_CREATED_AT + ");";
@@ -106,14 +329,50 @@ import com.mmp.android.util.MPLog;
     private static final String ANONYMOUS_PEOPLE_TIME_INDEX =
             "CREATE INDEX IF NOT EXISTS time_idx ON " + Table.ANONYMOUS_PEOPLE.getName() +
                     " (" + KEY_CREATED_AT + ");";
+    // Upload batches are read by token and automatic flag in _id order. Index names are global
+    // to the database, so each table gets its own. Every index entry ends with the rowid, which
+    // is _id, so it isn't listed: SQLite before 3.9 (Android 5 and 6) can seek to "_id > ?"
+    // through the implicit rowid, but not through an _id column named in the index, and would
+    // scan the queue from its start for every batch.
+    private static final String EVENTS_QUEUE_INDEX =
+            "CREATE INDEX IF NOT EXISTS events_queue_idx ON " + Table.EVENTS.getName() +
+                    " (" + KEY_TOKEN + ", " + KEY_AUTOMATIC_DATA + ");";
+    // Only critical events are in it, so the critical lane is read without scanning the others.
+    // Queries must use this exact WHERE term for SQLite to pick the index.
+    private static final String EVENTS_CRITICAL_INDEX =
+            "CREATE INDEX IF NOT EXISTS events_critical_idx ON " + Table.EVENTS.getName() +
+                    " (" + KEY_TOKEN + ") WHERE " + KEY_PRIORITY + " >= " + PRIORITY_CRITICAL + ";";
+    private static final String PEOPLE_QUEUE_INDEX =
+            "CREATE INDEX IF NOT EXISTS people_queue_idx ON " + Table.PEOPLE.getName() +
+                    " (" + KEY_TOKEN + ", " + KEY_AUTOMATIC_DATA + ");";
+    private static final String GROUPS_QUEUE_INDEX =
+            "CREATE INDEX IF NOT EXISTS groups_queue_idx ON " + Table.GROUPS.getName() +
+                    " (" + KEY_TOKEN + ", " + KEY_AUTOMATIC_DATA + ");";
+    private static final String ANONYMOUS_PEOPLE_QUEUE_INDEX =
+            "CREATE INDEX IF NOT EXISTS anonymous_people_queue_idx ON " + Table.ANONYMOUS_PEOPLE.getName() +
+                    " (" + KEY_TOKEN + ", " + KEY_AUTOMATIC_DATA + ");";
 
     private final MPDatabaseHelper mDb;
+    private final boolean mKeepDatabaseOpen;
+    private final boolean mCompactRecordStorage;
+    private final Map<String, SQLiteStatement> mStatements = new HashMap<>();
+
+    // Queued records per table and token, as {non automatic, automatic}. Counted once when the
+    // database is first opened and then kept in step with every insert and delete.
+    private final Map<String, int[]> mQueueDepths = new HashMap<>();
+    private boolean mQueueDepthsReconciled = false;
+
+    private final int mQueueRowQuota;
+    private final long mQueueByteQuota;
+    private final EvictionPolicy mEvictionPolicy;
+    // Read from other threads for diagnostics, indexed by EvictionReason
+    private final AtomicLong[] mEvictedRecords = new AtomicLong[EvictionReason.values().length];
 
     private static class MPDatabaseHelper extends SQLiteOpenHelper {
-        MPDatabaseHelper(Context context, String dbName) {
+        MPDatabaseHelper(Context context, String dbName, MPConfig config) {
             super(context, dbName, null, DATABASE_VERSION);
             mDatabaseFile = context.getDatabasePath(dbName);
-            mConfig = MPConfig.getInstance(context);
+            mConfig = config;
             mContext = context;
         }
 
@@ -122,7 +381,8 @@ import com.mmp.android.util.MPLog;
          */
         public void deleteDatabase() {
             close();
-            mDatabaseFile.delete();
+            // Also removes the journal and write-ahead log files
+            SQLiteDatabase.deleteDatabase(mDatabaseFile);
         }
 
         @Override
@@ -137,6 +397,13 @@ import com.mmp.android.util.MPLog;
             db.execSQL(PEOPLE_TIME_INDEX);
             db.execSQL(GROUPS_TIME_INDEX);
             db.execSQL(ANONYMOUS_PEOPLE_TIME_INDEX);
+            db.execSQL(EVENTS_QUEUE_INDEX);
+            db.execSQL(EVENTS_CRITICAL_INDEX);
+            db.execSQL(PEOPLE_QUEUE_INDEX);
+            db.execSQL(GROUPS_QUEUE_INDEX);
+            db.execSQL(ANONYMOUS_PEOPLE_QUEUE_INDEX);
+            db.execSQL(CREATE_PROPERTY_OVERLAYS_TABLE);
+            db.execSQL(CREATE_UPLOAD_ATTEMPTS_TABLE);
         }
 
         @Override
@@ -148,21 +415,68 @@ import com.mmp.android.util.MPLog;
                     migrateTableFrom4To5(db);
                     migrateTableFrom5To6(db);
                     migrateTableFrom6To7(db);
+                    migrateTableFrom7To8(db);
+                    migrateTableFrom8To9(db);
+                    migrateTableFrom9To10(db);
+                    migrateTableFrom10To11(db);
+                    migrateTableFrom11To12(db);
                 }
 
                 if (oldVersion == 5) {
                     migrateTableFrom5To6(db);
                     migrateTableFrom6To7(db);
+                    migrateTableFrom7To8(db);
+                    migrateTableFrom8To9(db);
+                    migrateTableFrom9To10(db);
+                    migrateTableFrom10To11(db);
+                    migrateTableFrom11To12(db);
                 }
 
                 if (oldVersion == 6) {
                     migrateTableFrom6To7(db);
+                    migrateTableFrom7To8(db);
+                    migrateTableFrom8To9(db);
+                    migrateTableFrom9To10(db);
+                    migrateTableFrom10To11(db);
+                    migrateTableFrom11To12(db);
+                }
+
+                if (oldVersion == 7) {
+                    migrateTableFrom7To8(db);
+                    migrateTableFrom8To9(db);
+                    migrateTableFrom9To10(db);
+                    migrateTableFrom10To11(db);
+                    migrateTableFrom11To12(db);
+                }
+
+                if (oldVersion == 8) {
+                    migrateTableFrom8To9(db);
+                    migrateTableFrom9To10(db);
+                    migrateTableFrom10To11(db);
+                    migrateTableFrom11To12(db);
+                }
+
+                if (oldVersion == 9) {
+                    migrateTableFrom9To10(db);
+                    migrateTableFrom10To11(db);
+                    migrateTableFrom11To12(db);
+                }
+
+                if (oldVersion == 10) {
+                    migrateTableFrom10To11(db);
+                    migrateTableFrom11To12(db);
+                }
+
+                if (oldVersion == 11) {
+                    migrateTableFrom11To12(db);
                 }
             } else {
                 db.execSQL("DROP TABLE IF EXISTS " + Table.EVENTS.getName());
                 db.execSQL("DROP TABLE IF EXISTS " + Table.PEOPLE.getName());
                 db.execSQL("DROP TABLE IF EXISTS " + Table.GROUPS.getName());
                 db.execSQL("DROP TABLE IF EXISTS " + Table.ANONYMOUS_PEOPLE.getName());
+                db.execSQL("DROP TABLE IF EXISTS " + PROPERTY_OVERLAYS_TABLE);
+                db.execSQL("DROP TABLE IF EXISTS " + UPLOAD_ATTEMPTS_TABLE);
                 db.execSQL(CREATE_EVENTS_TABLE);
                 db.execSQL(CREATE_PEOPLE_TABLE);
                 db.execSQL(CREATE_GROUPS_TABLE);
@@ -171,6 +485,13 @@ import com.mmp.android.util.MPLog;
                 db.execSQL(PEOPLE_TIME_INDEX);
                 db.execSQL(GROUPS_TIME_INDEX);
                 db.execSQL(ANONYMOUS_PEOPLE_TIME_INDEX);
+                db.execSQL(EVENTS_QUEUE_INDEX);
+                db.execSQL(EVENTS_CRITICAL_INDEX);
+                db.execSQL(PEOPLE_QUEUE_INDEX);
+                db.execSQL(GROUPS_QUEUE_INDEX);
+                db.execSQL(ANONYMOUS_PEOPLE_QUEUE_INDEX);
+                db.execSQL(CREATE_PROPERTY_OVERLAYS_TABLE);
+                db.execSQL(CREATE_UPLOAD_ATTEMPTS_TABLE);
             }
         }
 
@@ -277,6 +598,38 @@ import com.mmp.android.util.MPLog;
             }
         }
 
+        private void migrateTableFrom7To8(SQLiteDatabase db) {
+            db.execSQL(EVENTS_QUEUE_INDEX);
+            db.execSQL(PEOPLE_QUEUE_INDEX);
+            db.execSQL(GROUPS_QUEUE_INDEX);
+            db.execSQL(ANONYMOUS_PEOPLE_QUEUE_INDEX);
+        }
+
+        private void migrateTableFrom8To9(SQLiteDatabase db) {
+            db.execSQL(CREATE_PROPERTY_OVERLAYS_TABLE);
+        }
+
+        private void migrateTableFrom9To10(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + Table.EVENTS.getName() + " ADD COLUMN " + KEY_PRIORITY + " INTEGER NOT NULL DEFAULT " + PRIORITY_NORMAL);
+            db.execSQL(EVENTS_CRITICAL_INDEX);
+        }
+
+        private void migrateTableFrom10To11(SQLiteDatabase db) {
+            db.execSQL(CREATE_UPLOAD_ATTEMPTS_TABLE);
+        }
+
+        // The queue indexes listed _id, see EVENTS_QUEUE_INDEX
+        private void migrateTableFrom11To12(SQLiteDatabase db) {
+            for (final String index : new String[] { "events_queue_idx", "events_critical_idx", "people_queue_idx", "groups_queue_idx", "anonymous_people_queue_idx" }) {
+                db.execSQL("DROP INDEX IF EXISTS " + index);
+            }
+            db.execSQL(EVENTS_QUEUE_INDEX);
+            db.execSQL(EVENTS_CRITICAL_INDEX);
+            db.execSQL(PEOPLE_QUEUE_INDEX);
+            db.execSQL(GROUPS_QUEUE_INDEX);
+            db.execSQL(ANONYMOUS_PEOPLE_QUEUE_INDEX);
+        }
+
         private final File mDatabaseFile;
         private final MPConfig mConfig;
         private final Context mContext;
@@ -287,7 +640,23 @@ import com.mmp.android.util.MPLog;
     }
 
     public MPDbAdapter(Context context, String dbName) {
-        mDb = new MPDatabaseHelper(context, dbName);
+        this(context, dbName, MPConfig.getInstance(context));
+    }
+
+    /* package */ MPDbAdapter(Context context, String dbName, MPConfig config) {
+        mDb = new MPDatabaseHelper(context, dbName, config);
+        mKeepDatabaseOpen = config.getKeepDatabaseOpen();
+        mCompactRecordStorage = config.getCompactRecordStorage();
+        mQueueRowQuota = config.getQueueRowQuota();
+        mQueueByteQuota = config.getQueueByteQuota();
+        mEvictionPolicy = EvictionPolicy.fromName(config.getQueueEvictionPolicy());
+        for (int i = 0; i < mEvictedRecords.length; i++) {
+            mEvictedRecords[i] = new AtomicLong();
+        }
+        if (mKeepDatabaseOpen) {
+            // Readers and the writer no longer block each other, and commits only append to the log.
+            mDb.setWriteAheadLoggingEnabled(true);
+        }
     }
 
     public static MPDbAdapter getInstance(Context context) {
@@ -295,7 +664,11 @@ import com.mmp.android.util.MPLog;
             final Context appContext = context.getApplicationContext();
             MPDbAdapter ret;
             if (! sInstances.containsKey(appContext)) {
-                ret = new MPDbAdapter(appContext);
+                if (MPConfig.getInstance(appContext).getSegmentedLogQueue()) {
+                    ret = new SegmentedLogAdapter(appContext);
+                } else {
+                    ret = new MPDbAdapter(appContext);
+                }
                 sInstances.put(appContext, ret);
             } else {
                 ret = sInstances.get(appContext);
@@ -315,58 +688,263 @@ import com.mmp.android.util.MPLog;
      * on failure
      */
     public int addJSON(JSONObject j, String token, Table table, boolean isAutomaticRecord) {
-        // we are aware of the race condition here, but what can we do..?
-        if (!this.belowMemThreshold()) {
-            MPLog.e(LOGTAG, "There is not enough space left on the device to store Mmp data, so data was discarded");
-            return DB_OUT_OF_MEMORY_ERROR;
-        }
-
-        final String tableName = table.getName();
+        return addJSON(Collections.singletonList(new PendingRecord(j, token, table, isAutomaticRecord)))[0];
+    }
 
-        Cursor c = null;
-        int count = DB_UPDATE_ERROR;
+    /**
+     * Adds a batch of records to the SQLiteDatabase using a single transaction, so a burst
+     * of tracking calls only pays for one commit.
+     * @param records the records to insert, in order
+     * @return for each record, the number of rows in its table for its token right after it
+     * was inserted, or DB_OUT_OF_MEMORY_ERROR/DB_UPDATE_ERROR on failure
+     */
+    public int[] addJSON(List<PendingRecord> records) {
+        final int[] counts = new int[records.size()];
+        Arrays.fill(counts, DB_UPDATE_ERROR);
 
         try {
-            final SQLiteDatabase db = mDb.getWritableDatabase();
-
-            final ContentValues cv = new ContentValues();
-            cv.put(KEY_DATA, j.toString());
-            cv.put(KEY_CREATED_AT, System.currentTimeMillis());
-            cv.put(KEY_AUTOMATIC_DATA, isAutomaticRecord);
-            cv.put(KEY_TOKEN, token);
-            db.insert(tableName, null, cv);
-
-            c = db.rawQuery("SELECT COUNT(*) FROM " + tableName + " WHERE token='" + token + "'", null);
-            c.moveToFirst();
-            count = c.getInt(0);
-        } catch (final SQLiteException e) {
-            MPLog.e(LOGTAG, "Could not add Mmp data to table");
+            final SQLiteDatabase db = openDatabase();
+            if (!makeRoom(db, records)) {
+                MPLog.e(LOGTAG, "There is not enough space left on the device to store Mmp data, so data was discarded");
+                Arrays.fill(counts, DB_OUT_OF_MEMORY_ERROR);
+                return counts;
+            }
 
-            // We assume that in general, the results of a SQL exception are
-            // unrecoverable, and could be associated with an oversized or
-            // otherwise unusable DB. Better to bomb it and get back on track
-            // than to leave it junked up (and maybe filling up the disk.)
-            if (c != null) {
-                c.close();
-                c = null;
+            final long now = System.currentTimeMillis();
+            db.beginTransaction();
+            try {
+                for (final PendingRecord record : records) {
+                    insertRecord(db, record, now);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            // Only count the records once the transaction made it to disk
+            for (int i = 0; i < records.size(); i++) {
+                final PendingRecord record = records.get(i);
+                counts[i] = adjustQueueDepth(record.getTable(), record.getToken(), record.isAutomaticRecord(), 1);
+            }
+            if (mQueueRowQuota > 0) {
+                for (final PendingRecord record : distinctQueues(records)) {
+                    final int excess = getQueueDepth(record.getTable(), record.getToken(), true) - mQueueRowQuota;
+                    if (excess > 0) {
+                        evictRecords(db, record.getTable(), record.getToken(), excess, EvictionReason.ROW_QUOTA);
+                    }
+                }
+            }
+        } catch (final SQLiteFullException e) {
+            // Nothing is wrong with the database, so make room for the next records instead of dropping it
+            MPLog.e(LOGTAG, "Could not add Mmp data to table, the disk is full", e);
+            Arrays.fill(counts, DB_OUT_OF_MEMORY_ERROR);
+            try {
+                for (final PendingRecord record : distinctQueues(records)) {
+                    evictChunk(openDatabase(), record.getTable(), record.getToken(), EvictionReason.STORAGE_FULL);
+                }
+            } catch (final SQLiteException evictionFailure) {
+                onDatabaseError("Could not evict Mmp data.", evictionFailure);
             }
-            mDb.deleteDatabase();
+        } catch (final SQLiteException e) {
+            onDatabaseError("Could not add Mmp data to table.", e);
         } catch (final OutOfMemoryError e) {
             MPLog.e(LOGTAG, "Out of memory when adding Mmp data to table");
+        } finally {
+            releaseDatabase();
+        }
+        return counts;
+    }
+
+    /**
+     * @param reason why records were evicted
+     * @return the number of records evicted for that reason since the adapter was created
+     */
+    public long getEvictedRecordCount(EvictionReason reason) {
+        return mEvictedRecords[reason.ordinal()].get();
+    }
+
+    // Evicts records of the projects being written to when the records are over QueueByteQuota, or
+    // when the database outgrew the free space and has no free pages left for new records to reuse.
+    // The freed pages are reused, so the file stops growing. Returns false if there was nothing of
+    // those projects to evict, and the new records should be discarded instead.
+    private boolean makeRoom(SQLiteDatabase db, List<PendingRecord> records) {
+        final long pageSize = db.getPageSize();
+        final long freePages = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+        final long usedBytes = (DatabaseUtils.longForQuery(db, "PRAGMA page_count", null) - freePages) * pageSize;
+
+        final EvictionReason reason;
+        if (mQueueByteQuota > 0 && usedBytes > mQueueByteQuota) {
+            reason = EvictionReason.BYTE_QUOTA;
+        } else if (!belowMemThreshold() && freePages == 0) {
+            // we are aware of the race condition here, but what can we do..?
+            reason = EvictionReason.LOW_STORAGE;
+        } else {
+            return true;
+        }
+
+        int evicted = 0;
+        for (final PendingRecord record : distinctQueues(records)) {
+            evicted += evictChunk(db, record.getTable(), record.getToken(), reason);
+        }
+        return evicted > 0;
+    }
+
+    // One record per table and token written to, in order.
+    private static List<PendingRecord> distinctQueues(List<PendingRecord> records) {
+        final Map<String, PendingRecord> queues = new LinkedHashMap<>();
+        for (final PendingRecord record : records) {
+            final String key = queueDepthKey(record.getTable(), record.getToken());
+            if (!queues.containsKey(key)) {
+                queues.put(key, record);
+            }
+        }
+        return new ArrayList<>(queues.values());
+    }
+
+    // Storage is freed a chunk at a time, so an insert doesn't pay for evicting the whole backlog.
+    private int evictChunk(SQLiteDatabase db, Table table, String token, EvictionReason reason) {
+        final int depth = getQueueDepth(table, token, true);
+        return evictRecords(db, table, token, Math.min(depth, Math.max(MIN_EVICTION_CHUNK, depth / 10)), reason);
+    }
+
+    // Removes count records of the token from the table. Low priority events go first and critical
+    // ones last, whatever the policy: within each priority the policy picks the records, and
+    // whatever it didn't get to goes oldest first before the next priority is touched.
+    private int evictRecords(SQLiteDatabase db, Table table, String token, int count, EvictionReason reason) {
+        int evicted = 0;
+        for (final int priority : table == Table.EVENTS ? EVICTION_ORDER : SINGLE_PRIORITY) {
+            if (evicted >= count) {
+                break;
+            }
+            final String priorityClause = evictionPriorityClause(table, priority);
+            if (mEvictionPolicy == EvictionPolicy.DOWNSAMPLE) {
+                evicted += evictOldest(db, table, token, priorityClause, true, count - evicted, true);
+                evicted += evictOldest(db, table, token, priorityClause, false, count - evicted, true);
+            } else if (mEvictionPolicy == EvictionPolicy.DROP_AUTOMATIC_FIRST) {
+                evicted += evictOldest(db, table, token, priorityClause, true, count - evicted, false);
+            }
+            if (evicted < count) {
+                evicted += evictThrough(db, table, token, priorityClause, count - evicted);
+            }
+        }
+
+        if (evicted > 0) {
+            if (table == Table.EVENTS) {
+                collectPropertyOverlays(db);
+            }
+            mEvictedRecords[reason.ordinal()].addAndGet(evicted);
+            MPLog.w(LOGTAG, "Evicted " + evicted + " queued records from " + table.getName() + " (" + reason + ", " + mEvictionPolicy.getName() + ")");
+        }
+        return evicted;
+    }
+
+    // The events of one priority in EVICTION_ORDER. Other tables hold records of a single priority.
+    private static String evictionPriorityClause(Table table, int priority) {
+        if (table != Table.EVENTS) {
+            return "";
+        }
+        switch (priority) {
+            case PRIORITY_LOW:
+                return " AND " + KEY_PRIORITY + " < " + PRIORITY_NORMAL;
+            case PRIORITY_NORMAL:
+                return " AND " + KEY_PRIORITY + " >= " + PRIORITY_NORMAL + " AND " + KEY_PRIORITY + " < " + PRIORITY_CRITICAL;
+            default:
+                return " AND " + KEY_PRIORITY + " >= " + PRIORITY_CRITICAL;
+        }
+    }
+
+    // Deletes the oldest count records with the given automatic flag, or every other one of the
+    // oldest 2 * count of them when downsampling.
+    private int evictOldest(SQLiteDatabase db, Table table, String token, String priorityClause, boolean isAutomaticRecord, int count, boolean downsample) {
+        if (count <= 0) {
+            return 0;
+        }
+        final String tableName = table.getName();
+        final int deleted;
+        if (downsample) {
+            deleted = deleteIds(db, tableName, everyOtherId(db, tableName, token, priorityClause, isAutomaticRecord, 2 * count));
+        } else {
+            final SQLiteStatement delete = getStatement(db, "DELETE FROM " + tableName + " WHERE _id IN (SELECT _id FROM " + tableName +
+                    " WHERE " + KEY_TOKEN + " = ? AND " + KEY_AUTOMATIC_DATA + " = ?" + priorityClause + " ORDER BY _id LIMIT ?)");
+            bindToken(delete, 1, token);
+            delete.bindLong(2, isAutomaticRecord ? 1 : 0);
+            delete.bindLong(3, count);
+            deleted = delete.executeUpdateDelete();
+        }
+        adjustQueueDepth(table, token, isAutomaticRecord, -deleted);
+        return deleted;
+    }
+
+    // The second, fourth and so on of the oldest limit records. Ids are handed out across every
+    // token and lane of the table, so it's their position in the queue that says which records
+    // are next to each other, not whether the id is even.
+    private static List<Long> everyOtherId(SQLiteDatabase db, String tableName, String token, String priorityClause, boolean isAutomaticRecord, int limit) {
+        final List<Long> ids = new ArrayList<>(limit / 2);
+        Cursor c = null;
+        try {
+            c = db.rawQuery("SELECT _id FROM " + tableName + " WHERE " + KEY_TOKEN + " = ? AND " + KEY_AUTOMATIC_DATA + " = ?" + priorityClause +
+                    " ORDER BY _id LIMIT " + limit,
+                    new String[] { token, isAutomaticRecord ? "1" : "0" });
+            while (c.moveToNext()) {
+                if (c.getPosition() % 2 == 1) {
+                    ids.add(c.getLong(0));
+                }
+            }
         } finally {
             if (c != null) {
                 c.close();
             }
-            mDb.close();
         }
-        return count;
+        return ids;
+    }
+
+    // Deletes the rows with the given ids, a chunk at a time to stay under SQLite's statement limits.
+    private static int deleteIds(SQLiteDatabase db, String tableName, List<Long> ids) {
+        int deleted = 0;
+        for (int start = 0; start < ids.size(); start += DELETE_CHUNK_SIZE) {
+            final StringBuilder in = new StringBuilder();
+            for (int i = start; i < Math.min(ids.size(), start + DELETE_CHUNK_SIZE); i++) {
+                if (in.length() > 0) {
+                    in.append(',');
+                }
+                in.append(ids.get(i));
+            }
+            deleted += db.delete(tableName, "_id IN (" + in + ")", null);
+        }
+        return deleted;
+    }
+
+    // Deletes the oldest count records, automatic or not.
+    private int evictThrough(SQLiteDatabase db, Table table, String token, String priorityClause, int count) {
+        final String tableName = table.getName();
+        final SQLiteStatement lastId = getStatement(db, "SELECT MAX(_id) FROM (SELECT _id FROM " + tableName +
+                " WHERE " + KEY_TOKEN + " = ?" + priorityClause + " ORDER BY _id LIMIT ?)");
+        bindToken(lastId, 1, token);
+        lastId.bindLong(2, count);
+        final long throughId = lastId.simpleQueryForLong();
+
+        int deleted = 0;
+        final SQLiteStatement delete = getStatement(db, "DELETE FROM " + tableName + " WHERE _id <= ? AND " + KEY_TOKEN + " = ? AND " + KEY_AUTOMATIC_DATA + " = ?" +
+                priorityClause);
+        for (int automatic = 0; automatic < 2; automatic++) {
+            delete.bindLong(1, throughId);
+            bindToken(delete, 2, token);
+            delete.bindLong(3, automatic);
+            final int automaticDeleted = delete.executeUpdateDelete();
+            adjustQueueDepth(table, token, automatic == 1, -automaticDeleted);
+            deleted += automaticDeleted;
+        }
+        return deleted;
     }
 
     /**
-     * Copies anonymous people updates to people db after a user has been identified
+     * Moves anonymous people updates to people db after a user has been identified, in a single
+     * transaction. The updates are read a chunk at a time, consecutive $set or $set_once updates
+     * are folded into one (see {@link ProfileUpdateMerger}), and the anonymous rows are deleted
+     * with one statement per automatic flag.
      * @param token project token
      * @param distinctId people profile distinct id
-     * @return the number of rows copied (anonymous updates), or DB_OUT_OF_MEMORY_ERROR/DB_UPDATE_ERROR
+     * @return the number of rows added to people db, or DB_OUT_OF_MEMORY_ERROR/DB_UPDATE_ERROR
      * on failure
      */
     /* package */ int pushAnonymousUpdatesToPeopleDb(String token, String distinctId) {
@@ -374,69 +952,97 @@ import com.mmp.android.util.MPLog;
             MPLog.e(LOGTAG, "There is not enough space left on the device to store Mmp data, so data was discarded");
             return DB_OUT_OF_MEMORY_ERROR;
         }
-        Cursor selectCursor = null;
+        final String anonymousTableName = Table.ANONYMOUS_PEOPLE.getName();
         int count = DB_UPDATE_ERROR;
+        final int[] moved = new int[2];
+        final int[] inserted = new int[2];
+        final ProfileUpdateMerger merger = new ProfileUpdateMerger();
 
         try {
-            final SQLiteDatabase db = mDb.getWritableDatabase();
-            StringBuffer allAnonymousQuery = new StringBuffer("SELECT * FROM " + Table.ANONYMOUS_PEOPLE.getName() + " WHERE " + KEY_TOKEN + " = '" + token + "'");
-
-            selectCursor = db.rawQuery(allAnonymousQuery.toString(), null);
+            final SQLiteDatabase db = openDatabase();
             db.beginTransaction();
             try {
-                while (selectCursor.moveToNext()) {
+                long lastId = 0;
+                int rows;
+                do {
+                    rows = 0;
+                    Cursor c = null;
                     try {
-                        ContentValues values = new ContentValues();
-                        final int createdAtColumnIndex = selectCursor.getColumnIndex(KEY_CREATED_AT) >= 0 ? selectCursor.getColumnIndex(KEY_CREATED_AT) : CREATED_AT_COLUMN_INDEX;
-                        values.put(KEY_CREATED_AT, selectCursor.getLong(createdAtColumnIndex));
-                        final int automaticDataColumnIndex = selectCursor.getColumnIndex(KEY_AUTOMATIC_DATA) >= 0 ? selectCursor.getColumnIndex(KEY_AUTOMATIC_DATA) : AUTOMATIC_DATA_COLUMN_INDEX;
-                        values.put(KEY_AUTOMATIC_DATA, selectCursor.getInt(automaticDataColumnIndex));
-                        final int tokenColumnIndex = selectCursor.getColumnIndex(KEY_TOKEN) >= 0 ? selectCursor.getColumnIndex(KEY_TOKEN) : TOKEN_COLUMN_INDEX;
-                        values.put(KEY_TOKEN, selectCursor.getString(tokenColumnIndex));
-                        final int dataColumnIndex = selectCursor.getColumnIndex(KEY_DATA) >= 0 ? selectCursor.getColumnIndex(KEY_DATA) : DATA_COLUMN_INDEX;
-                        JSONObject updatedData = new JSONObject(selectCursor.getString(dataColumnIndex));
-                        updatedData.put("$distinct_id", distinctId);
-                        values.put(KEY_DATA, updatedData.toString());
-                        db.insert(Table.PEOPLE.getName(), null, values);
-                        final int idColumnIndex = selectCursor.getColumnIndex("_id") >= 0 ? selectCursor.getColumnIndex("_id") : ID_COLUMN_INDEX;
-                        int rowId = selectCursor.getInt(idColumnIndex);
-                        db.delete(Table.ANONYMOUS_PEOPLE.getName(), "_id = " + rowId, null);
-                        count++;
-                    } catch (final JSONException e) {
-                        // Ignore this object
+                        c = db.rawQuery("SELECT _id, " + KEY_DATA + ", " + KEY_CREATED_AT + ", " + KEY_AUTOMATIC_DATA + " FROM " + anonymousTableName +
+                                " WHERE " + KEY_TOKEN + " = ? AND _id > ? ORDER BY _id ASC LIMIT " + PROMOTION_CHUNK_SIZE,
+                                new String[] { token, String.valueOf(lastId) });
+                        while (c.moveToNext()) {
+                            rows++;
+                            lastId = c.getLong(0);
+                            final boolean isAutomaticRecord = c.getInt(3) != 0;
+                            moved[isAutomaticRecord ? 1 : 0]++;
+                            try {
+                                final JSONObject updatedData = new JSONObject(readRecord(c, 1));
+                                updatedData.put("$distinct_id", distinctId);
+                                final ProfileUpdateMerger.Update update = merger.add(updatedData, isAutomaticRecord, c.getLong(2));
+                                if (null != update) {
+                                    insertUpdate(db, token, update, inserted);
+                                }
+                            } catch (final JSONException e) {
+                                // Ignore this object, it's deleted with the rest
+                            }
+                        }
+                    } finally {
+                        if (c != null) {
+                            c.close();
+                        }
+                    }
+                } while (rows == PROMOTION_CHUNK_SIZE);
+
+                final ProfileUpdateMerger.Update last = merger.finish();
+                if (null != last) {
+                    insertUpdate(db, token, last, inserted);
+                }
+
+                final SQLiteStatement delete = getStatement(db, "DELETE FROM " + anonymousTableName + " WHERE _id <= ? AND " + KEY_TOKEN + " = ? AND " + KEY_AUTOMATIC_DATA + " = ?");
+                for (int automatic = 0; automatic < moved.length; automatic++) {
+                    if (moved[automatic] > 0) {
+                        delete.bindLong(1, lastId);
+                        bindToken(delete, 2, token);
+                        delete.bindLong(3, automatic);
+                        delete.executeUpdateDelete();
                     }
                 }
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
             }
-        } catch (final SQLiteException e) {
-            MPLog.e(LOGTAG, "Could not push anonymous updates records from " + Table.ANONYMOUS_PEOPLE.getName() + ". Re-initializing database.", e);
 
-            if (selectCursor != null) {
-                selectCursor.close();
-                selectCursor = null;
+            // Only count the records once the transaction made it to disk
+            for (int automatic = 0; automatic < moved.length; automatic++) {
+                adjustQueueDepth(Table.PEOPLE, token, automatic == 1, inserted[automatic]);
+                adjustQueueDepth(Table.ANONYMOUS_PEOPLE, token, automatic == 1, -moved[automatic]);
             }
-            // We assume that in general, the results of a SQL exception are
-            // unrecoverable, and could be associated with an oversized or
-            // otherwise unusable DB. Better to bomb it and get back on track
-            // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
-        } finally {
-            if (selectCursor != null) {
-                selectCursor.close();
+            count = inserted[0] + inserted[1];
+            if (merger.getMergedCount() > 0) {
+                MPLog.v(LOGTAG, "Folded " + merger.getMergedCount() + " anonymous people updates into earlier ones");
             }
-            mDb.close();
+        } catch (final SQLiteException e) {
+            onDatabaseError("Could not push anonymous updates records from " + anonymousTableName + ".", e);
+        } finally {
+            releaseDatabase();
         }
 
         return count;
     }
 
+    private void insertUpdate(SQLiteDatabase db, String token, ProfileUpdateMerger.Update update, int[] inserted) {
+        insertRecord(db, new PendingRecord(update.getRecord(), token, Table.PEOPLE, update.isAutomaticRecord()), update.getCreatedAt());
+        inserted[update.isAutomaticRecord() ? 1 : 0]++;
+    }
+
     /**
-     * Copies anonymous people updates to people db after a user has been identified
+     * Adds properties to every event currently queued for a project. Instead of rewriting each
+     * event, records a single patch covering the events queued so far; the patch is applied when
+     * the events are read for upload, and dropped once they're all gone.
      * @param properties Map of properties that will be added to existing events.
      * @param token project token
-     * @return the number of rows updated , or DB_OUT_OF_MEMORY_ERROR/DB_UPDATE_ERROR
+     * @return the number of events the properties will be added to, or DB_OUT_OF_MEMORY_ERROR/DB_UPDATE_ERROR
      * on failure
      */
     /* package */ int rewriteEventDataWithProperties(Map<String, String> properties, String token) {
@@ -444,61 +1050,102 @@ import com.mmp.android.util.MPLog;
             MPLog.e(LOGTAG, "There is not enough space left on the device to store Mmp data, so data was discarded");
             return DB_OUT_OF_MEMORY_ERROR;
         }
-        Cursor selectCursor = null;
         int count = 0;
 
         try {
-            final SQLiteDatabase db = mDb.getWritableDatabase();
-            StringBuffer allAnonymousQuery = new StringBuffer("SELECT * FROM " + Table.EVENTS.getName() + " WHERE " + KEY_TOKEN + " = '" + token + "'");
-
-            selectCursor = db.rawQuery(allAnonymousQuery.toString(), null);
-            db.beginTransaction();
-            try {
-                while (selectCursor.moveToNext()) {
-                    try {
-                        ContentValues values = new ContentValues();
-                        final int dataColumnIndex = selectCursor.getColumnIndex(KEY_DATA) >= 0 ? selectCursor.getColumnIndex(KEY_DATA) : DATA_COLUMN_INDEX;
-                        JSONObject updatedData = new JSONObject(selectCursor.getString(dataColumnIndex));
-                        JSONObject existingProps = updatedData.getJSONObject("properties");
-                        for (final Map.Entry<String, String> entry : properties.entrySet()) {
-                            final String key = entry.getKey();
-                            final String value = entry.getValue();
-                            existingProps.put(key, value);
-                        }
-                        updatedData.put("properties", existingProps);
-                        values.put(KEY_DATA, updatedData.toString());
-                        final int idColumnIndex = selectCursor.getColumnIndex("_id") >= 0 ? selectCursor.getColumnIndex("_id") : ID_COLUMN_INDEX;
-                        int rowId = selectCursor.getInt(idColumnIndex);
-                        db.update(Table.EVENTS.getName(), values, "_id = " + rowId, null);
-                        count++;
-                    } catch (final JSONException e) {
-                        // Ignore this object
-                    }
-                }
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
+            final SQLiteDatabase db = openDatabase();
+            count = getQueueDepth(Table.EVENTS, token, true);
+            if (count > 0) {
+                // The largest _id is the last entry of the table's b-tree, no scan needed
+                final long maxEventId = getStatement(db, "SELECT IFNULL(MAX(_id), 0) FROM " + Table.EVENTS.getName()).simpleQueryForLong();
+                final SQLiteStatement insert = getStatement(db, "INSERT INTO " + PROPERTY_OVERLAYS_TABLE + " (" + KEY_DATA + ", " +
+                        KEY_CREATED_AT + ", " + KEY_MAX_EVENT_ID + ", " + KEY_TOKEN + ") VALUES (?, ?, ?, ?)");
+                insert.bindString(1, new JSONObject(properties).toString());
+                insert.bindLong(2, System.currentTimeMillis());
+                insert.bindLong(3, maxEventId);
+                bindToken(insert, 4, token);
+                insert.executeInsert();
             }
         } catch (final SQLiteException e) {
-            MPLog.e(LOGTAG, "Could not re-write events history. Re-initializing database.", e);
+            onDatabaseError("Could not re-write events history.", e);
+            count = DB_UPDATE_ERROR;
+        } finally {
+            releaseDatabase();
+        }
 
-            if (selectCursor != null) {
-                selectCursor.close();
-                selectCursor = null;
+        return count;
+    }
+
+    // Patches, oldest first, that cover at least one event of the token after afterId.
+    private List<PropertyOverlay> readPropertyOverlays(SQLiteDatabase db, String token, String afterId) {
+        final List<PropertyOverlay> overlays = new ArrayList<>();
+        Cursor c = null;
+        try {
+            c = db.rawQuery("SELECT " + KEY_MAX_EVENT_ID + ", " + KEY_DATA + " FROM " + PROPERTY_OVERLAYS_TABLE +
+                    " WHERE " + KEY_TOKEN + " = ? AND " + KEY_MAX_EVENT_ID + " > ? ORDER BY _id ASC",
+                    new String[] { token, afterId == null ? "0" : afterId });
+            while (c.moveToNext()) {
+                try {
+                    overlays.add(new PropertyOverlay(c.getLong(0), new JSONObject(c.getString(1))));
+                } catch (final JSONException e) {
+                    // Ignore this patch
+                }
             }
-            // We assume that in general, the results of a SQL exception are
-            // unrecoverable, and could be associated with an oversized or
-            // otherwise unusable DB. Better to bomb it and get back on track
-            // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
         } finally {
-            if (selectCursor != null) {
-                selectCursor.close();
+            if (c != null) {
+                c.close();
             }
-            mDb.close();
         }
+        return overlays;
+    }
 
-        return count;
+    private static boolean isCoveredByPropertyOverlay(List<PropertyOverlay> overlays, long eventId) {
+        for (final PropertyOverlay overlay : overlays) {
+            if (eventId <= overlay.maxEventId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Returns the event with the patches that cover it applied, or the stored text untouched.
+    /* package */ static String applyPropertyOverlays(List<PropertyOverlay> overlays, long eventId, String record) {
+        JSONObject event = null;
+        try {
+            for (final PropertyOverlay overlay : overlays) {
+                if (eventId > overlay.maxEventId) {
+                    continue;
+                }
+                if (event == null) {
+                    event = new JSONObject(record);
+                }
+                final JSONObject properties = event.getJSONObject("properties");
+                for (final Iterator<String> keys = overlay.properties.keys(); keys.hasNext();) {
+                    final String key = keys.next();
+                    properties.put(key, overlay.properties.get(key));
+                }
+            }
+        } catch (final JSONException e) {
+            return record; // Send it as it was stored
+        }
+        return event == null ? record : event.toString();
+    }
+
+    // Drops the patches that no longer cover any queued event.
+    private void collectPropertyOverlays(SQLiteDatabase db) {
+        getStatement(db, "DELETE FROM " + PROPERTY_OVERLAYS_TABLE + " WHERE NOT EXISTS (SELECT 1 FROM " + Table.EVENTS.getName() +
+                " WHERE " + Table.EVENTS.getName() + "." + KEY_TOKEN + " = " + PROPERTY_OVERLAYS_TABLE + "." + KEY_TOKEN +
+                " AND " + Table.EVENTS.getName() + "._id <= " + PROPERTY_OVERLAYS_TABLE + "." + KEY_MAX_EVENT_ID + ")").executeUpdateDelete();
+    }
+
+    /* package */ static class PropertyOverlay {
+        public PropertyOverlay(long maxEventId, JSONObject properties) {
+            this.maxEventId = maxEventId;
+            this.properties = properties;
+        }
+
+        public final long maxEventId;
+        public final JSONObject properties;
     }
 
     /**
@@ -508,29 +1155,42 @@ import com.mmp.android.util.MPLog;
      * @param includeAutomaticEvents whether or not automatic events should be included in the cleanup
      */
     public void cleanupEvents(String last_id, Table table, String token, boolean includeAutomaticEvents) {
+        cleanupEvents(last_id, table, token, includeAutomaticEvents, PRIORITY_LOW);
+    }
+
+    /**
+     * Removes events with an _id <= last_id from table, leaving the events of lower priority lanes
+     * that weren't part of the batch.
+     * @param last_id the last id to delete
+     * @param table the table to remove events from, one of "events", "people", "groups" or "anonymous_people"
+     * @param includeAutomaticEvents whether or not automatic events should be included in the cleanup
+     * @param minPriority the lowest priority of the events that were sent, ignored for other tables
+     */
+    public void cleanupEvents(String last_id, Table table, String token, boolean includeAutomaticEvents, int minPriority) {
         final String tableName = table.getName();
 
         try {
-            final SQLiteDatabase db = mDb.getWritableDatabase();
-            StringBuffer deleteQuery = new StringBuffer("_id <= " + last_id + " AND " + KEY_TOKEN + " = '" + token + "'");
-
-            if (!includeAutomaticEvents) {
-                deleteQuery.append(" AND " + KEY_AUTOMATIC_DATA + "=0");
+            final SQLiteDatabase db = openDatabase();
+            final SQLiteStatement delete = getStatement(db, "DELETE FROM " + tableName + " WHERE _id <= ? AND " + KEY_TOKEN + " = ? AND " + KEY_AUTOMATIC_DATA + " = ?" +
+                    priorityClause(table, minPriority));
+
+            // Automatic and non automatic records are deleted separately so we know how many of each went away
+            final int automaticPasses = includeAutomaticEvents ? 2 : 1;
+            for (int automatic = 0; automatic < automaticPasses; automatic++) {
+                delete.bindLong(1, Long.parseLong(last_id));
+                bindToken(delete, 2, token);
+                delete.bindLong(3, automatic);
+                adjustQueueDepth(table, token, automatic == 1, -delete.executeUpdateDelete());
+            }
+            if (table == Table.EVENTS) {
+                collectPropertyOverlays(db);
             }
-            db.delete(tableName, deleteQuery.toString(), null);
         } catch (final SQLiteException e) {
-            MPLog.e(LOGTAG, "Could not clean sent Mmp records from " + tableName + ". Re-initializing database.", e);
-
-            // We assume that in general, the results of a SQL exception are
-            // unrecoverable, and could be associated with an oversized or
-            // otherwise unusable DB. Better to bomb it and get back on track
-            // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
-        } catch (final Exception e) {
-            MPLog.e(LOGTAG, "Unknown exception. Could not clean sent Mmp records from " + tableName + ".Re-initializing database.", e);
-            mDb.deleteDatabase();
+            onDatabaseError("Could not clean sent Mmp records from " + tableName + ".", e);
+        } catch (final NumberFormatException e) {
+            MPLog.e(LOGTAG, "Could not clean sent Mmp records from " + tableName + ", " + last_id + " is not a record id.", e);
         } finally {
-            mDb.close();
+            releaseDatabase();
         }
     }
 
@@ -540,22 +1200,53 @@ import com.mmp.android.util.MPLog;
      * @param table the table to remove events from, one of "events", "people", "groups" or "anonymous_people"
      */
     public void cleanupEvents(long time, Table table) {
+        cleanupEvents(time, table, -1);
+    }
+
+    /**
+     * Removes up to maxRecords of the oldest events before time, in one transaction, so expiring a
+     * large backlog can be spread over several short passes.
+     * @param time the unix epoch in milliseconds to remove events before
+     * @param table the table to remove events from, one of "events", "people", "groups" or "anonymous_people"
+     * @param maxRecords the most records to remove, or a negative number to remove all of them
+     * @return the number of records removed. Fewer than maxRecords means no expired records are left.
+     */
+    public int cleanupEvents(long time, Table table, int maxRecords) {
         final String tableName = table.getName();
+        // The time index returns the oldest records first, in the same order for both statements
+        final String expiredIds = "SELECT _id FROM " + tableName + " WHERE " + KEY_CREATED_AT + " <= " + time +
+                " ORDER BY " + KEY_CREATED_AT + " LIMIT " + maxRecords;
+        int deleted = 0;
 
         try {
-            final SQLiteDatabase db = mDb.getWritableDatabase();
-            db.delete(tableName, KEY_CREATED_AT + " <= " + time, null);
+            final SQLiteDatabase db = openDatabase();
+            db.beginTransaction();
+            Cursor expiredCursor = null;
+            try {
+                // If the delete fails the queue depths are counted again, see onDatabaseError().
+                expiredCursor = db.rawQuery("SELECT " + KEY_TOKEN + ", " + KEY_AUTOMATIC_DATA + ", COUNT(*) FROM " + tableName +
+                        " WHERE _id IN (" + expiredIds + ") GROUP BY " + KEY_TOKEN + ", " + KEY_AUTOMATIC_DATA, null);
+                while (expiredCursor.moveToNext()) {
+                    adjustQueueDepth(table, expiredCursor.getString(0), expiredCursor.getInt(1) != 0, -expiredCursor.getInt(2));
+                }
+                deleted = db.delete(tableName, "_id IN (" + expiredIds + ")", null);
+                if (table == Table.EVENTS && deleted > 0) {
+                    collectPropertyOverlays(db);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                if (expiredCursor != null) {
+                    expiredCursor.close();
+                }
+                db.endTransaction();
+            }
         } catch (final SQLiteException e) {
-            MPLog.e(LOGTAG, "Could not clean timed-out Mmp records from " + tableName + ". Re-initializing database.", e);
-
-            // We assume that in general, the results of a SQL exception are
-            // unrecoverable, and could be associated with an oversized or
-            // otherwise unusable DB. Better to bomb it and get back on track
-            // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
+            onDatabaseError("Could not clean timed-out Mmp records from " + tableName + ".", e);
+            deleted = 0;
         } finally {
-            mDb.close();
+            releaseDatabase();
         }
+        return deleted;
     }
 
     /**
@@ -567,18 +1258,17 @@ import com.mmp.android.util.MPLog;
         final String tableName = table.getName();
 
         try {
-            final SQLiteDatabase db = mDb.getWritableDatabase();
+            final SQLiteDatabase db = openDatabase();
             db.delete(tableName, KEY_TOKEN + " = '" + token + "'", null);
+            db.delete(UPLOAD_ATTEMPTS_TABLE, KEY_TABLE_NAME + " = ? AND " + KEY_TOKEN + " = ?", new String[] { tableName, token });
+            mQueueDepths.remove(queueDepthKey(table, token));
+            if (table == Table.EVENTS) {
+                collectPropertyOverlays(db);
+            }
         } catch (final SQLiteException e) {
-            MPLog.e(LOGTAG, "Could not clean timed-out Mmp records from " + tableName + ". Re-initializing database.", e);
-
-            // We assume that in general, the results of a SQL exception are
-            // unrecoverable, and could be associated with an oversized or
-            // otherwise unusable DB. Better to bomb it and get back on track
-            // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
+            onDatabaseError("Could not clean Mmp records from " + tableName + ".", e);
         } finally {
-            mDb.close();
+            releaseDatabase();
         }
     }
 
@@ -596,23 +1286,218 @@ import com.mmp.android.util.MPLog;
         final String tableName = table.getName();
 
         try {
-            final SQLiteDatabase db = mDb.getWritableDatabase();
-            db.delete(tableName, KEY_AUTOMATIC_DATA + " = 1 AND " + KEY_TOKEN + " = '" + token + "'", null);
+            final SQLiteDatabase db = openDatabase();
+            final int deleted = db.delete(tableName, KEY_AUTOMATIC_DATA + " = 1 AND " + KEY_TOKEN + " = '" + token + "'", null);
+            adjustQueueDepth(table, token, true, -deleted);
+            if (table == Table.EVENTS) {
+                collectPropertyOverlays(db);
+            }
         } catch (final SQLiteException e) {
-            MPLog.e(LOGTAG, "Could not clean automatic Mmp records from " + tableName + ". Re-initializing database.", e);
-
-            // We assume that in general, the results of a SQL exception are
-            // unrecoverable, and could be associated with an oversized or
-            // otherwise unusable DB. Better to bomb it and get back on track
-            // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
+            onDatabaseError("Could not clean automatic Mmp records from " + tableName + ".", e);
         } finally {
-            mDb.close();
+            releaseDatabase();
+        }
+    }
+
+    // Only a corrupt file is worth starting over for. Anything else, such as the database being
+    // locked by another process, a constraint failing or a read or write error, may pass, so the
+    // queued records are kept. The write may have been rolled back, so the queue depths are
+    // counted again on the next open.
+    private void onDatabaseError(String message, SQLiteException e) {
+        if (e instanceof SQLiteDatabaseCorruptException) {
+            MPLog.e(LOGTAG, message + " The database is corrupt, re-initializing it.", e);
+            deleteDB();
+        } else {
+            MPLog.e(LOGTAG, message + " Keeping the queued records.", e);
+            mQueueDepthsReconciled = false;
         }
     }
 
     public void deleteDB() {
+        releaseStatements();
         mDb.deleteDatabase();
+        mQueueDepths.clear();
+        mQueueDepthsReconciled = false;
+    }
+
+    /**
+     * Returns the number of records queued in a table for a project, without querying the database.
+     * @param table the table to count, one of "events", "people", "groups" or "anonymous_people"
+     * @param token the token of the project
+     * @param includeAutomaticEvents whether or not automatic records should be counted
+     * @return the number of queued records
+     */
+    public int getQueueDepth(Table table, String token, boolean includeAutomaticEvents) {
+        if (!mQueueDepthsReconciled) {
+            try {
+                openDatabase();
+            } catch (final SQLiteException e) {
+                MPLog.e(LOGTAG, "Could not count the Mmp records in " + table.getName() + ".", e);
+                return 0;
+            } finally {
+                releaseDatabase();
+            }
+        }
+
+        final int[] depth = mQueueDepths.get(queueDepthKey(table, token));
+        if (depth == null) {
+            return 0;
+        }
+        return depth[0] + (includeAutomaticEvents ? depth[1] : 0);
+    }
+
+    /**
+     * Counts the records a flush reading only the events at or above minPriority would send. Unlike
+     * {@link #getQueueDepth(Table, String, boolean)} this has to query the database, so it stops
+     * counting at limit.
+     * @param minPriority the lowest priority of the events to count, ignored for other tables
+     * @param limit the most records to count
+     * @return the number of records, or limit if there are at least that many
+     */
+    public int getQueueDepth(Table table, String token, boolean includeAutomaticEvents, int minPriority, int limit) {
+        if (table != Table.EVENTS || minPriority <= PRIORITY_LOW) {
+            return Math.min(limit, getQueueDepth(table, token, includeAutomaticEvents));
+        }
+
+        try {
+            final SQLiteDatabase db = openDatabase();
+            final SQLiteStatement count = getStatement(db, "SELECT COUNT(*) FROM (SELECT _id FROM " + table.getName() +
+                    " WHERE " + KEY_TOKEN + " = ?" +
+                    (includeAutomaticEvents ? "" : " AND " + KEY_AUTOMATIC_DATA + " = 0") +
+                    priorityClause(table, minPriority) + " LIMIT ?)");
+            bindToken(count, 1, token);
+            count.bindLong(2, limit);
+            return (int) count.simpleQueryForLong();
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not count the Mmp records in " + table.getName() + ".", e);
+            return 0;
+        } finally {
+            releaseDatabase();
+        }
+    }
+
+    /**
+     * Closes the database connection along with its cached statements. Call this when the
+     * worker that owns this adapter shuts down; the next operation will reopen the database.
+     */
+    public void close() {
+        releaseStatements();
+        mDb.close();
+    }
+
+    private void insertRecord(SQLiteDatabase db, PendingRecord record, long createdAt) {
+        final Table table = record.getTable();
+        final boolean hasPriority = table == Table.EVENTS;
+        final SQLiteStatement insert = getStatement(db, "INSERT INTO " + table.getName() + " (" + KEY_DATA + ", " + KEY_CREATED_AT + ", " +
+                KEY_AUTOMATIC_DATA + ", " + KEY_TOKEN + (hasPriority ? ", " + KEY_PRIORITY + ") VALUES (?, ?, ?, ?, ?)" : ") VALUES (?, ?, ?, ?)"));
+        bindRecord(insert, 1, record);
+        insert.bindLong(2, createdAt);
+        insert.bindLong(3, record.isAutomaticRecord() ? 1 : 0);
+        bindToken(insert, 4, record.getToken());
+        if (hasPriority) {
+            insert.bindLong(5, record.getPriority());
+        }
+        insert.executeInsert();
+    }
+
+    private SQLiteDatabase openDatabase() {
+        final SQLiteDatabase db = mDb.getWritableDatabase();
+        if (!mQueueDepthsReconciled) {
+            reconcileQueueDepths(db);
+        }
+        return db;
+    }
+
+    // Counts every table once, after that the queue depths are only adjusted by our own writes.
+    private void reconcileQueueDepths(SQLiteDatabase db) {
+        mQueueDepths.clear();
+        for (final Table table : Table.values()) {
+            Cursor c = null;
+            try {
+                c = db.rawQuery("SELECT " + KEY_TOKEN + ", " + KEY_AUTOMATIC_DATA + ", COUNT(*) FROM " + table.getName() +
+                        " GROUP BY " + KEY_TOKEN + ", " + KEY_AUTOMATIC_DATA, null);
+                while (c.moveToNext()) {
+                    adjustQueueDepth(table, c.getString(0), c.getInt(1) != 0, c.getInt(2));
+                }
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
+        }
+        mQueueDepthsReconciled = true;
+    }
+
+    // Returns the new number of records, automatic or not, queued in the table for the token.
+    private int adjustQueueDepth(Table table, String token, boolean isAutomaticRecord, int delta) {
+        final String key = queueDepthKey(table, token);
+        int[] depth = mQueueDepths.get(key);
+        if (depth == null) {
+            depth = new int[2];
+            mQueueDepths.put(key, depth);
+        }
+        final int index = isAutomaticRecord ? 1 : 0;
+        depth[index] = Math.max(0, depth[index] + delta);
+        return depth[0] + depth[1];
+    }
+
+    // Written out as a literal so the critical lane matches the partial index's WHERE term.
+    private static String priorityClause(Table table, int minPriority) {
+        if (table != Table.EVENTS || minPriority <= PRIORITY_LOW) {
+            return "";
+        }
+        return " AND " + KEY_PRIORITY + " >= " + minPriority;
+    }
+
+    private static String queueDepthKey(Table table, String token) {
+        return table.getName() + "/" + token;
+    }
+
+    // The data column is untyped, so it holds JSON text or, in compact mode, the encoded record.
+    // Records that are already JSON text are stored as they are, unless compact storage is on.
+    private void bindRecord(SQLiteStatement statement, int index, PendingRecord record) {
+        if (mCompactRecordStorage) {
+            try {
+                statement.bindBlob(index, CompactRecordCodec.encode(record.getJSON()));
+                return;
+            } catch (final JSONException e) {
+                MPLog.w(LOGTAG, "Could not encode a record, storing it as JSON text", e);
+            }
+        }
+        statement.bindString(index, record.getJSONText());
+    }
+
+    private static void bindToken(SQLiteStatement statement, int index, String token) {
+        if (token == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, token);
+        }
+    }
+
+    // Statements are compiled once and reused for as long as the connection stays open.
+    private SQLiteStatement getStatement(SQLiteDatabase db, String sql) {
+        SQLiteStatement statement = mStatements.get(sql);
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+            mStatements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    private void releaseStatements() {
+        for (final SQLiteStatement statement : mStatements.values()) {
+            statement.close();
+        }
+        mStatements.clear();
+    }
+
+    // Unless the connection is meant to live as long as the worker, close it after every operation.
+    private void releaseDatabase() {
+        if (!mKeepDatabaseOpen) {
+            releaseStatements();
+            mDb.close();
+        }
     }
 
     /**
@@ -627,47 +1512,104 @@ import com.mmp.android.util.MPLog;
      * current number of events in the queue.
      */
     public String[] generateDataString(Table table, String token, boolean includeAutomaticEvents) {
+        return generateDataString(table, token, includeAutomaticEvents, null, UploadBatchSizer.MAX_BATCH_SIZE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #generateDataString(Table, String, boolean)}, but only returns rows stored after
+     * afterId, and stops at maxRecords records or before going over maxBytes. Used to read the next
+     * batch while the previous one is still being uploaded.
+     *
+     * @param table the table to read the JSON from, one of "events", "people", or "groups"
+     * @param token the token of the project you want to retrieve the records for
+     * @param includeAutomaticEvents whether or not it should include pre-track records
+     * @param afterId the last ID of a batch that hasn't been deleted yet, or null to start at the oldest row
+     * @param maxRecords the maximum number of records in the batch
+     * @param maxBytes the approximate maximum size of the batch. The first record is always included.
+     * @return String array containing the maximum ID, the data string and the queue depth, or null
+     */
+    public String[] generateDataString(Table table, String token, boolean includeAutomaticEvents, String afterId, int maxRecords, int maxBytes) {
+        return generateDataString(table, token, includeAutomaticEvents, afterId, maxRecords, maxBytes, PRIORITY_LOW);
+    }
+
+    /**
+     * Like {@link #generateDataString(Table, String, boolean, String, int, int)}, but only reads the
+     * events at or above minPriority.
+     *
+     * @param minPriority the lowest priority of the events to read, ignored for other tables
+     * @return String array containing the maximum ID, the data string and the queue depth, or null
+     */
+    public String[] generateDataString(Table table, String token, boolean includeAutomaticEvents, String afterId, int maxRecords, int maxBytes, int minPriority) {
+        return generateDataString(table, token, includeAutomaticEvents, afterId, maxRecords, maxBytes, minPriority, null);
+    }
+
+    /**
+     * Like {@link #generateDataString(Table, String, boolean, String, int, int, int)}, but stops at
+     * throughId. Used to read a batch that was sent before again, see {@link UploadAttempt}.
+     *
+     * @param throughId the last ID to read, or null to read up to maxRecords records
+     * @return String array containing the maximum ID, the data string, the queue depth and the ID of
+     * the first row read, or null
+     */
+    public String[] generateDataString(Table table, String token, boolean includeAutomaticEvents, String afterId, int maxRecords, int maxBytes, int minPriority,
+                                       String throughId) {
         Cursor c = null;
-        Cursor queueCountCursor = null;
         String data = null;
+        String first_id = null;
         String last_id = null;
         String queueCount = null;
         final String tableName = table.getName();
         final SQLiteDatabase db = mDb.getReadableDatabase();
 
         try {
-            StringBuffer rawDataQuery = new StringBuffer("SELECT * FROM " + tableName + " WHERE " + KEY_TOKEN + " = '" + token + "' ");
-            StringBuffer queueCountQuery = new StringBuffer("SELECT COUNT(*) FROM " + tableName + " WHERE " + KEY_TOKEN + " = '" + token + "' ");
-            if (!includeAutomaticEvents) {
-                rawDataQuery.append("AND " + KEY_AUTOMATIC_DATA + " = 0 ");
-                queueCountQuery.append(" AND " + KEY_AUTOMATIC_DATA + " = 0");
+            // Keyset pagination over the queue index: rows are inserted in the order they were
+            // queued, so _id order is queue order, and a batch is exactly the rows up to its last ID.
+            final String rawDataQuery = "SELECT _id, " + KEY_DATA + " FROM " + tableName +
+                    " WHERE " + KEY_TOKEN + " = ?" +
+                    (includeAutomaticEvents ? "" : " AND " + KEY_AUTOMATIC_DATA + " = 0") +
+                    priorityClause(table, minPriority) +
+                    " AND _id > ? AND _id <= ? ORDER BY _id ASC LIMIT " + Math.max(1, maxRecords);
+            c = db.rawQuery(rawDataQuery, new String[] { token, afterId == null ? "0" : afterId, throughId == null ? String.valueOf(Long.MAX_VALUE) : throughId });
+
+            if (!mQueueDepthsReconciled) {
+                reconcileQueueDepths(db);
             }
+            queueCount = String.valueOf(getQueueDepth(table, token, includeAutomaticEvents));
 
-            rawDataQuery.append("ORDER BY " + KEY_CREATED_AT + " ASC LIMIT 50");
-            c = db.rawQuery(rawDataQuery.toString(), null);
-
-            queueCountCursor = db.rawQuery(queueCountQuery.toString(), null);
-            queueCountCursor.moveToFirst();
-            queueCount = String.valueOf(queueCountCursor.getInt(0));
-
-            final JSONArray arr = new JSONArray();
+            // Rows hold either JSONObject.toString() text, copied into the batch as is, or the
+            // compact encoding, decoded straight into the batch. Neither is parsed into a JSONObject
+            // unless a property overlay covers it.
+            final StringBuilder arr = new StringBuilder("[");
+            int recordCount = 0;
 
+            final List<PropertyOverlay> overlays = table == Table.EVENTS ? readPropertyOverlays(db, token, afterId) : Collections.<PropertyOverlay>emptyList();
+            final int idColumnIndex = c.getColumnIndex("_id") >= 0 ? c.getColumnIndex("_id") : ID_COLUMN_INDEX;
+            final int dataColumnIndex = c.getColumnIndex(KEY_DATA) >= 0 ? c.getColumnIndex(KEY_DATA) : DATA_COLUMN_INDEX;
             while (c.moveToNext()) {
-                if (c.isLast()) {
-                    final int idColumnIndex = c.getColumnIndex("_id") >= 0 ? c.getColumnIndex("_id") : ID_COLUMN_INDEX;
-                    last_id = c.getString(idColumnIndex);
+                final int batchLength = arr.length();
+                if (recordCount > 0) {
+                    arr.append(',');
                 }
-                try {
-                    final int dataColumnIndex = c.getColumnIndex(KEY_DATA) >= 0 ? c.getColumnIndex(KEY_DATA) : DATA_COLUMN_INDEX;
-                    final JSONObject j = new JSONObject(c.getString(dataColumnIndex));
-                    arr.put(j);
-                } catch (final JSONException e) {
-                    // Ignore this object
+                if (appendRecord(c, dataColumnIndex, c.getLong(idColumnIndex), overlays, arr)) {
+                    // Records are mostly ASCII, so their length is close enough to their UTF-8 size.
+                    if (recordCount > 0 && arr.length() + 1 > maxBytes) {
+                        arr.setLength(batchLength);
+                        break;
+                    }
+                    recordCount++;
+                } else {
+                    // Ignore this object, it's deleted along with the batch
+                    arr.setLength(batchLength);
                 }
+
+                if (first_id == null) {
+                    first_id = c.getString(idColumnIndex);
+                }
+                last_id = c.getString(idColumnIndex);
             }
 
-            if (arr.length() > 0) {
-                data = arr.toString();
+            if (recordCount > 0) {
+                data = arr.append(']').toString();
             }
         } catch (final SQLiteException e) {
             MPLog.e(LOGTAG, "Could not pull records for Mmp out of database " + tableName + ". Waiting to send.", e);
@@ -679,26 +1621,129 @@ import com.mmp.android.util.MPLog;
             last_id = null;
             data = null;
         } finally {
-            mDb.close();
+            releaseDatabase();
             if (c != null) {
                 c.close();
             }
-            if (queueCountCursor != null) {
-                queueCountCursor.close();
-            }
         }
 
         if (last_id != null && data != null) {
-            final String[] ret = {last_id, data, queueCount};
+            final String[] ret = {last_id, data, queueCount, first_id};
             return ret;
         }
         return null;
     }
 
+    // Appends the JSON text of the record in the current row, or returns false if it doesn't hold one.
+    private static boolean appendRecord(Cursor c, int dataColumnIndex, long id, List<PropertyOverlay> overlays, StringBuilder out) {
+        String record;
+        if (c.getType(dataColumnIndex) == Cursor.FIELD_TYPE_BLOB) {
+            try {
+                if (!isCoveredByPropertyOverlay(overlays, id)) {
+                    CompactRecordCodec.appendJson(c.getBlob(dataColumnIndex), out);
+                    return true;
+                }
+                record = CompactRecordCodec.toJson(c.getBlob(dataColumnIndex));
+            } catch (final JSONException e) {
+                return false;
+            }
+        } else {
+            record = c.getString(dataColumnIndex);
+            // A row cut short or corrupted on disk would make the whole batch invalid
+            if (!JsonValidator.isObject(record)) {
+                return false;
+            }
+        }
+
+        if (!overlays.isEmpty()) {
+            record = applyPropertyOverlays(overlays, id, record);
+        }
+        out.append(record);
+        return true;
+    }
+
+    // Returns the JSON text of the record in the current row, whichever format it was stored in.
+    private static String readRecord(Cursor c, int dataColumnIndex) throws JSONException {
+        if (c.getType(dataColumnIndex) == Cursor.FIELD_TYPE_BLOB) {
+            return CompactRecordCodec.toJson(c.getBlob(dataColumnIndex));
+        }
+        return c.getString(dataColumnIndex);
+    }
+
+    /**
+     * @return the batch of the table and token that was sent without the server confirming it, or null
+     */
+    public UploadAttempt getUploadAttempt(Table table, String token) {
+        Cursor c = null;
+        try {
+            final SQLiteDatabase db = openDatabase();
+            c = db.rawQuery("SELECT " + KEY_FIRST_ID + ", " + KEY_LAST_ID + ", " + KEY_AUTOMATIC_DATA + ", " + KEY_MIN_PRIORITY + ", " +
+                    KEY_BATCH_ID + ", " + KEY_ATTEMPT + " FROM " + UPLOAD_ATTEMPTS_TABLE + " WHERE " + KEY_TABLE_NAME + " = ? AND " + KEY_TOKEN + " = ?",
+                    new String[] { table.getName(), token });
+            if (c.moveToNext()) {
+                return new UploadAttempt(table, token, c.getLong(0), c.getLong(1), c.getInt(2) != 0, c.getInt(3), c.getString(4), c.getInt(5));
+            }
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not read the last upload attempt of " + table.getName() + ".", e);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+            releaseDatabase();
+        }
+        return null;
+    }
+
+    /**
+     * Records a batch about to be sent, replacing the earlier batch of its table and token.
+     * @return false if it couldn't be stored
+     */
+    public boolean putUploadAttempt(UploadAttempt attempt) {
+        try {
+            final SQLiteDatabase db = openDatabase();
+            final SQLiteStatement insert = getStatement(db, "INSERT OR REPLACE INTO " + UPLOAD_ATTEMPTS_TABLE + " (" + KEY_TABLE_NAME + ", " + KEY_TOKEN + ", " +
+                    KEY_FIRST_ID + ", " + KEY_LAST_ID + ", " + KEY_AUTOMATIC_DATA + ", " + KEY_MIN_PRIORITY + ", " + KEY_BATCH_ID + ", " + KEY_ATTEMPT +
+                    ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+            insert.bindString(1, attempt.getTable().getName());
+            bindToken(insert, 2, attempt.getToken());
+            insert.bindLong(3, attempt.getFirstId());
+            insert.bindLong(4, attempt.getLastId());
+            insert.bindLong(5, attempt.getIncludeAutomaticEvents() ? 1 : 0);
+            insert.bindLong(6, attempt.getMinPriority());
+            insert.bindString(7, attempt.getBatchId());
+            insert.bindLong(8, attempt.getAttempt());
+            insert.executeInsert();
+            return true;
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not record the upload attempt of " + attempt.getTable().getName() + ".", e);
+            return false;
+        } finally {
+            releaseDatabase();
+        }
+    }
+
+    /**
+     * Forgets the batch of the table and token, once the server confirmed it.
+     */
+    public void clearUploadAttempt(Table table, String token) {
+        try {
+            final SQLiteDatabase db = openDatabase();
+            final SQLiteStatement delete = getStatement(db, "DELETE FROM " + UPLOAD_ATTEMPTS_TABLE + " WHERE " + KEY_TABLE_NAME + " = ? AND " + KEY_TOKEN + " = ?");
+            delete.bindString(1, table.getName());
+            bindToken(delete, 2, token);
+            delete.executeUpdateDelete();
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not clear the upload attempt of " + table.getName() + ".", e);
+        } finally {
+            releaseDatabase();
+        }
+    }
+
     public File getDatabaseFile() {
         return mDb.mDatabaseFile;
     }
 
+
     /* For testing use only, do not call from in production code */
     protected boolean belowMemThreshold() {
         return mDb.belowMemThreshold();
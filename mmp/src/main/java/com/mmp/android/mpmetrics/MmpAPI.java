@@ -35,6 +35,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
@@ -421,7 +422,7 @@ public class MmpAPI {
         mTrackingDebug = constructTrackingDebug();
         mMessages = getAnalyticsMessages();
         mPersistentIdentity = getPersistentIdentity(context, referrerPreferences, token);
-        mEventTimings = mPersistentIdentity.getTimeEvents();
+        mTimedEvents = new TimedEventStore(mPersistentIdentity);
 
         if (optOutTrackingDefault && (hasOptedOutTracking() || !mPersistentIdentity.hasOptOutFlag(token))) {
             optOutTracking();
@@ -797,10 +798,7 @@ public class MmpAPI {
     public void timeEvent(final String eventName) {
         if (hasOptedOutTracking()) return;
         final long writeTime = System.currentTimeMillis();
-        synchronized (mEventTimings) {
-            mEventTimings.put(eventName, writeTime);
-            mPersistentIdentity.addTimeEvent(eventName, writeTime);
-        }
+        mTimedEvents.start(eventName, writeTime);
     }
 
     /**
@@ -812,10 +810,7 @@ public class MmpAPI {
      */
     public double eventElapsedTime(final String eventName) {
         final long currentTime = System.currentTimeMillis();
-        Long startTime;
-        synchronized (mEventTimings) {
-            startTime = mEventTimings.get(eventName);
-        }
+        final Long startTime = mTimedEvents.get(eventName);
         return startTime == null ? 0 : (double)((currentTime - startTime) / 1000);
     }
 
@@ -910,6 +905,139 @@ public class MmpAPI {
         track(eventName, null);
     }
 
+    /**
+     * Track an event with the given priority, instead of the priority set with
+     * {@link #setEventPriority(String, EventPriority)}.
+     *
+     * @param eventName The name of the event to send
+     * @param properties A JSONObject containing the key value pairs of the properties to include in this event.
+     *                   Pass null if no extra properties exist.
+     * @param priority how soon the event should be sent
+     */
+    public void track(String eventName, JSONObject properties, EventPriority priority) {
+        if (hasOptedOutTracking()) return;
+        track(eventName, properties, false, priority);
+    }
+
+    /**
+     * Track an event with properties built from primitive values.
+     *
+     * <p>Works just like {@link #track(String, JSONObject)}, but the properties are written to
+     * JSON text as they're put, so events tracked very often don't build a JSONObject each time.
+     * The properties are copied, so the builder can be recycled as soon as this returns.
+     *
+     * @param eventName The name of the event to send
+     * @param properties the properties to include in this event, or null if there are none
+     *
+     * See also {@link EventProperties#obtain()}
+     */
+    public void trackProperties(String eventName, EventProperties properties) {
+        trackProperties(eventName, properties, null);
+    }
+
+    /**
+     * Like {@link #trackProperties(String, EventProperties)}, with the given priority instead of
+     * the priority set with {@link #setEventPriority(String, EventPriority)}.
+     *
+     * @param eventName The name of the event to send
+     * @param properties the properties to include in this event, or null if there are none
+     * @param priority how soon the event should be sent
+     */
+    public void trackProperties(String eventName, EventProperties properties, EventPriority priority) {
+        if (hasOptedOutTracking()) return;
+        track(eventName, null, null == properties ? null : properties.encode(), false, priority);
+    }
+
+    /**
+     * Track all the events in the batch, in order.
+     *
+     * <p>Meant for sending many events at once, such as interactions buffered while offline. The
+     * events are queued together and written to storage in a single transaction. Identity, super
+     * and referrer properties are read once for the whole batch. Unlike {@link #track(String, JSONObject)},
+     * batched events don't trigger in-app notifications.
+     *
+     * @param batch the events to track
+     */
+    public void trackBatch(EventBatch batch) {
+        if (hasOptedOutTracking() || null == batch || batch.size() == 0) return;
+
+        final PropertySnapshot referrerProperties = mPersistentIdentity.getReferrerPropertiesSnapshot();
+        final PropertySnapshot superProperties = mPersistentIdentity.getSuperPropertiesSnapshot();
+        final String distinctId = getDistinctId();
+        final String anonymousId = getAnonymousId();
+        final String userId = getUserId();
+        final boolean hadPersistedDistinctId = mPersistentIdentity.getHadPersistedDistinctId();
+        final long now = System.currentTimeMillis();
+        final JSONObject[] metadata = mSessionMetadata.getMetadataForEvents(batch.size());
+
+        final List<AnalyticsMessages.EventDescription> events = new ArrayList<AnalyticsMessages.EventDescription>(batch.size());
+        final Set<String> eventNames = new HashSet<String>();
+        for (int i = 0; i < batch.size(); i++) {
+            final String eventName = batch.mEventNames.get(i);
+            final JSONObject properties = batch.mProperties.get(i);
+            final long time = batch.mTimes.get(i) != null ? batch.mTimes.get(i) : now;
+            try {
+                final JSONObject messageProps = new JSONObject();
+                final double timeSecondsDouble = time / 1000.0;
+                messageProps.put("time", (long) timeSecondsDouble);
+                messageProps.put("distinct_id", distinctId);
+                messageProps.put("$had_persisted_distinct_id", hadPersistedDistinctId);
+                if (anonymousId != null) {
+                    messageProps.put("$device_id", anonymousId);
+                }
+                if (userId != null) {
+                    messageProps.put("$user_id", userId);
+                }
+
+                final Long eventBegin = mTimedEvents.stop(eventName);
+                if (null != eventBegin) {
+                    messageProps.put("$duration", timeSecondsDouble - ((double) eventBegin) / 1000.0);
+                }
+
+                if (null != properties) {
+                    for (final Iterator<String> keys = properties.keys(); keys.hasNext();) {
+                        final String key = keys.next();
+                        messageProps.put(key, properties.get(key));
+                    }
+                }
+
+                final EventPriority priority = null == eventName ? null : mEventPriorities.get(eventName);
+                events.add(new AnalyticsMessages.EventDescription(eventName, messageProps, mToken, false,
+                        metadata[i], toQueuePriority(priority), referrerProperties, superProperties));
+                eventNames.add(eventName);
+            } catch (final JSONException e) {
+                MPLog.e(LOGTAG, "Exception tracking event " + eventName, e);
+            }
+        }
+
+        mMessages.eventsBatchMessage(events);
+
+        if (null != mTrackingDebug) {
+            for (final String eventName : eventNames) {
+                mTrackingDebug.reportTrack(eventName);
+            }
+        }
+    }
+
+    /**
+     * Set the priority of every event tracked with the given name from now on.
+     *
+     * <p>{@link EventPriority#CRITICAL} events, such as purchases, are sent as soon as they're
+     * tracked rather than with the next flush. {@link EventPriority#LOW} events are only sent
+     * with a regular flush, and not when the queue fills up ahead of time over a metered network.
+     *
+     * @param eventName the name of the event
+     * @param priority the priority to use, or null to go back to {@link EventPriority#NORMAL}
+     */
+    public void setEventPriority(String eventName, EventPriority priority) {
+        if (null == eventName) return;
+        if (null == priority) {
+            mEventPriorities.remove(eventName);
+        } else {
+            mEventPriorities.put(eventName, priority);
+        }
+    }
+
     /**
      * Push all queued Mmp events and People Analytics changes to Mmp servers.
      *
@@ -1313,10 +1441,7 @@ public class MmpAPI {
             getPeople().clearCharges();
         }
         mPersistentIdentity.clearPreferences();
-        synchronized (mEventTimings) {
-            mEventTimings.clear();
-            mPersistentIdentity.clearTimeEvents();
-        }
+        mTimedEvents.clear();
         mPersistentIdentity.clearReferrerProperties();
         mPersistentIdentity.setOptOutTracking(true, mToken);
     }
@@ -1382,6 +1507,68 @@ public class MmpAPI {
         return mPersistentIdentity.getOptOutTracking(mToken);
     }
 
+    /**
+     * How soon a tracked event should be sent to Mmp.
+     *
+     * @see #setEventPriority(String, EventPriority)
+     */
+    public enum EventPriority {
+        /** Sent with regular flushes only. */
+        LOW,
+        /** The default. */
+        NORMAL,
+        /** Sent as soon as it's tracked. */
+        CRITICAL
+    }
+
+    /**
+     * A list of events to track at once with {@link #trackBatch(EventBatch)}.
+     *
+     * <p>The properties are read when the batch is tracked, so they shouldn't be changed until
+     * then. Not thread safe.
+     */
+    public static class EventBatch {
+        /**
+         * Adds an event, timed when the batch is tracked.
+         *
+         * @param eventName The name of the event to send
+         * @param properties A JSONObject containing the key value pairs of the properties to include in this event.
+         *                   Pass null if no extra properties exist.
+         * @return this batch
+         */
+        public EventBatch add(String eventName, JSONObject properties) {
+            return add(eventName, properties, null);
+        }
+
+        /**
+         * Adds an event that happened at the given time.
+         *
+         * @param eventName The name of the event to send
+         * @param properties A JSONObject containing the key value pairs of the properties to include in this event.
+         *                   Pass null if no extra properties exist.
+         * @param timeMillis when the event happened, in milliseconds since the epoch
+         * @return this batch
+         */
+        public EventBatch add(String eventName, JSONObject properties, long timeMillis) {
+            return add(eventName, properties, Long.valueOf(timeMillis));
+        }
+
+        public int size() {
+            return mEventNames.size();
+        }
+
+        private EventBatch add(String eventName, JSONObject properties, Long timeMillis) {
+            mEventNames.add(eventName);
+            mProperties.add(properties);
+            mTimes.add(timeMillis);
+            return this;
+        }
+
+        private final List<String> mEventNames = new ArrayList<String>();
+        private final List<JSONObject> mProperties = new ArrayList<JSONObject>();
+        private final List<Long> mTimes = new ArrayList<Long>();
+    }
+
     /**
      * Core interface for using Mmp People Analytics features.
      * You can get an instance by calling {@link MmpAPI#getPeople()}
@@ -1474,6 +1661,17 @@ public class MmpAPI {
          */
         public void set(JSONObject properties);
 
+        /**
+         * Set a collection of properties built from primitive values on the identified user all at once.
+         *
+         * <p>Profile updates are merged with the ones already queued, so unlike
+         * {@link MmpAPI#trackProperties(String, EventProperties)} the properties are read back
+         * into a JSONObject here.
+         *
+         * @param properties the properties you wish to apply to the identified user
+         */
+        public void set(EventProperties properties);
+
         /**
          * Works just like {@link People#set(String, Object)}, except it will not overwrite existing property values. This is useful for properties like "First login date".
          *
@@ -2008,6 +2206,7 @@ public class MmpAPI {
         if (mConfig.getFlushOnBackground()) {
             flush();
         }
+        mTimedEvents.persist();
         mUpdatesFromMmp.applyPersistedUpdates();
     }
 
@@ -2162,6 +2361,12 @@ public class MmpAPI {
             }
         }
 
+        @Override
+        public void set(EventProperties properties) {
+            if (hasOptedOutTracking()) return;
+            set(properties.toJSONObject());
+        }
+
         @Override
         public void setOnceMap(Map<String, Object> properties) {
             if (hasOptedOutTracking()) return;
@@ -2376,7 +2581,10 @@ public class MmpAPI {
                     }
                 }
 
-                this.append("$transactions", transactionValue);
+                // Revenue shouldn't wait for the next flush
+                final JSONObject appended = new JSONObject();
+                appended.put("$transactions", transactionValue);
+                recordPeopleMessage(stdPeopleMessage("$append", appended), true);
             } catch (final JSONException e) {
                 MPLog.e(LOGTAG, "Exception creating new charge", e);
             }
@@ -2864,28 +3072,32 @@ public class MmpAPI {
     }
 
     protected void track(String eventName, JSONObject properties, boolean isAutomaticEvent) {
+        track(eventName, properties, isAutomaticEvent, null);
+    }
+
+    // A null priority uses the one set for the event name, if any
+    private void track(String eventName, JSONObject properties, boolean isAutomaticEvent, EventPriority priority) {
+        track(eventName, properties, null, isAutomaticEvent, priority);
+    }
+
+    // The encoded properties are passed through to the worker untouched
+    private void track(String eventName, JSONObject properties, EventProperties.Encoded encodedProperties, boolean isAutomaticEvent, EventPriority priority) {
         if (hasOptedOutTracking() || (isAutomaticEvent && !mDecideMessages.shouldTrackAutomaticEvent())) {
             return;
         }
-
-        final Long eventBegin;
-        synchronized (mEventTimings) {
-            eventBegin = mEventTimings.get(eventName);
-            mEventTimings.remove(eventName);
-            mPersistentIdentity.removeTimeEvent(eventName);
+        if (null == priority && null != eventName) {
+            priority = mEventPriorities.get(eventName);
         }
 
+        // Only touches the disk if the event was being timed, and not before the write-behind delay
+        final Long eventBegin = mTimedEvents.stop(eventName);
+
         try {
             final JSONObject messageProps = new JSONObject();
 
-            final Map<String, String> referrerProperties = mPersistentIdentity.getReferrerProperties();
-            for (final Map.Entry<String, String> entry : referrerProperties.entrySet()) {
-                final String key = entry.getKey();
-                final String value = entry.getValue();
-                messageProps.put(key, value);
-            }
-
-            mPersistentIdentity.addSuperPropertiesToObject(messageProps);
+            // Only the current snapshots are captured here, the worker merges them into the event
+            final PropertySnapshot referrerProperties = mPersistentIdentity.getReferrerPropertiesSnapshot();
+            final PropertySnapshot superProperties = mPersistentIdentity.getSuperPropertiesSnapshot();
 
             // Don't allow super properties or referral properties to override these fields,
             // but DO allow the caller to override them in their given properties.
@@ -2920,7 +3132,8 @@ public class MmpAPI {
 
             final AnalyticsMessages.EventDescription eventDescription =
                     new AnalyticsMessages.EventDescription(eventName, messageProps,
-                            mToken, isAutomaticEvent, mSessionMetadata.getMetadataForEvent());
+                            mToken, isAutomaticEvent, mSessionMetadata.getMetadataForEvent(), toQueuePriority(priority),
+                            referrerProperties, superProperties, encodedProperties);
             mMessages.eventsMessage(eventDescription);
 
             if (mMmpActivityLifecycleCallbacks.getCurrentActivity() != null) {
@@ -2936,8 +3149,21 @@ public class MmpAPI {
     }
 
     private void recordPeopleMessage(JSONObject message) {
+        recordPeopleMessage(message, false);
+    }
+
+    private void recordPeopleMessage(JSONObject message, boolean isCritical) {
         if (hasOptedOutTracking()) return;
-        mMessages.peopleMessage(new AnalyticsMessages.PeopleDescription(message, mToken));
+        mMessages.peopleMessage(new AnalyticsMessages.PeopleDescription(message, mToken, isCritical));
+    }
+
+    private static int toQueuePriority(EventPriority priority) {
+        if (priority == EventPriority.CRITICAL) {
+            return MPDbAdapter.PRIORITY_CRITICAL;
+        } else if (priority == EventPriority.LOW) {
+            return MPDbAdapter.PRIORITY_LOW;
+        }
+        return MPDbAdapter.PRIORITY_NORMAL;
     }
 
     private void recordGroupMessage(JSONObject message) {
@@ -3029,7 +3255,8 @@ public class MmpAPI {
     private final ConnectIntegrations mConnectIntegrations;
     private final DecideMessages mDecideMessages;
     private final Map<String, String> mDeviceInfo;
-    private final Map<String, Long> mEventTimings;
+    private final TimedEventStore mTimedEvents;
+    private final Map<String, EventPriority> mEventPriorities = new ConcurrentHashMap<>();
     private MmpActivityLifecycleCallbacks mMmpActivityLifecycleCallbacks;
     private final SessionMetadata mSessionMetadata;
 
@@ -60,18 +60,23 @@ import com.mmp.android.util.MPLog;
 
     // Super properties
     public void addSuperPropertiesToObject(JSONObject ob) {
-        synchronized (mSuperPropsLock) {
-            final JSONObject superProperties = this.getSuperPropertiesCache();
-            final Iterator<?> superIter = superProperties.keys();
-            while (superIter.hasNext()) {
-                final String key = (String) superIter.next();
+        try {
+            getSuperPropertiesSnapshot().addTo(ob);
+        } catch (JSONException e) {
+            MPLog.e(LOGTAG, "Object read from one JSON Object cannot be written to another", e);
+        }
+    }
 
-                try {
-                    ob.put(key, superProperties.get(key));
-                } catch (JSONException e) {
-                    MPLog.e(LOGTAG, "Object read from one JSON Object cannot be written to another", e);
-                }
-            }
+    // Lock free once the super properties have been loaded. Changes publish a new snapshot
+    // rather than changing the one returned.
+    public PropertySnapshot getSuperPropertiesSnapshot() {
+        final PropertySnapshot snapshot = mSuperPropertiesSnapshot;
+        if (null != snapshot) {
+            return snapshot;
+        }
+        synchronized (mSuperPropsLock) {
+            getSuperPropertiesCache();
+            return mSuperPropertiesSnapshot;
         }
     }
 
@@ -155,6 +160,21 @@ import com.mmp.android.util.MPLog;
         }
     }
 
+    // Lock free unless the referrer properties have been written since they were last read.
+    public PropertySnapshot getReferrerPropertiesSnapshot() {
+        final PropertySnapshot snapshot = mReferrerPropertiesSnapshot;
+        if (null != snapshot && !sReferrerPrefsDirty) {
+            return snapshot;
+        }
+        synchronized (sReferrerPrefsLock) {
+            if (sReferrerPrefsDirty || null == mReferrerPropertiesCache) {
+                readReferrerProperties();
+                sReferrerPrefsDirty = false;
+            }
+            return mReferrerPropertiesSnapshot;
+        }
+    }
+
     public Map<String, String> getReferrerProperties() {
         synchronized (sReferrerPrefsLock) {
             if (sReferrerPrefsDirty || null == mReferrerPropertiesCache) {
@@ -264,7 +284,9 @@ import com.mmp.android.util.MPLog;
             final SharedPreferences.Editor prefsEdit = prefs.edit();
             prefsEdit.clear();
             writeEdits(prefsEdit);
-            readSuperProperties();
+            synchronized (mSuperPropsLock) {
+                readSuperProperties();
+            }
             readIdentities();
         } catch (final ExecutionException e) {
             throw new RuntimeException(e.getCause());
@@ -273,19 +295,6 @@ import com.mmp.android.util.MPLog;
         }
     }
 
-    public void clearTimeEvents() {
-        try {
-            final SharedPreferences prefs = mTimeEventsPreferences.get();
-            final SharedPreferences.Editor editor = prefs.edit();
-            editor.clear();
-            writeEdits(editor);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } catch (ExecutionException e) {
-            e.printStackTrace();
-        }
-    }
-
     public synchronized void storePushId(String registrationId) {
         try {
             final SharedPreferences prefs = mLoadStoredPreferences.get();
@@ -344,26 +353,15 @@ import com.mmp.android.util.MPLog;
         return timeEvents;
     }
 
-    // access is synchronized outside (mEventTimings)
-    public void removeTimeEvent(String timeEventName) {
+    // Replaces the stored timed events with the given ones, see TimedEventStore
+    public void writeTimeEvents(Map<String, Long> timeEvents) {
         try {
             final SharedPreferences prefs = mTimeEventsPreferences.get();
             final SharedPreferences.Editor editor = prefs.edit();
-            editor.remove(timeEventName);
-            writeEdits(editor);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } catch (ExecutionException e) {
-            e.printStackTrace();
-        }
-    }
-
-    // access is synchronized outside (mEventTimings)
-    public void addTimeEvent(String timeEventName, Long timeEventTimestamp) {
-        try {
-            final SharedPreferences prefs = mTimeEventsPreferences.get();
-            final SharedPreferences.Editor editor = prefs.edit();
-            editor.putLong(timeEventName, timeEventTimestamp);
+            editor.clear();
+            for (final Map.Entry<String, Long> entry : timeEvents.entrySet()) {
+                editor.putLong(entry.getKey(), entry.getValue());
+            }
             writeEdits(editor);
         } catch (InterruptedException e) {
             e.printStackTrace();
@@ -538,11 +536,12 @@ import com.mmp.android.util.MPLog;
                 mSuperPropertiesCache = new JSONObject();
             }
         }
+        publishSuperProperties();
     }
 
     // All access should be synchronized on this
     private void readReferrerProperties() {
-        mReferrerPropertiesCache = new HashMap<String, String>();
+        final Map<String, String> referrerProperties = new HashMap<String, String>();
 
         try {
             final SharedPreferences referrerPrefs = mLoadReferrerPreferences.get();
@@ -553,13 +552,16 @@ import com.mmp.android.util.MPLog;
             for (final Map.Entry<String, ?> entry : prefsMap.entrySet()) {
                 final String prefsName = entry.getKey();
                 final Object prefsVal = entry.getValue();
-                mReferrerPropertiesCache.put(prefsName, prefsVal.toString());
+                referrerProperties.put(prefsName, prefsVal.toString());
             }
         } catch (final ExecutionException e) {
             MPLog.e(LOGTAG, "Cannot load referrer properties from shared preferences.", e.getCause());
         } catch (final InterruptedException e) {
             MPLog.e(LOGTAG, "Cannot load referrer properties from shared preferences.", e);
         }
+        mReferrerPropertiesCache = referrerProperties;
+        mReferrerPropertiesVersion++;
+        mReferrerPropertiesSnapshot = new PropertySnapshot(mReferrerPropertiesVersion, referrerProperties);
     }
 
     // All access should be synchronized on this
@@ -569,6 +571,7 @@ import com.mmp.android.util.MPLog;
             return;
         }
 
+        publishSuperProperties();
         final String props = mSuperPropertiesCache.toString();
         MPLog.v(LOGTAG, "Storing Super Properties " + props);
 
@@ -584,6 +587,12 @@ import com.mmp.android.util.MPLog;
         }
     }
 
+    // All access should be synchronized on mSuperPropsLock
+    private void publishSuperProperties() {
+        mSuperPropertiesVersion++;
+        mSuperPropertiesSnapshot = new PropertySnapshot(mSuperPropertiesVersion, mSuperPropertiesCache);
+    }
+
     // All access should be synchronized on this
     private void readIdentities() {
         SharedPreferences prefs = null;
@@ -698,6 +707,10 @@ import com.mmp.android.util.MPLog;
     private JSONObject mSuperPropertiesCache;
     private Object mSuperPropsLock = new Object();
     private Map<String, String> mReferrerPropertiesCache;
+    private volatile PropertySnapshot mSuperPropertiesSnapshot;
+    private volatile PropertySnapshot mReferrerPropertiesSnapshot;
+    private long mSuperPropertiesVersion;
+    private long mReferrerPropertiesVersion;
     private boolean mIdentitiesLoaded;
     private String mEventsDistinctId;
     private boolean mEventsUserIdPresent;
@@ -708,7 +721,7 @@ import com.mmp.android.util.MPLog;
     private static Integer sPreviousVersionCode;
     private static Boolean sIsFirstAppLaunch;
 
-    private static boolean sReferrerPrefsDirty = true;
+    private static volatile boolean sReferrerPrefsDirty = true;
     private static final Object sReferrerPrefsLock = new Object();
     private static final String DELIMITER = ",";
     private static final String LOGTAG = "MmpAPI.PIdentity";
@@ -0,0 +1,125 @@
+package com.mmp.android.mpmetrics;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+
+/**
+ * Folds consecutive $set or $set_once people updates into a single update, as they're promoted
+ * from the anonymous people queue.
+ *
+ * <p>Only updates that carry nothing but one $set or one $set_once, with the same automatic flag,
+ * are folded together. Any other operation ends the run, so the profile comes out the same as if
+ * every update had been sent: later $set values win, and earlier $set_once values win. The folded
+ * update keeps the envelope ($time, $mp_metadata...) of the last update in the run and the
+ * created_at of the first, so it doesn't outlive the data it replaces.
+ *
+ * <p>Not thread-safe.
+ */
+/* package */ class ProfileUpdateMerger {
+
+    public static class Update {
+        public Update(JSONObject record, boolean isAutomaticRecord, long createdAt) {
+            mRecord = record;
+            mIsAutomaticRecord = isAutomaticRecord;
+            mCreatedAt = createdAt;
+        }
+
+        public JSONObject getRecord() {
+            return mRecord;
+        }
+
+        public boolean isAutomaticRecord() {
+            return mIsAutomaticRecord;
+        }
+
+        public long getCreatedAt() {
+            return mCreatedAt;
+        }
+
+        private JSONObject mRecord;
+        private final boolean mIsAutomaticRecord;
+        private final long mCreatedAt;
+    }
+
+    /**
+     * Adds the next update, in queue order.
+     *
+     * @return the previous update, once it's known nothing more will be folded into it, or null
+     */
+    public Update add(JSONObject record, boolean isAutomaticRecord, long createdAt) throws JSONException {
+        final String action = getMergeableAction(record);
+        if (null != mPending && null != action && action.equals(mPendingAction) && isAutomaticRecord == mPending.isAutomaticRecord()) {
+            final JSONObject merged = mPending.getRecord().getJSONObject(action);
+            final JSONObject next = record.getJSONObject(action);
+            for (final Iterator<String> keys = next.keys(); keys.hasNext();) {
+                final String key = keys.next();
+                if (SET.equals(action) || !merged.has(key)) {
+                    merged.put(key, next.get(key));
+                }
+            }
+            record.put(action, merged);
+            mPending.mRecord = record;
+            mMergedCount++;
+            return null;
+        }
+
+        final Update ret = mPending;
+        mPending = new Update(record, isAutomaticRecord, createdAt);
+        mPendingAction = action;
+        return ret;
+    }
+
+    /**
+     * @return the last update, or null if there are none
+     */
+    public Update finish() {
+        final Update ret = mPending;
+        mPending = null;
+        mPendingAction = null;
+        return ret;
+    }
+
+    /**
+     * @return the number of updates folded into an earlier one so far
+     */
+    public int getMergedCount() {
+        return mMergedCount;
+    }
+
+    private static String getMergeableAction(JSONObject record) {
+        String action = null;
+        for (final Iterator<String> keys = record.keys(); keys.hasNext();) {
+            final String key = keys.next();
+            if (SET.equals(key) || SET_ONCE.equals(key)) {
+                if (null != action) {
+                    return null;
+                }
+                action = key;
+            } else if (isOperation(key)) {
+                return null;
+            }
+        }
+        return null != action && record.optJSONObject(action) != null ? action : null;
+    }
+
+    private static boolean isOperation(String key) {
+        for (final String operation : OTHER_OPERATIONS) {
+            if (operation.equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Update mPending;
+    private String mPendingAction;
+    private int mMergedCount;
+
+    private static final String SET = "$set";
+    private static final String SET_ONCE = "$set_once";
+    private static final String[] OTHER_OPERATIONS = {
+        "$add", "$append", "$union", "$remove", "$unset", "$delete",
+    };
+}
@@ -0,0 +1,52 @@
+package com.mmp.android.mpmetrics;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An immutable copy of a set of super or referrer properties, as of one version.
+ *
+ * <p>{@link PersistentIdentity} publishes a new snapshot every time the properties change, so
+ * tracking threads can read the current one without locking, and hand it to the worker to be
+ * merged into the event there.
+ */
+/* package */ class PropertySnapshot {
+
+    /* package */ PropertySnapshot(long version, JSONObject properties) {
+        final Map<String, Object> copy = new LinkedHashMap<>();
+        for (final Iterator<String> keys = properties.keys(); keys.hasNext();) {
+            final String key = keys.next();
+            copy.put(key, properties.opt(key));
+        }
+        mVersion = version;
+        mProperties = Collections.unmodifiableMap(copy);
+    }
+
+    /* package */ PropertySnapshot(long version, Map<String, ?> properties) {
+        mVersion = version;
+        mProperties = Collections.unmodifiableMap(new LinkedHashMap<String, Object>(properties));
+    }
+
+    // Increases every time the properties change.
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public Map<String, Object> getProperties() {
+        return mProperties;
+    }
+
+    public void addTo(JSONObject ob) throws JSONException {
+        for (final Map.Entry<String, Object> entry : mProperties.entrySet()) {
+            ob.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private final long mVersion;
+    private final Map<String, Object> mProperties;
+}
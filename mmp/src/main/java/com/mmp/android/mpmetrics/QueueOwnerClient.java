@@ -0,0 +1,147 @@
+package com.mmp.android.mpmetrics;
+
+import android.app.ActivityManager;
+import android.app.Application;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
+import android.os.Build;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+
+import com.mmp.android.util.MPLog;
+
+import java.util.List;
+
+/**
+ * Hands queue operations from this process to the process running {@link QueueOwnerService}.
+ *
+ * <p>Operations are always appended to this process's {@link QueueSpool} file first, and the owner
+ * is then asked over a bound {@link Messenger} to drain it. A message to the owner is one way, so
+ * the spool is what makes the handover reliable: the owner only empties the file once it has
+ * stored what it read, and drains it again if it dies in between and is restarted. While the
+ * owner isn't connected, the operations wait in the file until it connects. Only used from the
+ * worker thread, apart from the connection callbacks.
+ */
+/* package */ class QueueOwnerClient {
+
+    /**
+     * @return a client if the app declares a {@link QueueOwnerService} that runs in another
+     *     process, or null if this process owns the queue.
+     */
+    public static QueueOwnerClient forCurrentProcess(Context context) {
+        final String ownerProcess = getOwnerProcessName(context);
+        if (null == ownerProcess) {
+            return null;
+        }
+        final String currentProcess = getCurrentProcessName(context);
+        if (ownerProcess.equals(currentProcess)) {
+            return null;
+        }
+        // If we can't tell which process this is, it's safer to spool than to write to the store
+        return new QueueOwnerClient(context, null == currentProcess ? "unknown" : currentProcess);
+    }
+
+    /**
+     * @return the process {@link QueueOwnerService} runs in, or null if the app doesn't declare it
+     */
+    public static String getOwnerProcessName(Context context) {
+        try {
+            final ServiceInfo info = context.getPackageManager().getServiceInfo(new ComponentName(context, QueueOwnerService.class), 0);
+            return info.processName;
+        } catch (final PackageManager.NameNotFoundException e) {
+            return null;
+        }
+    }
+
+    public static String getCurrentProcessName(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            return Application.getProcessName();
+        }
+
+        final ActivityManager manager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        final List<ActivityManager.RunningAppProcessInfo> processes = null == manager ? null : manager.getRunningAppProcesses();
+        if (null != processes) {
+            final int pid = android.os.Process.myPid();
+            for (final ActivityManager.RunningAppProcessInfo process : processes) {
+                if (process.pid == pid) {
+                    return process.processName;
+                }
+            }
+        }
+        return null;
+    }
+
+    /* package */ QueueOwnerClient(Context context, String processName) {
+        mContext = context;
+        mProcessName = processName;
+        mSpool = new QueueSpool(context);
+        mConnection = new ServiceConnection() {
+            @Override
+            public void onServiceConnected(ComponentName name, IBinder service) {
+                final Messenger owner = new Messenger(service);
+                mOwner = owner;
+                if (mSpool.hasOperations(mProcessName)) {
+                    try {
+                        owner.send(Message.obtain(null, QueueOwnerService.MSG_DRAIN_SPOOL));
+                    } catch (final RemoteException e) {
+                        MPLog.w(LOGTAG, "Could not ask the queue owner to drain the spool", e);
+                    }
+                }
+            }
+
+            @Override
+            public void onServiceDisconnected(ComponentName name) {
+                // The binding stays, and reconnects when the owner is restarted
+                mOwner = null;
+            }
+
+            @Override
+            public void onBindingDied(ComponentName name) {
+                mOwner = null;
+                mContext.unbindService(this);
+                bind();
+            }
+        };
+        bind();
+    }
+
+    /**
+     * Spools the operations and asks the owner, if it's connected, to store them.
+     */
+    public void send(List<String> operations) {
+        if (operations.isEmpty() || !mSpool.append(mProcessName, operations)) {
+            return;
+        }
+
+        final Messenger owner = mOwner;
+        if (null != owner) {
+            try {
+                owner.send(Message.obtain(null, QueueOwnerService.MSG_DRAIN_SPOOL));
+            } catch (final RemoteException e) {
+                MPLog.w(LOGTAG, "Queue owner is gone, operations stay spooled until it's back", e);
+                mOwner = null;
+            }
+        }
+    }
+
+    private void bind() {
+        final Intent intent = new Intent(mContext, QueueOwnerService.class);
+        if (!mContext.bindService(intent, mConnection, Context.BIND_AUTO_CREATE)) {
+            MPLog.e(LOGTAG, "Could not bind to the queue owner service, operations will be spooled");
+        }
+    }
+
+    private final Context mContext;
+    private final String mProcessName;
+    private final QueueSpool mSpool;
+    private final ServiceConnection mConnection;
+    private volatile Messenger mOwner;
+
+    private static final String LOGTAG = "MmpAPI.QueueClient";
+}
@@ -0,0 +1,69 @@
+package com.mmp.android.mpmetrics;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+
+/**
+ * Makes one process of a multi-process app the only one that writes and uploads the Mmp queue.
+ *
+ * <p>By default every process that uses Mmp opens the same database and runs its own uploads,
+ * which leads to lock contention and records being sent twice. If your app runs in more than one
+ * process, add a clause like the following to the &lt;application&gt; tag of your
+ * AndroidManifest.xml, with the process that should own the queue:
+ *
+ *<pre>
+ *{@code
+ *
+ * <service
+ *  android:name="com.mmp.android.mpmetrics.QueueOwnerService"
+ *  android:process=":sync"
+ *  android:exported="false" />
+ *}
+ *</pre>
+ *
+ * <p>Other processes then write their events, people and group updates and flush requests to a
+ * spool file and ask that process, starting it if needed, to store them. The file is only emptied
+ * once the records are stored, so nothing is lost if the owning process dies first. Each process
+ * still runs its own decide checks.
+ */
+public class QueueOwnerService extends Service {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        final AnalyticsMessages messages = AnalyticsMessages.getInstance(this);
+        mMessenger = new Messenger(new IncomingHandler(messages));
+        // Anything spooled while we weren't running
+        messages.drainSpooledOperations();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mMessenger.getBinder();
+    }
+
+    private static class IncomingHandler extends Handler {
+        public IncomingHandler(AnalyticsMessages messages) {
+            super(Looper.getMainLooper());
+            mMessages = messages;
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == MSG_DRAIN_SPOOL) {
+                mMessages.drainSpooledOperations();
+            }
+        }
+
+        private final AnalyticsMessages mMessages;
+    }
+
+    private Messenger mMessenger;
+
+    /* package */ static final int MSG_DRAIN_SPOOL = 2; // another process spooled operations
+}
@@ -0,0 +1,172 @@
+package com.mmp.android.mpmetrics;
+
+import android.content.Context;
+
+import com.mmp.android.util.MPLog;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Spool files for the queue operations other processes hand to the process owning the queue.
+ *
+ * <p>Each process that doesn't own the queue appends to its own file, one operation per line.
+ * The owning process replays and empties every file when asked to, see {@link QueueOwnerClient}.
+ * Both sides hold a file lock while they work on a file, so appends made while the
+ * owner is draining are never lost.
+ *
+ * <p>The worker also spools records here, in a directory of its own, when its ingestion queue is
+ * full, see {@link IngestionQueue.Policy#SPILL_TO_DISK}. Thread safe.
+ */
+/* package */ class QueueSpool {
+
+    public interface OperationsReader {
+        /**
+         * Called with the spooled operations of one file, in the order they were spooled. The
+         * file is emptied once this returns, so the operations should be stored by then.
+         */
+        void onOperations(List<String> operations);
+    }
+
+    public QueueSpool(Context context) {
+        this(context, DIRECTORY_NAME);
+    }
+
+    public QueueSpool(Context context, String directoryName) {
+        mDirectory = new File(context.getFilesDir(), directoryName);
+    }
+
+    /**
+     * Appends the operations to the spool file with the given name.
+     *
+     * @return false if they couldn't be written, or the file is already full
+     */
+    // File locks are held by the process, so threads take turns on the instance
+    public synchronized boolean append(String name, List<String> operations) {
+        final StringBuilder lines = new StringBuilder();
+        for (final String operation : operations) {
+            lines.append(operation).append('\n');
+        }
+
+        final File file = getFile(name);
+        FileOutputStream out = null;
+        FileLock lock = null;
+        try {
+            if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+                MPLog.e(LOGTAG, "Could not create spool directory " + mDirectory);
+                return false;
+            }
+            out = new FileOutputStream(file, true);
+            lock = out.getChannel().lock();
+            final byte[] bytes = lines.toString().getBytes("UTF-8");
+            if (out.getChannel().size() + bytes.length > MAX_SPOOL_BYTES) {
+                MPLog.w(LOGTAG, "Spool file " + file.getName() + " is full, dropping " + operations.size() + " operations");
+                return false;
+            }
+            out.write(bytes);
+            out.flush();
+            return true;
+        } catch (final IOException e) {
+            MPLog.e(LOGTAG, "Could not spool " + operations.size() + " operations", e);
+            return false;
+        } finally {
+            release(lock);
+            if (null != out) {
+                try {
+                    out.close();
+                } catch (final IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    public boolean hasOperations(String name) {
+        return getFile(name).length() > 0;
+    }
+
+    /**
+     * Hands the operations of every spool file to the reader, and empties the files.
+     *
+     * @return the number of operations read
+     */
+    public synchronized int drain(OperationsReader reader) {
+        final File[] files = mDirectory.listFiles();
+        if (null == files) {
+            return 0;
+        }
+
+        int drained = 0;
+        for (final File file : files) {
+            RandomAccessFile raf = null;
+            FileLock lock = null;
+            try {
+                raf = new RandomAccessFile(file, "rw");
+                lock = raf.getChannel().lock();
+                final long length = raf.length();
+                if (length == 0) {
+                    continue;
+                }
+                final byte[] bytes = new byte[(int) Math.min(length, MAX_SPOOL_BYTES)];
+                raf.readFully(bytes);
+
+                // A line cut short by a crash while appending is left out
+                final List<String> operations = new ArrayList<>();
+                int start = 0;
+                for (int i = 0; i < bytes.length; i++) {
+                    if (bytes[i] == '\n') {
+                        if (i > start) {
+                            operations.add(new String(bytes, start, i - start, "UTF-8"));
+                        }
+                        start = i + 1;
+                    }
+                }
+
+                reader.onOperations(operations);
+                raf.setLength(0);
+                drained += operations.size();
+            } catch (final UnsupportedEncodingException e) {
+                throw new RuntimeException("UTF not supported on this platform?", e);
+            } catch (final IOException e) {
+                MPLog.e(LOGTAG, "Could not read spool file " + file.getName(), e);
+            } finally {
+                release(lock);
+                if (null != raf) {
+                    try {
+                        raf.close();
+                    } catch (final IOException e) {
+                        // ignore
+                    }
+                }
+            }
+        }
+        return drained;
+    }
+
+    private File getFile(String name) {
+        return new File(mDirectory, name.replaceAll("[^A-Za-z0-9._-]", "_"));
+    }
+
+    private static void release(FileLock lock) {
+        if (null != lock) {
+            try {
+                lock.release();
+            } catch (final IOException e) {
+                // Released when the file is closed anyway
+            }
+        }
+    }
+
+    private final File mDirectory;
+
+    private static final String DIRECTORY_NAME = "mmp_spool";
+    private static final long MAX_SPOOL_BYTES = 4 * 1024 * 1024;
+
+    private static final String LOGTAG = "MmpAPI.QueueSpool";
+}
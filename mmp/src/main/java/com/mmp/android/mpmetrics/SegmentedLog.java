@@ -0,0 +1,540 @@
+package com.mmp.android.mpmetrics;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only queue of records stored in fixed size, memory-mapped segment files.
+ *
+ * <p>Every entry is written as its length, a CRC32 of its body and the body, with the length
+ * written last. Reopening the log scans the segments in order and stops a segment at the first
+ * entry that is incomplete or fails its checksum, so a crash in the middle of a write loses at
+ * most that entry.
+ *
+ * <p>Records are never rewritten. Acknowledging the records of a token through an id appends an
+ * acknowledgement entry and moves that token's read cursor; a segment file is deleted as a whole
+ * once every record in it, and in the segments before it, has been acknowledged. Property patches
+ * for queued records are appended the same way, and dropped once the records they cover are gone.
+ *
+ * <p>Not thread-safe.
+ */
+/* package */ class SegmentedLog {
+
+    /* package */ static class Record {
+        private Record(long id, long createdAt, boolean isAutomatic, String token, Segment segment, int dataOffset, int dataLength) {
+            mId = id;
+            mCreatedAt = createdAt;
+            mIsAutomatic = isAutomatic;
+            mToken = token;
+            mSegment = segment;
+            mDataOffset = dataOffset;
+            mDataLength = dataLength;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        public long getCreatedAt() {
+            return mCreatedAt;
+        }
+
+        public boolean isAutomatic() {
+            return mIsAutomatic;
+        }
+
+        public String getToken() {
+            return mToken;
+        }
+
+        public byte[] getData() {
+            final byte[] data = new byte[mDataLength];
+            final ByteBuffer buffer = mSegment.mBuffer.duplicate();
+            buffer.position(mDataOffset);
+            buffer.get(data);
+            return data;
+        }
+
+        private final long mId;
+        private final long mCreatedAt;
+        private final boolean mIsAutomatic;
+        private final String mToken;
+        private final Segment mSegment;
+        private final int mDataOffset;
+        private final int mDataLength;
+    }
+
+    /* package */ static class Patch {
+        private Patch(long maxId, byte[] data) {
+            mMaxId = maxId;
+            mData = data;
+        }
+
+        // The patch applies to the token's records with an id up to this one
+        public long getMaxId() {
+            return mMaxId;
+        }
+
+        public byte[] getData() {
+            return mData;
+        }
+
+        private final long mMaxId;
+        private final byte[] mData;
+    }
+
+    /* package */ SegmentedLog(File directory, int segmentSize) throws IOException {
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Could not create " + mDirectory);
+        }
+        recover();
+    }
+
+    /**
+     * Appends a record and returns its id. Ids grow with every append, including across restarts.
+     * The record is durable once {@link #sync()} returns.
+     */
+    public long append(String token, boolean isAutomatic, long createdAt, byte[] data) throws IOException {
+        final long id = mNextId;
+        final int dataOffset = writeEntry(TYPE_RECORD, id, createdAt, isAutomatic, token, data);
+        mNextId++;
+        addRecord(new Record(id, createdAt, isAutomatic, token, mSegments.getLast(), dataOffset, data.length));
+        return id;
+    }
+
+    /**
+     * Records a patch for every record of the token appended so far.
+     */
+    public void appendPatch(String token, byte[] data) throws IOException {
+        final long maxId = mNextId - 1;
+        writeEntry(TYPE_PATCH, maxId, System.currentTimeMillis(), false, token, data);
+        getPatches(token).add(new Patch(maxId, data));
+    }
+
+    /**
+     * Removes the records of the token with the given automatic flag and an id up to throughId.
+     *
+     * @return the number of records removed
+     */
+    public int acknowledge(String token, boolean isAutomatic, long throughId) throws IOException {
+        final ArrayDeque<Record> records = mRecords.get(cursorKey(token, isAutomatic));
+        if (records == null || records.isEmpty() || records.peekFirst().getId() > throughId) {
+            return 0;
+        }
+        writeEntry(TYPE_ACKNOWLEDGEMENT, throughId, System.currentTimeMillis(), isAutomatic, token, EMPTY);
+        final int removed = removeThrough(token, isAutomatic, throughId);
+        deleteAcknowledgedSegments();
+        return removed;
+    }
+
+    /**
+     * Removes the records created at or before time.
+     *
+     * @return the number of records removed
+     */
+    public int expire(long time) throws IOException {
+        int removed = 0;
+        for (final String key : new ArrayList<>(mRecords.keySet())) {
+            final ArrayDeque<Record> records = mRecords.get(key);
+            long throughId = -1;
+            String token = null;
+            boolean isAutomatic = false;
+            for (final Record record : records) {
+                if (record.getCreatedAt() > time) {
+                    break;
+                }
+                throughId = record.getId();
+                token = record.getToken();
+                isAutomatic = record.isAutomatic();
+            }
+            if (throughId >= 0) {
+                removed += acknowledge(token, isAutomatic, throughId);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return up to maxRecords records of the token with an id after afterId, oldest first
+     */
+    public List<Record> read(String token, boolean includeAutomatic, long afterId, int maxRecords) {
+        final List<Record> ret = new ArrayList<>();
+        final Iterator<Record> manual = iterator(token, false);
+        final Iterator<Record> automatic = includeAutomatic ? iterator(token, true) : Collections.<Record>emptyIterator();
+        Record nextManual = nextAfter(manual, afterId);
+        Record nextAutomatic = nextAfter(automatic, afterId);
+        while (ret.size() < maxRecords && (nextManual != null || nextAutomatic != null)) {
+            // Merge the two queues back into the order the records were appended in
+            if (nextAutomatic == null || (nextManual != null && nextManual.getId() < nextAutomatic.getId())) {
+                ret.add(nextManual);
+                nextManual = manual.hasNext() ? manual.next() : null;
+            } else {
+                ret.add(nextAutomatic);
+                nextAutomatic = automatic.hasNext() ? automatic.next() : null;
+            }
+        }
+        return ret;
+    }
+
+    public int size(String token, boolean isAutomatic) {
+        final ArrayDeque<Record> records = mRecords.get(cursorKey(token, isAutomatic));
+        return records == null ? 0 : records.size();
+    }
+
+    /**
+     * @return the patches of the token that cover at least one record after afterId, oldest first
+     */
+    public List<Patch> getPatches(String token, long afterId) {
+        final List<Patch> patches = mPatches.get(token);
+        if (patches == null) {
+            return Collections.emptyList();
+        }
+        final List<Patch> ret = new ArrayList<>();
+        for (final Patch patch : patches) {
+            if (patch.getMaxId() > afterId) {
+                ret.add(patch);
+            }
+        }
+        return ret;
+    }
+
+    // The id of the most recently appended record
+    public long getLastId() {
+        return mNextId - 1;
+    }
+
+    // The number of bytes the segment files take on disk
+    public long getSizeOnDisk() {
+        return (long) mSegments.size() * mSegmentSize;
+    }
+
+    // Flushes the appended entries to storage
+    public void sync() {
+        if (!mSegments.isEmpty()) {
+            mSegments.getLast().mBuffer.force();
+        }
+    }
+
+    public void close() {
+        sync();
+        mSegments.clear();
+        mRecords.clear();
+        mPatches.clear();
+    }
+
+    public static void delete(File directory) {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private void recover() throws IOException {
+        final File[] files = mDirectory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        // Segment files are named after their position in the log
+        final long[] sequences = new long[files == null ? 0 : files.length];
+        for (int i = 0; i < sequences.length; i++) {
+            try {
+                sequences[i] = Long.parseLong(files[i].getName().substring(0, files[i].getName().length() - SEGMENT_SUFFIX.length()));
+            } catch (final NumberFormatException e) {
+                sequences[i] = -1; // Not one of ours
+            }
+        }
+        Arrays.sort(sequences);
+
+        // Ids only need to stay above the ids still referred to by the log, so they can be
+        // recovered from the entries themselves.
+        mNextId = 1;
+        mNextSegment = 1;
+        for (int i = 0; i < sequences.length; i++) {
+            if (sequences[i] < 0) {
+                continue;
+            }
+            final Segment segment = openSegment(sequences[i]);
+            mSegments.add(segment);
+            mNextSegment = sequences[i] + 1;
+            scan(segment, i == sequences.length - 1);
+        }
+        deleteAcknowledgedSegments();
+    }
+
+    // Replays a segment's entries, stopping at its end or at the first damaged entry.
+    private void scan(Segment segment, boolean isLast) {
+        final ByteBuffer buffer = segment.mBuffer;
+        int position = 0;
+        boolean damaged = false;
+        while (position + ENTRY_HEADER_SIZE <= mSegmentSize) {
+            final int length = buffer.getInt(position);
+            if (length == 0) {
+                break;
+            }
+            if (length < BODY_HEADER_SIZE || length > mSegmentSize - position - ENTRY_HEADER_SIZE) {
+                damaged = true;
+                break;
+            }
+
+            final CRC32 crc = new CRC32();
+            final ByteBuffer body = buffer.duplicate();
+            body.position(position + ENTRY_HEADER_SIZE);
+            body.limit(position + ENTRY_HEADER_SIZE + length);
+            final byte[] bodyBytes = new byte[length];
+            body.get(bodyBytes);
+            crc.update(bodyBytes);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                damaged = true;
+                break;
+            }
+
+            final ByteBuffer fields = ByteBuffer.wrap(bodyBytes);
+            final byte type = fields.get();
+            final long id = fields.getLong();
+            final long createdAt = fields.getLong();
+            final boolean isAutomatic = fields.get() != 0;
+            final byte[] tokenBytes = new byte[fields.getShort() & 0xFFFF];
+            if (tokenBytes.length > fields.remaining()) {
+                damaged = true;
+                break;
+            }
+            fields.get(tokenBytes);
+            final String token = fromUtf8(tokenBytes);
+            final int dataOffset = position + ENTRY_HEADER_SIZE + fields.position();
+            final int dataLength = fields.remaining();
+
+            if (type == TYPE_RECORD) {
+                addRecord(new Record(id, createdAt, isAutomatic, token, segment, dataOffset, dataLength));
+            } else if (type == TYPE_ACKNOWLEDGEMENT) {
+                removeThrough(token, isAutomatic, id);
+            } else if (type == TYPE_PATCH) {
+                final byte[] data = new byte[dataLength];
+                fields.get(data);
+                getPatches(token).add(new Patch(id, data));
+            }
+            mNextId = Math.max(mNextId, id + 1);
+            position += ENTRY_HEADER_SIZE + length;
+        }
+
+        segment.mWritePosition = position;
+        if (damaged) {
+            if (isLast) {
+                // Clear what's left of the torn entry, so new entries aren't followed by stale bytes
+                for (int i = position; i < mSegmentSize; i++) {
+                    buffer.put(i, (byte) 0);
+                }
+                segment.mBuffer.force();
+            } else {
+                segment.mWritePosition = mSegmentSize; // Never append to an earlier segment
+            }
+        }
+    }
+
+    // Returns the position of the entry's data in the last segment.
+    private int writeEntry(byte type, long id, long createdAt, boolean isAutomatic, String token, byte[] data) throws IOException {
+        final byte[] tokenBytes = toUtf8(token);
+        final int bodyLength = BODY_HEADER_SIZE + tokenBytes.length + data.length;
+        if (ENTRY_HEADER_SIZE + bodyLength > mSegmentSize) {
+            throw new IOException("Entry of " + bodyLength + " bytes doesn't fit in a segment");
+        }
+
+        Segment segment = mSegments.isEmpty() ? null : mSegments.getLast();
+        if (segment == null || segment.mWritePosition + ENTRY_HEADER_SIZE + bodyLength > mSegmentSize) {
+            if (segment != null) {
+                segment.mBuffer.force();
+            }
+            segment = openSegment(mNextSegment++);
+            mSegments.add(segment);
+        }
+
+        final ByteBuffer body = ByteBuffer.allocate(bodyLength);
+        body.put(type);
+        body.putLong(id);
+        body.putLong(createdAt);
+        body.put((byte) (isAutomatic ? 1 : 0));
+        body.putShort((short) tokenBytes.length);
+        body.put(tokenBytes);
+        body.put(data);
+        final CRC32 crc = new CRC32();
+        crc.update(body.array());
+
+        // The length goes in last: until it's there, the entry doesn't exist
+        final int position = segment.mWritePosition;
+        final ByteBuffer out = segment.mBuffer.duplicate();
+        out.position(position + ENTRY_HEADER_SIZE);
+        out.put(body.array());
+        segment.mBuffer.putInt(position + 4, (int) crc.getValue());
+        segment.mBuffer.putInt(position, bodyLength);
+        segment.mWritePosition = position + ENTRY_HEADER_SIZE + bodyLength;
+        return position + ENTRY_HEADER_SIZE + BODY_HEADER_SIZE + tokenBytes.length;
+    }
+
+    private Segment openSegment(long sequence) throws IOException {
+        final File file = new File(mDirectory, sequence + SEGMENT_SUFFIX);
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() != mSegmentSize) {
+                raf.setLength(mSegmentSize);
+            }
+            // The mapping stays valid after the file is closed
+            final MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+            return new Segment(file, buffer);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void addRecord(Record record) {
+        final String key = cursorKey(record.getToken(), record.isAutomatic());
+        ArrayDeque<Record> records = mRecords.get(key);
+        if (records == null) {
+            records = new ArrayDeque<>();
+            mRecords.put(key, records);
+        }
+        records.addLast(record);
+        record.mSegment.mLiveRecords++;
+    }
+
+    private int removeThrough(String token, boolean isAutomatic, long throughId) {
+        final String key = cursorKey(token, isAutomatic);
+        final ArrayDeque<Record> records = mRecords.get(key);
+        int removed = 0;
+        while (records != null && !records.isEmpty() && records.peekFirst().getId() <= throughId) {
+            records.removeFirst().mSegment.mLiveRecords--;
+            removed++;
+        }
+        if (records != null && records.isEmpty()) {
+            mRecords.remove(key);
+        }
+        collectPatches(token);
+        return removed;
+    }
+
+    // Drops the patches that no longer cover any record of the token.
+    private void collectPatches(String token) {
+        final List<Patch> patches = mPatches.get(token);
+        if (patches == null) {
+            return;
+        }
+        long oldest = Long.MAX_VALUE;
+        for (final boolean isAutomatic : new boolean[] { false, true }) {
+            final ArrayDeque<Record> records = mRecords.get(cursorKey(token, isAutomatic));
+            if (records != null && !records.isEmpty()) {
+                oldest = Math.min(oldest, records.peekFirst().getId());
+            }
+        }
+        for (final Iterator<Patch> it = patches.iterator(); it.hasNext();) {
+            if (it.next().getMaxId() < oldest) {
+                it.remove();
+            }
+        }
+        if (patches.isEmpty()) {
+            mPatches.remove(token);
+        }
+    }
+
+    // Segments are only deleted from the front, so acknowledgements and patches in a deleted
+    // segment never refer to records in a segment that's still around.
+    private void deleteAcknowledgedSegments() {
+        while (mSegments.size() > 1 && mSegments.getFirst().mLiveRecords == 0) {
+            mSegments.removeFirst().mFile.delete();
+        }
+    }
+
+    private List<Patch> getPatches(String token) {
+        List<Patch> patches = mPatches.get(token);
+        if (patches == null) {
+            patches = new ArrayList<>();
+            mPatches.put(token, patches);
+        }
+        return patches;
+    }
+
+    private Iterator<Record> iterator(String token, boolean isAutomatic) {
+        final ArrayDeque<Record> records = mRecords.get(cursorKey(token, isAutomatic));
+        return records == null ? Collections.<Record>emptyIterator() : records.iterator();
+    }
+
+    private static Record nextAfter(Iterator<Record> records, long afterId) {
+        while (records.hasNext()) {
+            final Record record = records.next();
+            if (record.getId() > afterId) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    private static String cursorKey(String token, boolean isAutomatic) {
+        return (isAutomatic ? "1/" : "0/") + token;
+    }
+
+    private static byte[] toUtf8(String string) {
+        try {
+            return (string == null ? "" : string).getBytes("UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF not supported on this platform?", e);
+        }
+    }
+
+    private static String fromUtf8(byte[] bytes) {
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF not supported on this platform?", e);
+        }
+    }
+
+    private static class Segment {
+        public Segment(File file, MappedByteBuffer buffer) {
+            mFile = file;
+            mBuffer = buffer;
+        }
+
+        private final File mFile;
+        private final MappedByteBuffer mBuffer;
+        private int mWritePosition;
+        private int mLiveRecords;
+    }
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+    private final LinkedList<Segment> mSegments = new LinkedList<>();
+    private final Map<String, ArrayDeque<Record>> mRecords = new HashMap<>();
+    private final Map<String, List<Patch>> mPatches = new HashMap<>();
+    private long mNextId;
+    private long mNextSegment;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final byte TYPE_RECORD = 1;
+    private static final byte TYPE_ACKNOWLEDGEMENT = 2;
+    private static final byte TYPE_PATCH = 3;
+
+    private static final int ENTRY_HEADER_SIZE = 8; // length, crc
+    private static final int BODY_HEADER_SIZE = 1 + 8 + 8 + 1 + 2; // type, id, created at, automatic, token length
+}
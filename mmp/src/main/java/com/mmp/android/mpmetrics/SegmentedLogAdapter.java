@@ -0,0 +1,498 @@
+package com.mmp.android.mpmetrics;
+
+import android.content.Context;
+
+import com.mmp.android.util.MPLog;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Queues records in a {@link SegmentedLog} per table instead of the SQLite database.
+ *
+ * <p>Selected with com.mmp.android.MPConfig.SegmentedLogQueue. Appending a record, reading the
+ * oldest records of a project and deleting them once they're sent are all sequential file
+ * operations on memory-mapped segments, without SQLite's journaling, B-tree updates or
+ * statement compilation.
+ *
+ * <p>Not thread-safe. Instances are used by only one thread.
+ */
+/* package */ class SegmentedLogAdapter extends MPDbAdapter {
+
+    /* package */ SegmentedLogAdapter(Context context) {
+        super(context);
+        mDirectory = new File(context.getFilesDir(), DIRECTORY_NAME);
+        mConfig = MPConfig.getInstance(context);
+    }
+
+    @Override
+    public int addJSON(JSONObject j, String token, Table table, boolean isAutomaticRecord) {
+        final List<PendingRecord> records = Collections.singletonList(new PendingRecord(j, token, table, isAutomaticRecord));
+        return addJSON(records)[0];
+    }
+
+    @Override
+    public int[] addJSON(List<PendingRecord> records) {
+        final int[] counts = new int[records.size()];
+        if (!belowMemThreshold()) {
+            MPLog.e(LOGTAG, "There is not enough space left on the device to store Mmp data, so data was discarded");
+            Arrays.fill(counts, DB_OUT_OF_MEMORY_ERROR);
+            return counts;
+        }
+
+        Arrays.fill(counts, DB_UPDATE_ERROR);
+        try {
+            final long now = System.currentTimeMillis();
+            final Map<Table, SegmentedLog> written = new EnumMap<>(Table.class);
+            for (int i = 0; i < records.size(); i++) {
+                final PendingRecord record = records.get(i);
+                final SegmentedLog log = getLog(record.getTable());
+                log.append(record.getToken(), record.isAutomaticRecord(), now, encode(record));
+                written.put(record.getTable(), log);
+                counts[i] = log.size(record.getToken(), false) + log.size(record.getToken(), true);
+            }
+            for (final SegmentedLog log : written.values()) {
+                log.sync();
+            }
+        } catch (final IOException e) {
+            MPLog.e(LOGTAG, "Could not add Mmp data to the queue. Re-initializing it.", e);
+            Arrays.fill(counts, DB_UPDATE_ERROR);
+            deleteDB();
+        } catch (final OutOfMemoryError e) {
+            MPLog.e(LOGTAG, "Out of memory when adding Mmp data to the queue");
+        }
+        return counts;
+    }
+
+    @Override
+    /* package */ int pushAnonymousUpdatesToPeopleDb(String token, String distinctId) {
+        if (!belowMemThreshold()) {
+            MPLog.e(LOGTAG, "There is not enough space left on the device to store Mmp data, so data was discarded");
+            return DB_OUT_OF_MEMORY_ERROR;
+        }
+
+        int count = DB_UPDATE_ERROR;
+        try {
+            final SegmentedLog anonymous = getLog(Table.ANONYMOUS_PEOPLE);
+            final SegmentedLog people = getLog(Table.PEOPLE);
+            final List<SegmentedLog.Record> records = anonymous.read(token, true, 0, Integer.MAX_VALUE);
+            final ProfileUpdateMerger merger = new ProfileUpdateMerger();
+            int inserted = 0;
+            for (final SegmentedLog.Record record : records) {
+                try {
+                    final JSONObject updatedData = new JSONObject(decode(record.getData()));
+                    updatedData.put("$distinct_id", distinctId);
+                    final ProfileUpdateMerger.Update update = merger.add(updatedData, record.isAutomatic(), record.getCreatedAt());
+                    if (null != update) {
+                        people.append(token, update.isAutomaticRecord(), update.getCreatedAt(), encode(update.getRecord()));
+                        inserted++;
+                    }
+                } catch (final JSONException e) {
+                    // Ignore this object
+                }
+            }
+            final ProfileUpdateMerger.Update last = merger.finish();
+            if (null != last) {
+                people.append(token, last.isAutomaticRecord(), last.getCreatedAt(), encode(last.getRecord()));
+                inserted++;
+            }
+            count = inserted;
+            people.sync();
+            // Only drop the anonymous updates once their copies are durable
+            anonymous.acknowledge(token, false, anonymous.getLastId());
+            anonymous.acknowledge(token, true, anonymous.getLastId());
+            anonymous.sync();
+        } catch (final IOException e) {
+            MPLog.e(LOGTAG, "Could not push anonymous updates records from " + Table.ANONYMOUS_PEOPLE.getName() + ". Re-initializing the queue.", e);
+            deleteDB();
+        }
+        return count;
+    }
+
+    @Override
+    /* package */ int rewriteEventDataWithProperties(Map<String, String> properties, String token) {
+        if (!belowMemThreshold()) {
+            MPLog.e(LOGTAG, "There is not enough space left on the device to store Mmp data, so data was discarded");
+            return DB_OUT_OF_MEMORY_ERROR;
+        }
+
+        int count = 0;
+        try {
+            final SegmentedLog events = getLog(Table.EVENTS);
+            count = events.size(token, false) + events.size(token, true);
+            if (count > 0) {
+                events.appendPatch(token, toUtf8(new JSONObject(properties).toString()));
+                events.sync();
+            }
+        } catch (final IOException e) {
+            MPLog.e(LOGTAG, "Could not re-write events history. Re-initializing the queue.", e);
+            deleteDB();
+            count = DB_UPDATE_ERROR;
+        }
+        return count;
+    }
+
+    // The log has a single lane, so every upload reads and deletes events of all priorities.
+    @Override
+    public void cleanupEvents(String last_id, Table table, String token, boolean includeAutomaticEvents, int minPriority) {
+        try {
+            final SegmentedLog log = getLog(table);
+            log.acknowledge(token, false, Long.parseLong(last_id));
+            if (includeAutomaticEvents) {
+                log.acknowledge(token, true, Long.parseLong(last_id));
+            }
+            log.sync();
+        } catch (final IOException e) {
+            MPLog.e(LOGTAG, "Could not clean sent Mmp records from " + table.getName() + ". Re-initializing the queue.", e);
+            deleteDB();
+        }
+    }
+
+    // Expiring only walks the in-memory index and appends an acknowledgement per project, so the
+    // whole backlog goes in one pass regardless of maxRecords.
+    @Override
+    public int cleanupEvents(long time, Table table, int maxRecords) {
+        try {
+            final SegmentedLog log = getLog(table);
+            final int removed = log.expire(time);
+            log.sync();
+            return removed;
+        } catch (final IOException e) {
+            MPLog.e(LOGTAG, "Could not clean timed-out Mmp records from " + table.getName() + ". Re-initializing the queue.", e);
+            deleteDB();
+            return 0;
+        }
+    }
+
+    @Override
+    public void cleanupAllEvents(Table table, String token) {
+        try {
+            final SegmentedLog log = getLog(table);
+            log.acknowledge(token, false, log.getLastId());
+            log.acknowledge(token, true, log.getLastId());
+            log.sync();
+            clearUploadAttempt(table, token);
+        } catch (final IOException e) {
+            MPLog.e(LOGTAG, "Could not clean Mmp records from " + table.getName() + ". Re-initializing the queue.", e);
+            deleteDB();
+        }
+    }
+
+    @Override
+    public synchronized void cleanupAutomaticEvents(String token) {
+        try {
+            for (final Table table : new Table[] { Table.EVENTS, Table.PEOPLE, Table.GROUPS }) {
+                final SegmentedLog log = getLog(table);
+                log.acknowledge(token, true, log.getLastId());
+                log.sync();
+            }
+        } catch (final IOException e) {
+            MPLog.e(LOGTAG, "Could not clean automatic Mmp records. Re-initializing the queue.", e);
+            deleteDB();
+        }
+    }
+
+    @Override
+    public void deleteDB() {
+        close();
+        for (final Table table : Table.values()) {
+            SegmentedLog.delete(new File(mDirectory, table.getName()));
+        }
+        new File(mDirectory, ATTEMPTS_FILE_NAME).delete();
+        mDirectory.delete();
+    }
+
+    @Override
+    public int getQueueDepth(Table table, String token, boolean includeAutomaticEvents) {
+        try {
+            final SegmentedLog log = getLog(table);
+            return log.size(token, false) + (includeAutomaticEvents ? log.size(token, true) : 0);
+        } catch (final IOException e) {
+            MPLog.e(LOGTAG, "Could not count the Mmp records in " + table.getName() + ".", e);
+            return 0;
+        }
+    }
+
+    // The log has a single lane, so a flush sends events of every priority.
+    @Override
+    public int getQueueDepth(Table table, String token, boolean includeAutomaticEvents, int minPriority, int limit) {
+        return Math.min(limit, getQueueDepth(table, token, includeAutomaticEvents));
+    }
+
+    @Override
+    public void close() {
+        for (final SegmentedLog log : mLogs.values()) {
+            log.close();
+        }
+        mLogs.clear();
+    }
+
+    @Override
+    public String[] generateDataString(Table table, String token, boolean includeAutomaticEvents, String afterId, int maxRecords, int maxBytes, int minPriority) {
+        return generateDataString(table, token, includeAutomaticEvents, afterId, maxRecords, maxBytes, minPriority, null);
+    }
+
+    @Override
+    public String[] generateDataString(Table table, String token, boolean includeAutomaticEvents, String afterId, int maxRecords, int maxBytes, int minPriority,
+                                       String throughId) {
+        final long through = throughId == null ? Long.MAX_VALUE : Long.parseLong(throughId);
+        final List<SegmentedLog.Record> records;
+        final List<PropertyOverlay> overlays = new ArrayList<>();
+        final int queueCount;
+        try {
+            final SegmentedLog log = getLog(table);
+            final long after = afterId == null ? 0 : Long.parseLong(afterId);
+            records = log.read(token, includeAutomaticEvents, after, Math.max(1, maxRecords));
+            queueCount = log.size(token, false) + (includeAutomaticEvents ? log.size(token, true) : 0);
+            if (table == Table.EVENTS) {
+                for (final SegmentedLog.Patch patch : log.getPatches(token, after)) {
+                    try {
+                        overlays.add(new PropertyOverlay(patch.getMaxId(), new JSONObject(fromUtf8(patch.getData()))));
+                    } catch (final JSONException e) {
+                        // Ignore this patch
+                    }
+                }
+            }
+        } catch (final IOException e) {
+            MPLog.e(LOGTAG, "Could not pull records for Mmp out of the " + table.getName() + " queue. Waiting to send.", e);
+            return null;
+        }
+
+        final StringBuilder arr = new StringBuilder("[");
+        String firstId = null;
+        String lastId = null;
+        int recordCount = 0;
+        for (final SegmentedLog.Record record : records) {
+            if (record.getId() > through) {
+                break;
+            }
+            String data;
+            try {
+                data = decode(record.getData());
+            } catch (final JSONException e) {
+                data = null;
+            }
+            // A record cut short or corrupted on disk would make the whole batch invalid
+            if (JsonValidator.isObject(data)) {
+                if (!overlays.isEmpty()) {
+                    data = applyPropertyOverlays(overlays, record.getId(), data);
+                }
+                // Records are mostly ASCII, so their length is close enough to their UTF-8 size.
+                if (recordCount > 0 && arr.length() + data.length() + 2 > maxBytes) {
+                    break;
+                }
+                if (recordCount > 0) {
+                    arr.append(',');
+                }
+                arr.append(data);
+                recordCount++;
+            } // Otherwise ignore this object, it's deleted along with the batch
+
+            if (firstId == null) {
+                firstId = String.valueOf(record.getId());
+            }
+            lastId = String.valueOf(record.getId());
+        }
+
+        if (lastId == null || recordCount == 0) {
+            return null;
+        }
+        return new String[] { lastId, arr.append(']').toString(), String.valueOf(queueCount), firstId };
+    }
+
+    // Upload attempts are few and small, so they're kept in one JSON file next to the logs and the
+    // whole file is rewritten on each change.
+    @Override
+    public synchronized UploadAttempt getUploadAttempt(Table table, String token) {
+        final JSONObject attempt = readAttempts().optJSONObject(attemptKey(table, token));
+        if (attempt == null) {
+            return null;
+        }
+        return new UploadAttempt(table, token, attempt.optLong("first_id"), attempt.optLong("last_id"), attempt.optBoolean("automatic"),
+                attempt.optInt("min_priority"), attempt.optString("batch_id"), attempt.optInt("attempt"));
+    }
+
+    @Override
+    public synchronized boolean putUploadAttempt(UploadAttempt attempt) {
+        final JSONObject attempts = readAttempts();
+        try {
+            attempts.put(attemptKey(attempt.getTable(), attempt.getToken()), new JSONObject()
+                    .put("first_id", attempt.getFirstId())
+                    .put("last_id", attempt.getLastId())
+                    .put("automatic", attempt.getIncludeAutomaticEvents())
+                    .put("min_priority", attempt.getMinPriority())
+                    .put("batch_id", attempt.getBatchId())
+                    .put("attempt", attempt.getAttempt()));
+        } catch (final JSONException e) {
+            return false;
+        }
+        return writeAttempts(attempts);
+    }
+
+    @Override
+    public synchronized void clearUploadAttempt(Table table, String token) {
+        final JSONObject attempts = readAttempts();
+        if (attempts.remove(attemptKey(table, token)) != null) {
+            writeAttempts(attempts);
+        }
+    }
+
+    @Override
+    public File getDatabaseFile() {
+        return mDirectory;
+    }
+
+    @Override
+    protected boolean belowMemThreshold() {
+        long size = 0;
+        for (final SegmentedLog log : mLogs.values()) {
+            size += log.getSizeOnDisk();
+        }
+        return Math.max(mDirectory.getUsableSpace(), mConfig.getMinimumDatabaseLimit()) >= size;
+    }
+
+    private JSONObject readAttempts() {
+        final File file = new File(mDirectory, ATTEMPTS_FILE_NAME);
+        if (!file.exists()) {
+            return new JSONObject();
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            final byte[] bytes = new byte[(int) file.length()];
+            int read = 0;
+            while (read < bytes.length) {
+                final int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+            return new JSONObject(fromUtf8(Arrays.copyOf(bytes, read)));
+        } catch (final IOException | JSONException e) {
+            // A lost attempt only means its batch is sent again under a new id
+            MPLog.w(LOGTAG, "Could not read the upload attempts, starting over", e);
+            return new JSONObject();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (final IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    // Written to a temporary file and renamed over the old one, so a crash leaves one or the other
+    private boolean writeAttempts(JSONObject attempts) {
+        final File file = new File(mDirectory, ATTEMPTS_FILE_NAME);
+        final File temp = new File(mDirectory, ATTEMPTS_FILE_NAME + ".tmp");
+        FileOutputStream out = null;
+        try {
+            mDirectory.mkdirs();
+            out = new FileOutputStream(temp);
+            out.write(toUtf8(attempts.toString()));
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not rename " + temp);
+            }
+            return true;
+        } catch (final IOException e) {
+            MPLog.e(LOGTAG, "Could not write the upload attempts", e);
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (final IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private static String attemptKey(Table table, String token) {
+        return table.getName() + "/" + token;
+    }
+
+    private SegmentedLog getLog(Table table) throws IOException {
+        SegmentedLog log = mLogs.get(table);
+        if (log == null) {
+            log = new SegmentedLog(new File(mDirectory, table.getName()), SEGMENT_SIZE);
+            mLogs.put(table, log);
+        }
+        return log;
+    }
+
+    // Records are stored as JSON text, or in the compact encoding when it's enabled. The two are
+    // told apart by their first byte, so changing the setting keeps queued records readable.
+    private byte[] encode(JSONObject record) throws IOException {
+        if (mConfig.getCompactRecordStorage()) {
+            try {
+                return CompactRecordCodec.encode(record);
+            } catch (final JSONException e) {
+                MPLog.w(LOGTAG, "Could not encode a record, storing it as JSON text", e);
+            }
+        }
+        return toUtf8(record.toString());
+    }
+
+    // Records that are already JSON text are stored as they are, unless compact storage is on.
+    private byte[] encode(PendingRecord record) throws IOException {
+        if (mConfig.getCompactRecordStorage()) {
+            try {
+                return CompactRecordCodec.encode(record.getJSON());
+            } catch (final JSONException e) {
+                MPLog.w(LOGTAG, "Could not encode a record, storing it as JSON text", e);
+            }
+        }
+        return toUtf8(record.getJSONText());
+    }
+
+    private static String decode(byte[] data) throws JSONException {
+        if (data.length > 0 && data[0] != '{') {
+            return CompactRecordCodec.toJson(data);
+        }
+        return fromUtf8(data);
+    }
+
+    private static byte[] toUtf8(String string) {
+        try {
+            return string.getBytes("UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF not supported on this platform?", e);
+        }
+    }
+
+    private static String fromUtf8(byte[] bytes) {
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF not supported on this platform?", e);
+        }
+    }
+
+    private final File mDirectory;
+    private final MPConfig mConfig;
+    private final Map<Table, SegmentedLog> mLogs = new EnumMap<>(Table.class);
+
+    private static final String DIRECTORY_NAME = "mmp_queue";
+    private static final int SEGMENT_SIZE = 512 * 1024;
+    private static final String ATTEMPTS_FILE_NAME = "upload_attempts.json";
+    private static final String LOGTAG = "MmpAPI.SegmentedLog";
+}
@@ -30,6 +30,15 @@ import static com.mmp.android.mpmetrics.ConfigurationChecker.LOGTAG;
         return getNewMetadata(true);
     }
 
+    // One for each event of a batch, numbered in order.
+    public JSONObject[] getMetadataForEvents(int count) {
+        final JSONObject[] ret = new JSONObject[count];
+        for (int i = 0; i < count; i++) {
+            ret[i] = getNewMetadata(true);
+        }
+        return ret;
+    }
+
     public JSONObject getMetadataForPeople() {
         return getNewMetadata(false);
     }
@@ -178,6 +178,18 @@ import com.mmp.android.util.MPLog;
         return ret;
     }
 
+    // False when the network is metered, or we can't tell.
+    @SuppressLint("MissingPermission")
+    @SuppressWarnings("MissingPermission")
+    public boolean isUnmeteredNetwork() {
+        if (PackageManager.PERMISSION_GRANTED == mContext.checkCallingOrSelfPermission(Manifest.permission.ACCESS_NETWORK_STATE)) {
+            ConnectivityManager connManager = (ConnectivityManager) this.mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+            return connManager != null && !connManager.isActiveNetworkMetered();
+        }
+
+        return false;
+    }
+
     @SuppressLint("MissingPermission")
     @SuppressWarnings("MissingPermission")
     public Boolean isBluetoothEnabled() {
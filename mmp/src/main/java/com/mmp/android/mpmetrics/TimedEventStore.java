@@ -0,0 +1,120 @@
+package com.mmp.android.mpmetrics;
+
+import android.os.Process;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The start times of the events being timed with {@link MmpAPI#timeEvent(String)}.
+ *
+ * <p>Timers live in memory, so tracking an event only looks it up. Changes are written to shared
+ * preferences by a background task that runs once things have been quiet for a moment, and right
+ * away when the app goes to the background, so a burst of timers costs a single write.
+ *
+ * <p>Thread safe.
+ */
+/* package */ class TimedEventStore {
+
+    /* package */ TimedEventStore(PersistentIdentity persistentIdentity) {
+        mPersistentIdentity = persistentIdentity;
+        mTimings = new ConcurrentHashMap<>(persistentIdentity.getTimeEvents());
+    }
+
+    public void start(String eventName, long startTime) {
+        if (null == eventName) {
+            return;
+        }
+        mTimings.put(eventName, startTime);
+        schedulePersist(WRITE_DELAY_MILLIS);
+    }
+
+    /**
+     * @return the start time of the event, or null if it isn't being timed
+     */
+    public Long get(String eventName) {
+        return null == eventName ? null : mTimings.get(eventName);
+    }
+
+    /**
+     * Stops timing the event. Doesn't write anything unless the event was being timed.
+     *
+     * @return the start time of the event, or null if it wasn't being timed
+     */
+    public Long stop(String eventName) {
+        if (null == eventName) {
+            return null;
+        }
+        final Long ret = mTimings.remove(eventName);
+        if (null != ret) {
+            schedulePersist(WRITE_DELAY_MILLIS);
+        }
+        return ret;
+    }
+
+    public void clear() {
+        mTimings.clear();
+        schedulePersist(0);
+    }
+
+    // Writes any pending changes now, rather than after the usual delay.
+    public void persist() {
+        synchronized (mWriteLock) {
+            if (null != mPendingWrite) {
+                schedulePersist(0);
+            }
+        }
+    }
+
+    private void schedulePersist(long delayMillis) {
+        synchronized (mWriteLock) {
+            if (null != mPendingWrite) {
+                if (mPendingWrite.getDelay(TimeUnit.MILLISECONDS) <= delayMillis || !mPendingWrite.cancel(false)) {
+                    return; // Already due, or running and about to read the latest timings
+                }
+            }
+            mPendingWrite = sWriter.schedule(mWrite, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private final Runnable mWrite = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mWriteLock) {
+                mPendingWrite = null;
+            }
+            // Changes made from here on schedule another write
+            mPersistentIdentity.writeTimeEvents(new HashMap<String, Long>(mTimings));
+        }
+    };
+
+    private final PersistentIdentity mPersistentIdentity;
+    private final Map<String, Long> mTimings;
+    private final Object mWriteLock = new Object();
+    private ScheduledFuture<?> mPendingWrite;
+
+    private static final long WRITE_DELAY_MILLIS = 2000;
+
+    // One thread for every instance, which goes away when there's nothing to write
+    private static final ScheduledThreadPoolExecutor sWriter = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "com.mmp.android.TimedEventsWriter");
+        }
+    });
+    static {
+        sWriter.setKeepAliveTime(30, TimeUnit.SECONDS);
+        sWriter.allowCoreThreadTimeOut(true);
+    }
+}
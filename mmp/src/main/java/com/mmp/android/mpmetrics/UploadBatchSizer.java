@@ -0,0 +1,54 @@
+package com.mmp.android.mpmetrics;
+
+/**
+ * Picks how many records go into the next upload of a table.
+ *
+ * <p>Starts at the bulk upload limit and adapts to the network: the size grows by a few records
+ * after every fast successful request and is halved after a request times out, so batches stay
+ * small on slow networks and round trips stay few on fast ones. The byte limit caps every batch
+ * regardless of its row count.
+ *
+ * <p>Only updated from the worker thread, but the current size can be read from any thread.
+ */
+/* package */ class UploadBatchSizer {
+
+    /* package */ UploadBatchSizer(int initialSize, int byteLimit) {
+        mBatchSize = clamp(initialSize);
+        mByteLimit = byteLimit;
+    }
+
+    // Max number of records in the next upload.
+    public int getBatchSize() {
+        return mBatchSize;
+    }
+
+    // Approximate max number of bytes of records in the next upload.
+    public int getByteLimit() {
+        return mByteLimit;
+    }
+
+    public void onSuccess(long latencyMillis) {
+        if (latencyMillis <= FAST_REQUEST_MILLIS) {
+            mBatchSize = clamp(mBatchSize + GROWTH_STEP);
+        } else if (latencyMillis >= SLOW_REQUEST_MILLIS) {
+            mBatchSize = clamp(mBatchSize - GROWTH_STEP);
+        }
+    }
+
+    public void onTimeout() {
+        mBatchSize = clamp(mBatchSize / 2);
+    }
+
+    private static int clamp(int size) {
+        return Math.max(MIN_BATCH_SIZE, Math.min(MAX_BATCH_SIZE, size));
+    }
+
+    private volatile int mBatchSize;
+    private final int mByteLimit;
+
+    /* package */ static final int MIN_BATCH_SIZE = 1;
+    /* package */ static final int MAX_BATCH_SIZE = 50; // The most records the endpoints accept in one request
+    private static final int GROWTH_STEP = 5;
+    private static final long FAST_REQUEST_MILLIS = 2 * 1000;
+    private static final long SLOW_REQUEST_MILLIS = 10 * 1000;
+}
@@ -0,0 +1,82 @@
+package com.mmp.android.mpmetrics;
+
+import java.util.Random;
+
+/**
+ * Backoff state for the uploads of one table and project token.
+ *
+ * <p>A breaker starts closed. A failed upload opens it for a randomized delay. The delay uses
+ * decorrelated jitter, a random value between the base delay and three times the previous delay, so
+ * devices that failed together don't retry together. Once the delay is over the breaker is half open:
+ * the next batch is a trial, and closes the breaker if it goes through or opens it again if it
+ * doesn't. The jittered delay is capped at 10 minutes. A Retry-After from the server is a lower bound
+ * on the delay, and is honored even when it's longer than that.
+ *
+ * <p>Breakers are separate per table and token, so a failing people or groups endpoint doesn't stop
+ * events from being sent. Only used from the worker thread.
+ */
+/* package */ class UploadCircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /* package */ UploadCircuitBreaker(Random random) {
+        mRandom = random;
+        mState = State.CLOSED;
+        mDelay = 0;
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    /**
+     * @param now the current {@link android.os.SystemClock#elapsedRealtime()}
+     * @return true if a batch can be sent now. An open breaker whose delay is over turns half open.
+     */
+    public boolean allowRequest(long now) {
+        if (mState == State.OPEN) {
+            if (now < mOpenUntil) {
+                return false;
+            }
+            mState = State.HALF_OPEN;
+        }
+        return true;
+    }
+
+    /**
+     * @param now the current {@link android.os.SystemClock#elapsedRealtime()}
+     * @return true if batches are held back now. Unlike {@link #allowRequest}, doesn't change the state.
+     */
+    public boolean isOpen(long now) {
+        return mState == State.OPEN && now < mOpenUntil;
+    }
+
+    public void onSuccess() {
+        mState = State.CLOSED;
+        mDelay = 0;
+    }
+
+    /**
+     * @param now the current {@link android.os.SystemClock#elapsedRealtime()}
+     * @param retryAfter milliseconds the server asked us to wait, or a negative value if it didn't say
+     * @return the number of milliseconds before the next attempt
+     */
+    public long onFailure(long now, long retryAfter) {
+        final long previous = Math.max(BASE_DELAY, mDelay);
+        mDelay = Math.min(MAX_DELAY, BASE_DELAY + (long) (mRandom.nextDouble() * (previous * 3 - BASE_DELAY)));
+        final long delay = Math.max(retryAfter, mDelay);
+        mState = State.OPEN;
+        mOpenUntil = now + delay;
+        return delay;
+    }
+
+    private final Random mRandom;
+    private State mState;
+    private long mDelay; // The last jittered delay, without any Retry-After
+    private long mOpenUntil;
+
+    /* package */ static final long BASE_DELAY = 60 * 1000; // 1 minute
+    /* package */ static final long MAX_DELAY = 10 * 60 * 1000; // limit 10 min
+}
@@ -0,0 +1,106 @@
+package com.mmp.android.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * The JSON text of an upload batch, sent as a request parameter.
+ *
+ * <p>{@link HttpService} streams the payload into the request body, base64 and form encoding it on
+ * the fly through a single reusable buffer, so the encoded copies of the batch are never held in
+ * memory. Other {@link RemoteService} implementations can keep treating it as a regular parameter:
+ * {@link #toString()} returns the base64 encoded batch, like the library used to send.
+ *
+ * <p>The batch itself isn't streamed from the database: it's read into a String, which this copies
+ * into UTF-8 bytes, so the text of the batch is still held about twice while it's uploaded. What
+ * isn't allocated any more are the base64 string, the form encoded query and the two byte copies of
+ * it, together several times the size of the batch.
+ */
+public class BatchPayload {
+
+    public BatchPayload(String json) {
+        try {
+            mJson = json.getBytes("UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF not supported on this platform?", e);
+        }
+    }
+
+    /**
+     * @return the raw UTF-8 JSON bytes of the batch
+     */
+    public byte[] getBytes() {
+        return mJson;
+    }
+
+    /**
+     * Writes the batch base64 encoded and then form encoded, as the value of an
+     * application/x-www-form-urlencoded parameter.
+     *
+     * @param out the stream to write to, or null to only count the bytes
+     * @return the number of bytes written (or that would have been written)
+     */
+    public long writeFormEncoded(OutputStream out) throws IOException {
+        final byte[] buffer = getBuffer();
+        long written = 0;
+        int position = 0;
+        int ip = 0;
+        while (ip < mJson.length) {
+            // Make sure the four base64 characters fit even if all of them need escaping
+            if (position > buffer.length - 12) {
+                if (out != null) {
+                    out.write(buffer, 0, position);
+                }
+                written += position;
+                position = 0;
+            }
+
+            final int remaining = mJson.length - ip;
+            final int i0 = mJson[ip++] & 0xff;
+            final int i1 = remaining > 1 ? mJson[ip++] & 0xff : 0;
+            final int i2 = remaining > 2 ? mJson[ip++] & 0xff : 0;
+            position = putFormEncoded(buffer, position, BASE64[i0 >>> 2]);
+            position = putFormEncoded(buffer, position, BASE64[((i0 & 3) << 4) | (i1 >>> 4)]);
+            position = putFormEncoded(buffer, position, remaining > 1 ? BASE64[((i1 & 0xf) << 2) | (i2 >>> 6)] : '=');
+            position = putFormEncoded(buffer, position, remaining > 2 ? BASE64[i2 & 0x3f] : '=');
+        }
+
+        if (out != null) {
+            out.write(buffer, 0, position);
+        }
+        written += position;
+        return written;
+    }
+
+    @Override
+    public String toString() {
+        return new String(Base64Coder.encode(mJson));
+    }
+
+    private byte[] getBuffer() {
+        if (mBuffer == null) {
+            mBuffer = new byte[BUFFER_SIZE];
+        }
+        return mBuffer;
+    }
+
+    // Base64 characters other than letters and digits must be escaped in a form value
+    private static int putFormEncoded(byte[] buffer, int position, char c) {
+        if (c == '+' || c == '/' || c == '=') {
+            buffer[position++] = '%';
+            buffer[position++] = (byte) HEX[c >>> 4];
+            buffer[position++] = (byte) HEX[c & 0xf];
+        } else {
+            buffer[position++] = (byte) c;
+        }
+        return position;
+    }
+
+    private final byte[] mJson;
+    private byte[] mBuffer;
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+}
@@ -16,6 +16,12 @@ import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.URL;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLSocketFactory;
@@ -25,13 +31,26 @@ import javax.net.ssl.SSLSocketFactory;
  */
 public class HttpService implements RemoteService {
 
-    private static boolean sIsMmpBlocked;
+    public HttpService() {
+        this(false);
+    }
+
+    /**
+     * @param gzipBatchPayloads if true, requests carrying a {@link BatchPayload} send the batch as a
+     *     gzip compressed JSON body, and their other params in the query string
+     */
+    public HttpService(boolean gzipBatchPayloads) {
+        mGzipBatchPayloads = gzipBatchPayloads;
+    }
+
+    private static volatile boolean sIsMmpBlocked;
     private static final int MIN_UNAVAILABLE_HTTP_RESPONSE_CODE = HttpURLConnection.HTTP_INTERNAL_ERROR;
     private static final int MAX_UNAVAILABLE_HTTP_RESPONSE_CODE = 599;
 
+    // The lookups run on the shared background executor rather than on a new thread per call.
     @Override
     public void checkIsMmpBlocked() {
-        Thread t = new Thread(new Runnable() {
+        getBackgroundExecutor().execute(new Runnable() {
             public void run() {
                 try {
                     InetAddress apiMmpInet = InetAddress.getByName("api.mmp.com");
@@ -47,8 +66,24 @@ public class HttpService implements RemoteService {
                 }
             }
         });
+    }
 
-        t.start();
+    // A single lazily started thread shared by every HttpService for one-off background work.
+    private static synchronized ExecutorService getBackgroundExecutor() {
+        if (null == sBackgroundExecutor) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "com.mmp.android.HttpService");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.allowCoreThreadTimeOut(true);
+            sBackgroundExecutor = executor;
+        }
+        return sBackgroundExecutor;
     }
 
     @SuppressLint("MissingPermission")
@@ -106,10 +141,12 @@ public class HttpService implements RemoteService {
             InputStream in = null;
             OutputStream out = null;
             BufferedOutputStream bout = null;
+            GZIPOutputStream gzipOut = null;
             HttpURLConnection connection = null;
 
             try {
-                final URL url = new URL(endpointUrl);
+                final BatchPayload gzipPayload = mGzipBatchPayloads ? findBatchPayload(params) : null;
+                final URL url = new URL(null == gzipPayload ? endpointUrl : appendQueryParams(endpointUrl, params));
                 connection = (HttpURLConnection) url.openConnection();
                 if (null != socketFactory && connection instanceof HttpsURLConnection) {
                     ((HttpsURLConnection) connection).setSSLSocketFactory(socketFactory);
@@ -117,25 +154,40 @@ public class HttpService implements RemoteService {
 
                 connection.setConnectTimeout(2000);
                 connection.setReadTimeout(30000);
-                if (null != params) {
-                    Uri.Builder builder = new Uri.Builder();
-                    for (Map.Entry<String, Object> param : params.entrySet()) {
-                        builder.appendQueryParameter(param.getKey(), param.getValue().toString());
-                    }
-                    String query = builder.build().getEncodedQuery();
+                if (null != gzipPayload) {
+                    // The compressed length isn't known up front, so the body is sent in chunks
+                    connection.setChunkedStreamingMode(0);
+                    connection.setDoOutput(true);
+                    connection.setRequestMethod("POST");
+                    connection.setRequestProperty("Content-Type", "application/json");
+                    connection.setRequestProperty("Content-Encoding", "gzip");
+                    out = connection.getOutputStream();
+                    gzipOut = new GZIPOutputStream(out, GZIP_BUFFER_SIZE);
+                    gzipOut.write(gzipPayload.getBytes());
+                    gzipOut.finish();
+                    gzipOut.close();
+                    gzipOut = null;
+                    out.close();
+                    out = null;
+                } else if (null != params) {
+                    // Count first, then stream, so the encoded body is never held in memory
+                    final long contentLength = writeFormBody(params, null);
 
-                    connection.setFixedLengthStreamingMode(query.getBytes().length);
+                    connection.setFixedLengthStreamingMode((int) contentLength);
                     connection.setDoOutput(true);
                     connection.setRequestMethod("POST");
                     out = connection.getOutputStream();
                     bout = new BufferedOutputStream(out);
-                    bout.write(query.getBytes("UTF-8"));
+                    writeFormBody(params, bout);
                     bout.flush();
                     bout.close();
                     bout = null;
                     out.close();
                     out = null;
                 }
+                // Reading the whole response and closing the stream hands the connection back to
+                // the platform's keep-alive pool, so the next batch or decide request to the same
+                // host skips the TCP and TLS handshakes.
                 in = connection.getInputStream();
                 response = slurp(in);
                 in.close();
@@ -154,12 +206,14 @@ public class HttpService implements RemoteService {
             finally {
                 if (null != bout)
                     try { bout.close(); } catch (final IOException e) { ; }
+                if (null != gzipOut)
+                    try { gzipOut.close(); } catch (final IOException e) { ; }
                 if (null != out)
                     try { out.close(); } catch (final IOException e) { ; }
                 if (null != in)
                     try { in.close(); } catch (final IOException e) { ; }
-                if (null != connection)
-                    connection.disconnect();
+                if (null != connection && !succeeded)
+                    connection.disconnect(); // Don't pool a connection in an unknown state
             }
         }
         if (retries >= 3) {
@@ -168,6 +222,61 @@ public class HttpService implements RemoteService {
         return response;
     }
 
+    private static BatchPayload findBatchPayload(Map<String, Object> params) {
+        if (null != params) {
+            for (Object value : params.values()) {
+                if (value instanceof BatchPayload) {
+                    return (BatchPayload) value;
+                }
+            }
+        }
+        return null;
+    }
+
+    // Everything but the batch goes in the query string when the batch is the request body.
+    private static String appendQueryParams(String endpointUrl, Map<String, Object> params) {
+        final StringBuilder url = new StringBuilder(endpointUrl);
+        boolean hasQuery = endpointUrl.indexOf('?') >= 0;
+        for (Map.Entry<String, Object> param : params.entrySet()) {
+            if (param.getValue() instanceof BatchPayload) {
+                continue;
+            }
+            url.append(hasQuery ? '&' : '?');
+            hasQuery = true;
+            url.append(Uri.encode(param.getKey())).append('=').append(Uri.encode(param.getValue().toString()));
+        }
+        return url.toString();
+    }
+
+    // Writes params as an application/x-www-form-urlencoded body, or only counts its length when out is null.
+    private static long writeFormBody(Map<String, Object> params, OutputStream out) throws IOException {
+        long written = 0;
+        boolean first = true;
+        for (Map.Entry<String, Object> param : params.entrySet()) {
+            final StringBuilder prefix = new StringBuilder();
+            if (!first) {
+                prefix.append('&');
+            }
+            first = false;
+            prefix.append(Uri.encode(param.getKey())).append('=');
+
+            final Object value = param.getValue();
+            if (!(value instanceof BatchPayload)) {
+                prefix.append(Uri.encode(value.toString()));
+            }
+            final byte[] prefixBytes = prefix.toString().getBytes("UTF-8");
+            if (out != null) {
+                out.write(prefixBytes);
+            }
+            written += prefixBytes.length;
+
+            if (value instanceof BatchPayload) {
+                written += ((BatchPayload) value).writeFormEncoded(out);
+            }
+        }
+        return written;
+    }
+
     private static byte[] slurp(final InputStream inputStream)
             throws IOException {
         final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
@@ -183,5 +292,10 @@ public class HttpService implements RemoteService {
         return buffer.toByteArray();
     }
 
+    private final boolean mGzipBatchPayloads;
+
+    private static ExecutorService sBackgroundExecutor;
+
+    private static final int GZIP_BUFFER_SIZE = 8192;
     private static final String LOGTAG = "MmpAPI.Message";
 }
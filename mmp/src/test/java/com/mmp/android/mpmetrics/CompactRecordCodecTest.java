@@ -0,0 +1,191 @@
+package com.mmp.android.mpmetrics;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CompactRecordCodecTest {
+
+    @Test
+    public void decodesToTheSameTextAsJSONObject() throws Exception {
+        assertRoundTrip(trackedEvent(42));
+        assertRoundTrip(new JSONObject());
+        assertRoundTrip(new JSONObject()
+                .put("empty array", new JSONArray())
+                .put("empty object", new JSONObject())
+                .put("null", JSONObject.NULL)
+                .put("true", true)
+                .put("false", false)
+                .put("zero", 0)
+                .put("negative", -17)
+                .put("min", Long.MIN_VALUE)
+                .put("max", Long.MAX_VALUE)
+                .put("fraction", 1.5)
+                .put("negative fraction", -0.001)
+                .put("whole double", 3.0)
+                .put("huge", 1e300)
+                .put("tiny", 4.9e-324)
+                .put("decimal", new BigDecimal("12345678901234567890.0123456789"))
+                .put("escapes", "quote \" backslash \\ slash / tab \t newline \n nul \u0000 del \u007f")
+                .put("unicode", "café 中文 😀  ")
+                .put("interned value", "Android")
+                .put("$os", "not interned as a value, interned as a key")
+                .put("nested", new JSONObject().put("array", new JSONArray().put(1).put("two").put(JSONObject.NULL)
+                        .put(new JSONArray().put(new JSONObject().put("deep", true))))));
+    }
+
+    @Test
+    public void isSmallerThanTheJSONText() throws Exception {
+        final JSONObject event = trackedEvent(42);
+        final byte[] encoded = CompactRecordCodec.encode(event);
+        final int textSize = event.toString().getBytes("UTF-8").length;
+        assertTrue(encoded.length + " bytes encoded, " + textSize + " as text", encoded.length < textSize);
+    }
+
+    @Test
+    public void rejectsEveryTruncation() throws Exception {
+        final byte[] encoded = CompactRecordCodec.encode(trackedEvent(7));
+        for (int length = 0; length < encoded.length; length++) {
+            assertMalformed("Truncated to " + length, Arrays.copyOf(encoded, length));
+        }
+    }
+
+    @Test
+    public void rejectsMalformedRecords() {
+        assertMalformed("Unknown version", new byte[] { 2, 0 });
+        assertMalformed("JSON text", new byte[] { '{', '}' });
+        assertMalformed("Unknown tag", new byte[] { 1, 42 });
+        assertMalformed("Unknown interned value", new byte[] { 1, 6, 127 });
+        assertMalformed("Unknown interned key", new byte[] { 1, 7, 1, 127, 0 });
+        assertMalformed("String past the end", new byte[] { 1, 5, 10, 'a', 'b' });
+        assertMalformed("Negative string length", new byte[] { 1, 5, -1, -1, -1, -1, -1, -1, -1, -1, -1, 1 });
+        assertMalformed("Varint too long", new byte[] { 1, 3, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, 0 });
+        assertMalformed("More members than bytes", new byte[] { 1, 7, -1, -1, -1, -1, 15, 0, 0 });
+        assertMalformed("Double cut short", new byte[] { 1, 4, 0, 0, 0 });
+
+        final byte[] deep = new byte[100001];
+        deep[0] = 1;
+        for (int i = 1; i < deep.length; i += 2) {
+            deep[i] = 8; // An array holding one array, and so on
+            if (i + 1 < deep.length) {
+                deep[i + 1] = 1;
+            }
+        }
+        assertMalformed("Nested too deeply", deep);
+    }
+
+    // Random damage either still decodes or is reported as a JSONException, never anything else.
+    @Test
+    public void survivesRandomCorruption() throws Exception {
+        final Random random = new Random(13);
+        final byte[] encoded = CompactRecordCodec.encode(trackedEvent(3));
+        for (int i = 0; i < 20000; i++) {
+            final byte[] damaged = encoded.clone();
+            for (int flips = 1 + random.nextInt(4); flips > 0; flips--) {
+                damaged[1 + random.nextInt(damaged.length - 1)] = (byte) random.nextInt(256);
+            }
+            try {
+                CompactRecordCodec.toJson(damaged);
+            } catch (final JSONException e) {
+                // Expected for most damage
+            }
+        }
+    }
+
+    // Not a pass/fail check: reports the size saving and the encode and decode rates for a
+    // typical tracked event.
+    @Test
+    public void benchmarkSizeAndThroughput() throws Exception {
+        final int records = 20000;
+        final JSONObject[] events = new JSONObject[records];
+        long textBytes = 0;
+        for (int i = 0; i < records; i++) {
+            events[i] = trackedEvent(i);
+            textBytes += events[i].toString().getBytes("UTF-8").length;
+        }
+
+        final byte[][] encoded = new byte[records][];
+        long encodedBytes = 0;
+        final long encodeStart = System.nanoTime();
+        for (int i = 0; i < records; i++) {
+            encoded[i] = CompactRecordCodec.encode(events[i]);
+            encodedBytes += encoded[i].length;
+        }
+        final long encodeNanos = System.nanoTime() - encodeStart;
+
+        final StringBuilder out = new StringBuilder();
+        final long decodeStart = System.nanoTime();
+        for (int i = 0; i < records; i++) {
+            out.setLength(0);
+            CompactRecordCodec.appendJson(encoded[i], out);
+        }
+        final long decodeNanos = System.nanoTime() - decodeStart;
+
+        final long toStringStart = System.nanoTime();
+        for (int i = 0; i < records; i++) {
+            events[i].toString();
+        }
+        final long toStringNanos = System.nanoTime() - toStringStart;
+
+        assertTrue(encodedBytes < textBytes);
+        System.out.println(records + " events: " + textBytes / records + " bytes as text, " + encodedBytes / records + " encoded (" +
+                (100 * encodedBytes / textBytes) + "%). Encode " + encodeNanos / records + " ns, decode to text " + decodeNanos / records +
+                " ns, JSONObject.toString " + toStringNanos / records + " ns per event");
+    }
+
+    private static void assertRoundTrip(JSONObject record) throws Exception {
+        final byte[] encoded = CompactRecordCodec.encode(record);
+        assertEquals(record.toString(), CompactRecordCodec.toJson(encoded));
+    }
+
+    private static void assertMalformed(String message, byte[] encoded) {
+        try {
+            final String decoded = CompactRecordCodec.toJson(encoded);
+            fail(message + " decoded to " + decoded);
+        } catch (final JSONException e) {
+            // Expected
+        }
+    }
+
+    private static JSONObject trackedEvent(int i) throws JSONException {
+        final JSONObject properties = new JSONObject()
+                .put("mp_lib", "android")
+                .put("$lib_version", "5.8.0")
+                .put("$os", "Android")
+                .put("$os_version", "12")
+                .put("$manufacturer", "Google")
+                .put("$brand", "google")
+                .put("$model", "Pixel 6")
+                .put("$google_play_services", "available")
+                .put("$screen_dpi", 420)
+                .put("$screen_height", 2209)
+                .put("$screen_width", 1080)
+                .put("$app_version_string", "1.4.2")
+                .put("$app_build_number", 142)
+                .put("$has_nfc", true)
+                .put("$has_telephone", true)
+                .put("$carrier", "T-Mobile")
+                .put("$wifi", true)
+                .put("$bluetooth_enabled", false)
+                .put("time", 1500000000L + i)
+                .put("distinct_id", "3f9c1a52-77e4-4c1e-9c1c-" + (100000000000L + i))
+                .put("$device_id", "3f9c1a52-77e4-4c1e-9c1c-9d2b1e0f6a11")
+                .put("token", "0123456789abcdef0123456789abcdef")
+                .put("Screen", "Checkout")
+                .put("Items", i % 7)
+                .put("Total", 19.99 + i);
+        final JSONObject metadata = new JSONObject()
+                .put("$mp_event_id", Long.toHexString(0x1234567890abcdefL + i))
+                .put("$mp_session_id", "5f0c0d9e4b8a1c2d")
+                .put("$mp_session_seq_id", i)
+                .put("$mp_session_start_sec", 1499999000L);
+        return new JSONObject().put("event", "Viewed Cart").put("properties", properties).put("$mp_metadata", metadata);
+    }
+}
@@ -0,0 +1,208 @@
+package com.mmp.android.mpmetrics;
+
+import org.json.JSONObject;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class EventPropertiesTest {
+
+    @Test
+    public void writesValuesAsJSON() throws Exception {
+        final EventProperties properties = new EventProperties()
+                .putString("s", "text")
+                .putString("null", null)
+                .putLong("long", Long.MIN_VALUE)
+                .putBoolean("bool", true)
+                .putDouble("fraction", 0.25);
+
+        assertEquals("{\"s\":\"text\",\"null\":null,\"long\":-9223372036854775808,\"bool\":true,\"fraction\":0.25}", properties.toString());
+        final JSONObject parsed = properties.toJSONObject();
+        assertTrue(parsed.isNull("null"));
+        assertEquals(Long.MIN_VALUE, parsed.getLong("long"));
+        assertEquals("{}", new EventProperties().toString());
+    }
+
+    @Test
+    public void wholeDoublesAreWrittenWithoutAFraction() throws Exception {
+        assertEquals("{\"d\":3}", new EventProperties().putDouble("d", 3.0).toString());
+        assertEquals("{\"d\":-42}", new EventProperties().putDouble("d", -42.0).toString());
+        assertEquals("{\"d\":1000000000000000000}", new EventProperties().putDouble("d", 1e18).toString());
+        assertEquals("{\"d\":-9223372036854775808}", new EventProperties().putDouble("d", -0x1p63).toString());
+
+        // Past the range of a long, the value must not be clamped to Long.MAX_VALUE
+        for (final double huge : new double[] { 0x1p63, 1e19, 1e300, Double.MAX_VALUE, -1e300 }) {
+            final String text = new EventProperties().putDouble("d", huge).toString();
+            assertEquals(text, huge, new JSONObject(text).getDouble("d"), 0);
+        }
+        assertEquals(Double.MIN_VALUE, new EventProperties().putDouble("d", Double.MIN_VALUE).toJSONObject().getDouble("d"), 0);
+    }
+
+    @Test
+    public void nonFiniteDoublesAreLeftOut() {
+        final EventProperties properties = new EventProperties()
+                .putDouble("nan", Double.NaN)
+                .putDouble("infinite", Double.NEGATIVE_INFINITY)
+                .putLong("kept", 1);
+        assertEquals("{\"kept\":1}", properties.toString());
+        assertEquals(1, properties.size());
+    }
+
+    @Test
+    public void puttingANameAgainKeepsTheLatestValue() {
+        final EventProperties properties = new EventProperties()
+                .putLong("a", 1)
+                .putString("b", "two")
+                .putBoolean("c", false);
+
+        // Replacing the first, a middle and the last property shifts the offsets of those after it
+        properties.putString("a", "a longer value than before");
+        assertEquals("{\"b\":\"two\",\"c\":false,\"a\":\"a longer value than before\"}", properties.toString());
+        properties.putLong("c", 3);
+        assertEquals("{\"b\":\"two\",\"a\":\"a longer value than before\",\"c\":3}", properties.toString());
+        properties.putLong("c", 4);
+        properties.putString("b", null);
+        properties.putLong("a", 5);
+        assertEquals("{\"c\":4,\"b\":null,\"a\":5}", properties.toString());
+        assertEquals(Arrays.asList("c", "b", "a"), Arrays.asList(properties.encode().getNames()));
+    }
+
+    @Test
+    public void replacingPropertiesPastTheInitialOffsetsCapacity() throws Exception {
+        final EventProperties properties = new EventProperties();
+        final JSONObject expected = new JSONObject();
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 40; i += 1 + round) {
+                properties.putString("p" + i, "round " + round + " " + repeat('x', i));
+                expected.put("p" + i, "round " + round + " " + repeat('x', i));
+            }
+        }
+        assertEquals(40, properties.size());
+        assertJSONEquals(expected, properties.toJSONObject());
+    }
+
+    @Test
+    public void clearAndRecycleEmptyTheBuilder() {
+        final EventProperties properties = EventProperties.obtain().putLong("a", 1);
+        properties.clear();
+        assertEquals("{\"b\":2}", properties.putLong("b", 2).toString());
+        properties.recycle();
+        assertEquals("{}", EventProperties.obtain().toString());
+    }
+
+    @Test
+    public void quotesEveryCharacterSoItParsesBack() throws Exception {
+        final StringBuilder quoted = new StringBuilder();
+        EventProperties.appendQuoted(quoted, "\"\\/\t\b\n\r\f\u0000\u001f  \u007f é");
+        assertEquals("\"\\\"\\\\/\\t\\b\\n\\r\\f\\u0000\\u001f\\u2028\\u2029\u007f é\"", quoted.toString());
+
+        final StringBuilder all = new StringBuilder();
+        for (char c = 0; c < 0xD800; c++) {
+            all.append(c);
+        }
+        all.append("😀");
+        quoted.setLength(0);
+        EventProperties.appendQuoted(quoted, all.toString());
+        assertEquals(all.toString(), new JSONObject("{\"v\":" + quoted + "}").getString("v"));
+    }
+
+    @Test
+    public void eventTextMatchesTheEventObject() throws Exception {
+        final JSONObject base = new JSONObject()
+                .put("token", "abc")
+                .put("mp_lib", "android")
+                .put("time", 1500000000L)
+                .put("Screen", "replaced by the encoded value")
+                .put("nested", new JSONObject().put("a", new org.json.JSONArray().put(1).put("b")));
+        final JSONObject metadata = new JSONObject().put("$mp_event_id", "00ff").put("$mp_session_seq_id", 3);
+        final EventProperties properties = new EventProperties()
+                .putString("Screen", "Checkout \"1\"")
+                .putLong("Items", 3)
+                .putDouble("Total", 19.99)
+                .putBoolean("Gift", false)
+                .putString("Note", null);
+
+        assertEventTextMatches("Viewed Cart", base, properties.encode(), metadata);
+        assertEventTextMatches("Viewed \"Cart\"\n", base, properties.encode(), null);
+        assertEventTextMatches(null, base, properties.encode(), metadata);
+        // No encoded properties, no other properties, or neither
+        assertEventTextMatches("Viewed Cart", base, new EventProperties().encode(), metadata);
+        assertEventTextMatches("Viewed Cart", new JSONObject(), properties.encode(), metadata);
+        assertEventTextMatches("Viewed Cart", new JSONObject(), new EventProperties().encode(), metadata);
+        // Every property of the base is replaced
+        assertEventTextMatches("Viewed Cart", new JSONObject().put("Screen", 1).put("Items", 2), properties.encode(), null);
+    }
+
+    // Not a pass/fail check: reports the bytes allocated per tracked event to build its properties
+    // and write them as text, through a builder and through a JSONObject.
+    @Test
+    public void benchmarkAllocationsPerEvent() throws Exception {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        final long thread = Thread.currentThread().getId();
+        final int events = 100000;
+        long sink = 0;
+
+        for (int warmup = 0; warmup < 2; warmup++) {
+            final long builderStart = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < events; i++) {
+                final EventProperties properties = EventProperties.obtain()
+                        .putString("Screen", "Checkout")
+                        .putLong("Items", i % 7)
+                        .putDouble("Total", 19.99 + i)
+                        .putBoolean("Gift", (i & 1) == 0);
+                sink += properties.encode().getText().length();
+                properties.recycle();
+            }
+            final long builderBytes = threads.getThreadAllocatedBytes(thread) - builderStart;
+
+            final long objectStart = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < events; i++) {
+                final JSONObject properties = new JSONObject()
+                        .put("Screen", "Checkout")
+                        .put("Items", i % 7)
+                        .put("Total", 19.99 + i)
+                        .put("Gift", (i & 1) == 0);
+                sink += properties.toString().length();
+            }
+            final long objectBytes = threads.getThreadAllocatedBytes(thread) - objectStart;
+
+            if (warmup == 1) {
+                System.out.println(events + " events of 4 properties: EventProperties " + builderBytes / events + " bytes, JSONObject " +
+                        objectBytes / events + " bytes allocated per event");
+            }
+        }
+        assertTrue(sink > 0);
+    }
+
+    // The text written for a builder's properties must parse to the record prepareEventObject
+    // builds by merging them into the properties object.
+    private static void assertEventTextMatches(String eventName, JSONObject base, EventProperties.Encoded encoded, JSONObject metadata) throws Exception {
+        final JSONObject merged = new JSONObject(base.toString());
+        encoded.addTo(merged);
+        final JSONObject expected = new JSONObject();
+        expected.put("event", eventName);
+        expected.put("properties", merged);
+        expected.put("$mp_metadata", metadata);
+
+        final String text = encoded.toEventText(eventName, new JSONObject(base.toString()), metadata);
+        assertTrue(text, JsonValidator.isObject(text));
+        assertJSONEquals(new JSONObject(expected.toString()), new JSONObject(text));
+    }
+
+    private static void assertJSONEquals(JSONObject expected, JSONObject actual) {
+        assertTrue("Expected " + expected + " but was " + actual, expected.similar(actual));
+    }
+
+    private static String repeat(char c, int count) {
+        final char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,54 @@
+package com.mmp.android.mpmetrics;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class IngestionQueueTest {
+
+    @Test
+    public void dropAutomaticFirstNeverDropsUpdates() {
+        final List<Object> evicted = new ArrayList<>();
+        final IngestionQueue queue = newQueue(IngestionQueue.Policy.DROP_AUTOMATIC_FIRST, evicted);
+        final Object automatic = new Object();
+        assertEquals(IngestionQueue.Admission.ADMITTED, queue.admit(automatic, 1, true, false, false));
+        assertEquals(IngestionQueue.Admission.ADMITTED, queue.admit(new Object(), 1, false, false, false));
+
+        // A full queue makes room by dropping the automatic event
+        assertEquals(IngestionQueue.Admission.ADMITTED, queue.admit(new Object(), 1, false, true, false));
+        assertEquals(1, evicted.size());
+        assertSame(automatic, evicted.get(0));
+
+        // With no automatic event left, a tracked event is dropped but an update goes over the capacity
+        assertEquals(IngestionQueue.Admission.DROPPED, queue.admit(new Object(), 1, false, false, false));
+        assertEquals(IngestionQueue.Admission.ADMITTED, queue.admit(new Object(), 1, false, true, false));
+        assertEquals(3, queue.getDepth());
+        assertEquals(2, queue.getDroppedCount());
+    }
+
+    @Test
+    public void dropNewestDropsWhateverComesOnceFull() {
+        final IngestionQueue queue = newQueue(IngestionQueue.Policy.DROP_NEWEST, new ArrayList<>());
+        queue.admit(new Object(), 1, false, false, false);
+        queue.admit(new Object(), 1, false, false, false);
+        assertEquals(IngestionQueue.Admission.DROPPED, queue.admit(new Object(), 1, false, true, false));
+        assertEquals(1, queue.getDroppedCount());
+    }
+
+    @Test
+    public void unknownPoliciesFallBackToTheDefault() {
+        assertEquals(IngestionQueue.Policy.DROP_AUTOMATIC_FIRST, IngestionQueue.Policy.fromName("drop_everything"));
+    }
+
+    private static IngestionQueue newQueue(IngestionQueue.Policy policy, final List<Object> evicted) {
+        return new IngestionQueue(2, policy, 0, new IngestionQueue.EvictionListener() {
+            @Override
+            public void onEvicted(Object item) {
+                evicted.add(item);
+            }
+        });
+    }
+}
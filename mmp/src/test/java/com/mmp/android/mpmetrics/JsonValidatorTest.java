@@ -0,0 +1,60 @@
+package com.mmp.android.mpmetrics;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class JsonValidatorTest {
+
+    private static final String RECORD = "{\"event\":\"Viewed \\\"Cart\\\"\",\"properties\":{\"token\":\"abc\",\"time\":1500000000," +
+            "\"$duration\":-1.5e-3,\"items\":[1,2.25,true,false,null,{}],\"name\":\"caf\\u00e9 \\/ \\n\",\"empty\":[]}," +
+            "\"$mp_metadata\":{\"$mp_event_id\":\"00ff\"}}";
+
+    @Test
+    public void acceptsRecords() throws Exception {
+        new JSONObject(RECORD);
+        assertTrue(JsonValidator.isObject(RECORD));
+        assertTrue(JsonValidator.isObject("{}"));
+        assertTrue(JsonValidator.isObject(" \n{ \"a\" : 1 }\t"));
+        assertTrue(JsonValidator.isObject(new JSONObject().put("s", "\u2028\"\\\u0001").toString()));
+    }
+
+    @Test
+    public void rejectsEveryTruncation() {
+        for (int length = 0; length < RECORD.length(); length++) {
+            assertFalse("Accepted " + RECORD.substring(0, length), JsonValidator.isObject(RECORD.substring(0, length)));
+        }
+    }
+
+    @Test
+    public void rejectsCorruptRecords() {
+        assertFalse(JsonValidator.isObject(null));
+        assertFalse(JsonValidator.isObject(""));
+        assertFalse(JsonValidator.isObject("[1,2]"));
+        assertFalse(JsonValidator.isObject("\"a\""));
+        assertFalse(JsonValidator.isObject("{}{}"));
+        assertFalse(JsonValidator.isObject("{},"));
+        assertFalse(JsonValidator.isObject("{\"a\":1,}"));
+        assertFalse(JsonValidator.isObject("{\"a\" 1}"));
+        assertFalse(JsonValidator.isObject("{a:1}"));
+        assertFalse(JsonValidator.isObject("{\"a\":[1 2]}"));
+        assertFalse(JsonValidator.isObject("{\"a\":tru}"));
+        assertFalse(JsonValidator.isObject("{\"a\":-}"));
+        assertFalse(JsonValidator.isObject("{\"a\":1.}"));
+        assertFalse(JsonValidator.isObject("{\"a\":1e}"));
+        assertFalse(JsonValidator.isObject("{\"a\":\"\\x\"}"));
+        assertFalse(JsonValidator.isObject("{\"a\":\"\\u12g4\"}"));
+        assertFalse(JsonValidator.isObject("{\"a\":\"line\nbreak\"}"));
+        assertFalse(JsonValidator.isObject("{\"a\":1}\u0000\u0000\u0000"));
+    }
+
+    @Test
+    public void rejectsDeepNestingWithoutOverflowing() {
+        final StringBuilder deep = new StringBuilder("{\"a\":");
+        for (int i = 0; i < 100000; i++) {
+            deep.append('[');
+        }
+        assertFalse(JsonValidator.isObject(deep));
+    }
+}
@@ -0,0 +1,133 @@
+package com.mmp.android.mpmetrics;
+
+import android.os.Build;
+import android.os.Bundle;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.R)
+public class MPDbAdapterEvictionTest {
+
+    @After
+    public void tearDown() {
+        if (mDbAdapter != null) {
+            mDbAdapter.deleteDB();
+        }
+    }
+
+    @Test
+    public void downsamplingKeepsEveryOtherRecordOfTheQueue() throws Exception {
+        open("downsample", "downsample", 10);
+
+        // Two projects written in turn, so the ids of each one's records are all even or all odd
+        for (int i = 0; i < 10; i++) {
+            add(TOKEN, i, false, MPDbAdapter.PRIORITY_NORMAL);
+            add(OTHER_TOKEN, i, false, MPDbAdapter.PRIORITY_NORMAL);
+        }
+        assertEquals(range(0, 10), readAll(TOKEN));
+
+        // Going 4 over the quota thins out the oldest 8 records of the project written to
+        add(TOKEN, 10, 14, false, MPDbAdapter.PRIORITY_NORMAL);
+        assertEquals(list(0, 2, 4, 6, 8, 9, 10, 11, 12, 13), readAll(TOKEN));
+        assertEquals(range(0, 10), readAll(OTHER_TOKEN));
+        assertEquals(4, mDbAdapter.getEvictedRecordCount(MPDbAdapter.EvictionReason.ROW_QUOTA));
+    }
+
+    @Test
+    public void lowPriorityEventsGoFirstAndCriticalOnesLast() throws Exception {
+        open("priority", "drop_oldest", 6);
+        add(TOKEN, 0, 2, false, MPDbAdapter.PRIORITY_CRITICAL);
+        add(TOKEN, 2, 4, false, MPDbAdapter.PRIORITY_NORMAL);
+        add(TOKEN, 4, 6, false, MPDbAdapter.PRIORITY_LOW);
+
+        // The low priority events are newer, but still the first to go
+        add(TOKEN, 6, 9, false, MPDbAdapter.PRIORITY_NORMAL);
+        assertEquals(list(0, 1, 3, 6, 7, 8), readAll(TOKEN));
+
+        // Critical events are only evicted once nothing else is left
+        add(TOKEN, 9, 15, false, MPDbAdapter.PRIORITY_CRITICAL);
+        assertEquals(range(9, 15), readAll(TOKEN));
+    }
+
+    @Test
+    public void downsamplingThinsLowPriorityEventsFirst() throws Exception {
+        open("priority_downsample", "downsample", 8);
+        add(TOKEN, 0, 4, false, MPDbAdapter.PRIORITY_NORMAL);
+        add(TOKEN, 4, 8, false, MPDbAdapter.PRIORITY_LOW);
+
+        add(TOKEN, 8, 10, false, MPDbAdapter.PRIORITY_NORMAL);
+        assertEquals(list(0, 1, 2, 3, 4, 6, 8, 9), readAll(TOKEN));
+    }
+
+    private void open(String name, String policy, int rowQuota) {
+        final Bundle metaData = new Bundle();
+        metaData.putInt("com.mmp.android.MPConfig.QueueRowQuota", rowQuota);
+        metaData.putString("com.mmp.android.MPConfig.QueueEvictionPolicy", policy);
+        mDbAdapter = new MPDbAdapter(RuntimeEnvironment.getApplication(), name + "_eviction_test", new MPConfig(metaData, RuntimeEnvironment.getApplication()));
+    }
+
+    private void add(String token, int index, boolean isAutomatic, int priority) throws Exception {
+        add(token, index, index + 1, isAutomatic, priority);
+    }
+
+    // Adds the records in one write, so the quota is checked once for all of them
+    private void add(String token, int from, int to, boolean isAutomatic, int priority) throws Exception {
+        final List<MPDbAdapter.PendingRecord> records = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            records.add(new MPDbAdapter.PendingRecord(event(token, i), token, MPDbAdapter.Table.EVENTS, isAutomatic, priority));
+        }
+        mDbAdapter.addJSON(records);
+    }
+
+    private List<Integer> readAll(String token) throws Exception {
+        final List<Integer> read = new ArrayList<>();
+        final String[] batch = mDbAdapter.generateDataString(MPDbAdapter.Table.EVENTS, token, true, null, 1000, Integer.MAX_VALUE, MPDbAdapter.PRIORITY_LOW);
+        if (batch != null) {
+            final JSONArray events = new JSONArray(batch[1]);
+            for (int i = 0; i < events.length(); i++) {
+                read.add(events.getJSONObject(i).getJSONObject("properties").getInt("index"));
+            }
+        }
+        return read;
+    }
+
+    private static JSONObject event(String token, int index) throws Exception {
+        return new JSONObject()
+                .put("event", "Viewed Screen")
+                .put("properties", new JSONObject().put("token", token).put("index", index).put("time", 1500000000L + index));
+    }
+
+    private static List<Integer> range(int from, int to) {
+        final List<Integer> ret = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            ret.add(i);
+        }
+        return ret;
+    }
+
+    private static List<Integer> list(int... values) {
+        final List<Integer> ret = new ArrayList<>();
+        for (final int value : values) {
+            ret.add(value);
+        }
+        return ret;
+    }
+
+    private MPDbAdapter mDbAdapter;
+
+    private static final String TOKEN = "eviction-token";
+    private static final String OTHER_TOKEN = "other-token";
+}
@@ -0,0 +1,191 @@
+package com.mmp.android.mpmetrics;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.Bundle;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.R)
+public class MPDbAdapterMigrationTest {
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.getApplication();
+    }
+
+    @After
+    public void tearDown() {
+        for (MPDbAdapter adapter : mAdapters) {
+            adapter.deleteDB();
+        }
+    }
+
+    @Test
+    public void textRowsFromVersion9ReadAlongsideCompactRows() throws Exception {
+        createVersion9Database("migration_test", 0, 20);
+
+        final MPDbAdapter adapter = open("migration_test", true);
+        addEvents(adapter, 20, 40, MPDbAdapter.PRIORITY_NORMAL);
+        addEvents(adapter, 40, 42, MPDbAdapter.PRIORITY_CRITICAL);
+
+        // The old rows are still text, the new ones are blobs
+        final SQLiteDatabase db = SQLiteDatabase.openDatabase(adapter.getDatabaseFile().getPath(), null, SQLiteDatabase.OPEN_READONLY);
+        assertEquals(12, db.getVersion());
+        assertEquals(20, count(db, "typeof(" + MPDbAdapter.KEY_DATA + ") = 'text'"));
+        assertEquals(22, count(db, "typeof(" + MPDbAdapter.KEY_DATA + ") = 'blob'"));
+        assertEquals(20, count(db, MPDbAdapter.KEY_PRIORITY + " = " + MPDbAdapter.PRIORITY_NORMAL + " AND typeof(" + MPDbAdapter.KEY_DATA + ") = 'text'"));
+        db.close();
+
+        // Migrated rows are normal priority, so only the new critical rows are in the critical lane
+        assertEquals(2, adapter.getQueueDepth(MPDbAdapter.Table.EVENTS, TOKEN, false, MPDbAdapter.PRIORITY_CRITICAL, 100));
+        assertEquals(range(40, 42), readAll(adapter, 7, MPDbAdapter.PRIORITY_CRITICAL));
+
+        // Batches that span both encodings come out in insertion order, and as valid JSON
+        assertEquals(range(0, 42), readAll(adapter, 7, MPDbAdapter.PRIORITY_NORMAL));
+    }
+
+    @Test
+    public void textRowsFromVersion9StillReadWithCompactStorageOff() throws Exception {
+        createVersion9Database("migration_text_test", 0, 10);
+
+        final MPDbAdapter adapter = open("migration_text_test", false);
+        addEvents(adapter, 10, 15, MPDbAdapter.PRIORITY_NORMAL);
+
+        assertEquals(15, adapter.getQueueDepth(MPDbAdapter.Table.EVENTS, TOKEN, false));
+        assertEquals(range(0, 15), readAll(adapter, 4, MPDbAdapter.PRIORITY_NORMAL));
+    }
+
+    // Not a pass/fail check beyond the compact file being smaller: reports the database size and
+    // insert and read times for the same events stored as text and as compact records.
+    @Test
+    public void benchmarkTextAgainstCompactStorage() throws Exception {
+        final int rows = 10000;
+        final long[] text = measure(open("size_text_test", false), rows);
+        final long[] compact = measure(open("size_compact_test", true), rows);
+
+        assertTrue(compact[0] < text[0]);
+        System.out.println(rows + " events: text database " + text[0] / 1024 + " KB, insert " + text[1] + " ms, read " + text[2] + " ms; " +
+                "compact database " + compact[0] / 1024 + " KB, insert " + compact[1] + " ms, read " + compact[2] + " ms");
+    }
+
+    // Returns {file size in bytes, insert millis, read millis}
+    private long[] measure(MPDbAdapter adapter, int rows) throws Exception {
+        final long insertStart = System.nanoTime();
+        for (int i = 0; i < rows; i += 500) {
+            addEvents(adapter, i, i + 500, MPDbAdapter.PRIORITY_NORMAL);
+        }
+        final long insertMillis = (System.nanoTime() - insertStart) / 1000000;
+
+        final long readStart = System.nanoTime();
+        assertEquals(rows, readAll(adapter, 50, MPDbAdapter.PRIORITY_NORMAL).size());
+        final long readMillis = (System.nanoTime() - readStart) / 1000000;
+
+        adapter.close();
+        return new long[] { adapter.getDatabaseFile().length(), insertMillis, readMillis };
+    }
+
+    // The version 9 schema: no priority column or critical lane index, records stored as JSON text.
+    private void createVersion9Database(String name, int from, int to) throws Exception {
+        final SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(mContext.getDatabasePath(name), null);
+        for (String table : new String[] { "events", "people", "groups", "anonymous_people" }) {
+            db.execSQL("CREATE TABLE " + table + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, data STRING NOT NULL, " +
+                    "created_at INTEGER NOT NULL, automatic_data INTEGER DEFAULT 0, token STRING NOT NULL DEFAULT '')");
+            db.execSQL("CREATE INDEX IF NOT EXISTS time_idx ON " + table + " (created_at)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + table + "_queue_idx ON " + table + " (token, automatic_data, _id)");
+        }
+        db.execSQL("CREATE TABLE event_property_overlays (_id INTEGER PRIMARY KEY AUTOINCREMENT, data STRING NOT NULL, " +
+                "created_at INTEGER NOT NULL, max_event_id INTEGER NOT NULL, token STRING NOT NULL DEFAULT '')");
+        for (int i = from; i < to; i++) {
+            final ContentValues values = new ContentValues();
+            values.put("data", event(i).toString());
+            values.put("created_at", System.currentTimeMillis());
+            values.put("automatic_data", false);
+            values.put("token", TOKEN);
+            db.insert("events", null, values);
+        }
+        db.setVersion(9);
+        db.close();
+    }
+
+    private MPDbAdapter open(String name, boolean compactRecordStorage) {
+        final Bundle metaData = new Bundle();
+        metaData.putBoolean("com.mmp.android.MPConfig.CompactRecordStorage", compactRecordStorage);
+        final MPDbAdapter adapter = new MPDbAdapter(mContext, name, new MPConfig(metaData, mContext));
+        mAdapters.add(adapter);
+        return adapter;
+    }
+
+    private static void addEvents(MPDbAdapter adapter, int from, int to, int priority) throws Exception {
+        final List<MPDbAdapter.PendingRecord> records = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            records.add(new MPDbAdapter.PendingRecord(event(i), TOKEN, MPDbAdapter.Table.EVENTS, false, priority));
+        }
+        adapter.addJSON(records);
+    }
+
+    private static List<Integer> readAll(MPDbAdapter adapter, int pageSize, int minPriority) throws Exception {
+        final List<Integer> read = new ArrayList<>();
+        String afterId = null;
+        String[] batch;
+        while ((batch = adapter.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, false, afterId, pageSize, Integer.MAX_VALUE, minPriority)) != null) {
+            final JSONArray events = new JSONArray(batch[1]);
+            for (int i = 0; i < events.length(); i++) {
+                read.add(events.getJSONObject(i).getJSONObject("properties").getInt("index"));
+            }
+            afterId = batch[0];
+        }
+        return read;
+    }
+
+    private static int count(SQLiteDatabase db, String where) {
+        return (int) android.database.DatabaseUtils.queryNumEntries(db, "events", where);
+    }
+
+    private static JSONObject event(int index) throws Exception {
+        return new JSONObject()
+                .put("event", "Viewed Screen")
+                .put("properties", new JSONObject()
+                        .put("token", TOKEN)
+                        .put("index", index)
+                        .put("time", 1500000000L + index)
+                        .put("distinct_id", "3f9c1a52-77e4-4c1e-9c1c-9d2b1e0f6a11")
+                        .put("$os", "Android")
+                        .put("$os_version", "12")
+                        .put("$manufacturer", "Google")
+                        .put("$model", "Pixel 6")
+                        .put("$screen_dpi", 420)
+                        .put("$wifi", true)
+                        .put("Screen", "Checkout"))
+                .put("$mp_metadata", new JSONObject().put("$mp_event_id", Long.toHexString(0x1234567890abcdefL + index)));
+    }
+
+    private static List<Integer> range(int from, int to) {
+        final List<Integer> ret = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            ret.add(i);
+        }
+        return ret;
+    }
+
+    private Context mContext;
+    private final List<MPDbAdapter> mAdapters = new ArrayList<>();
+
+    private static final String TOKEN = "migration-token";
+}
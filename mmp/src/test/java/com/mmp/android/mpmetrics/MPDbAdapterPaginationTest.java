@@ -0,0 +1,314 @@
+package com.mmp.android.mpmetrics;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.R)
+public class MPDbAdapterPaginationTest {
+
+    @Before
+    public void setUp() {
+        mDbAdapter = new MPDbAdapter(RuntimeEnvironment.getApplication(), "pagination_test");
+    }
+
+    @After
+    public void tearDown() {
+        mDbAdapter.deleteDB();
+    }
+
+    @Test
+    public void pagesCoverTheQueueOnce() throws Exception {
+        addEvents(TOKEN, 0, 250, false);
+
+        final List<Integer> read = new ArrayList<>();
+        String afterId = null;
+        int batches = 0;
+        String[] batch;
+        while ((batch = readBatch(TOKEN, false, afterId, 100)) != null) {
+            final int size = addIndexes(batch, read);
+            assertTrue("Batch of " + size, size > 0 && size <= 100);
+            assertEquals("250", batch[2]);
+            afterId = batch[0];
+            batches++;
+        }
+
+        assertEquals(3, batches);
+        assertEquals(range(0, 250), read);
+        assertNull(readBatch(TOKEN, false, afterId, 100));
+    }
+
+    @Test
+    public void startsJustAfterTheGivenId() throws Exception {
+        addEvents(TOKEN, 0, 10, false);
+        final String[] first = readBatch(TOKEN, false, null, 3);
+        final List<Integer> read = new ArrayList<>();
+        addIndexes(first, read);
+        assertEquals(range(0, 3), read);
+
+        read.clear();
+        addIndexes(readBatch(TOKEN, false, first[0], 3), read);
+        assertEquals(range(3, 6), read);
+
+        // An id past the end, or one that was never handed out, reads nothing
+        assertNull(readBatch(TOKEN, false, String.valueOf(Long.parseLong(first[0]) + 1000), 3));
+    }
+
+    @Test
+    public void recordsQueuedWhilePagingComeLast() throws Exception {
+        addEvents(TOKEN, 0, 5, false);
+        final String[] first = readBatch(TOKEN, false, null, 5);
+
+        // The upload deletes the batch while newer records arrive, the next read starts after both
+        mDbAdapter.cleanupEvents(first[0], MPDbAdapter.Table.EVENTS, TOKEN, false);
+        addEvents(TOKEN, 5, 8, false);
+
+        final List<Integer> read = new ArrayList<>();
+        addIndexes(readBatch(TOKEN, false, first[0], 100), read);
+        assertEquals(range(5, 8), read);
+
+        // Starting over from the oldest row gives the same records, as nothing older is left
+        read.clear();
+        addIndexes(readBatch(TOKEN, false, null, 100), read);
+        assertEquals(range(5, 8), read);
+    }
+
+    @Test
+    public void gapsFromDeletedRowsAreSkipped() throws Exception {
+        addEvents(TOKEN, 0, 10, false);
+        final String[] firstTwo = readBatch(TOKEN, false, null, 2);
+        final String[] firstSix = readBatch(TOKEN, false, null, 6);
+        mDbAdapter.cleanupEvents(firstSix[0], MPDbAdapter.Table.EVENTS, TOKEN, false);
+
+        // The id of the first batch no longer exists, the page still starts at the next live row
+        final List<Integer> read = new ArrayList<>();
+        addIndexes(readBatch(TOKEN, false, firstTwo[0], 100), read);
+        assertEquals(range(6, 10), read);
+    }
+
+    @Test
+    public void otherProjectsAndAutomaticRecordsStayOut() throws Exception {
+        for (int i = 0; i < 30; i++) {
+            addEvents(TOKEN, i, i + 1, i % 3 == 0);
+            addEvents(OTHER_TOKEN, 1000 + i, 1000 + i + 1, false);
+        }
+
+        final List<Integer> read = new ArrayList<>();
+        String afterId = null;
+        String[] batch;
+        while ((batch = readBatch(TOKEN, false, afterId, 4)) != null) {
+            addIndexes(batch, read);
+            afterId = batch[0];
+        }
+        final List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            if (i % 3 != 0) {
+                expected.add(i);
+            }
+        }
+        assertEquals(expected, read);
+
+        read.clear();
+        afterId = null;
+        while ((batch = readBatch(TOKEN, true, afterId, 7)) != null) {
+            addIndexes(batch, read);
+            afterId = batch[0];
+        }
+        assertEquals(range(0, 30), read);
+    }
+
+    @Test
+    public void byteLimitSplitsPagesButAlwaysTakesOneRecord() throws Exception {
+        addEvents(TOKEN, 0, 20, false);
+        final int recordLength = readBatch(TOKEN, false, null, 1)[1].length() - 2;
+
+        final List<Integer> read = new ArrayList<>();
+        String afterId = null;
+        String[] batch;
+        while ((batch = mDbAdapter.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, false, afterId, 100, recordLength * 3 + 4)) != null) {
+            final int size = addIndexes(batch, read);
+            assertTrue("Batch of " + size, size >= 1 && size <= 3);
+            afterId = batch[0];
+        }
+        assertEquals(range(0, 20), read);
+
+        // A record larger than the limit still goes out, on its own
+        final String[] single = mDbAdapter.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, false, null, 100, 1);
+        assertEquals(1, new JSONArray(single[1]).length());
+    }
+
+    @Test
+    public void uploadAttemptRereadsTheSameRows() throws Exception {
+        addEvents(TOKEN, 0, 10, false);
+        final String[] sent = readBatch(TOKEN, false, null, 6);
+        final MPDbAdapter.UploadAttempt attempt = new MPDbAdapter.UploadAttempt(MPDbAdapter.Table.EVENTS, TOKEN, Long.parseLong(sent[3]),
+                Long.parseLong(sent[0]), false, MPDbAdapter.PRIORITY_NORMAL, "0123abcd", 1);
+        assertTrue(mDbAdapter.putUploadAttempt(attempt));
+
+        // Reopening the database still finds it, and the next attempt replaces it
+        mDbAdapter.close();
+        mDbAdapter = new MPDbAdapter(RuntimeEnvironment.getApplication(), "pagination_test");
+        final MPDbAdapter.UploadAttempt stored = mDbAdapter.getUploadAttempt(MPDbAdapter.Table.EVENTS, TOKEN);
+        assertEquals("0123abcd", stored.getBatchId());
+        assertEquals(1, stored.getAttempt());
+        assertTrue(mDbAdapter.putUploadAttempt(stored.next()));
+        assertEquals(2, mDbAdapter.getUploadAttempt(MPDbAdapter.Table.EVENTS, TOKEN).getAttempt());
+        assertNull(mDbAdapter.getUploadAttempt(MPDbAdapter.Table.PEOPLE, TOKEN));
+
+        // The range reads back exactly, however many records a batch would hold now
+        final String[] resent = mDbAdapter.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, false, String.valueOf(stored.getFirstId() - 1), 2,
+                Integer.MAX_VALUE, MPDbAdapter.PRIORITY_NORMAL, String.valueOf(stored.getLastId()));
+        final List<Integer> read = new ArrayList<>();
+        addIndexes(resent, read);
+        assertEquals(range(0, 2), read);
+        final String[] whole = mDbAdapter.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, false, String.valueOf(stored.getFirstId() - 1), Integer.MAX_VALUE,
+                Integer.MAX_VALUE, MPDbAdapter.PRIORITY_NORMAL, String.valueOf(stored.getLastId()));
+        read.clear();
+        addIndexes(whole, read);
+        assertEquals(range(0, 6), read);
+        assertEquals(sent[0], whole[0]);
+
+        mDbAdapter.clearUploadAttempt(MPDbAdapter.Table.EVENTS, TOKEN);
+        assertNull(mDbAdapter.getUploadAttempt(MPDbAdapter.Table.EVENTS, TOKEN));
+    }
+
+    @Test
+    public void errorsOtherThanCorruptionKeepTheQueue() throws Exception {
+        addEvents(TOKEN, 0, 5, false);
+
+        final String[] batch = readBatch(TOKEN, false, null, 100);
+
+        // A trigger makes every delete fail the way a constraint would
+        mDbAdapter.close();
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(mDbAdapter.getDatabaseFile().getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+        db.execSQL("CREATE TRIGGER fail_deletes BEFORE DELETE ON " + MPDbAdapter.Table.EVENTS.getName() + " BEGIN SELECT RAISE(ABORT, 'failed'); END");
+        db.close();
+        mDbAdapter.cleanupEvents(batch[0], MPDbAdapter.Table.EVENTS, TOKEN, false);
+        mDbAdapter.cleanupAllEvents(MPDbAdapter.Table.EVENTS, TOKEN);
+        mDbAdapter.cleanupEvents("not an id", MPDbAdapter.Table.EVENTS, TOKEN, false);
+
+        final List<Integer> read = new ArrayList<>();
+        addIndexes(readBatch(TOKEN, false, null, 100), read);
+        assertEquals(range(0, 5), read);
+        assertEquals(5, mDbAdapter.getQueueDepth(MPDbAdapter.Table.EVENTS, TOKEN, false));
+
+        // Once the error passes, the batch is deleted as usual
+        mDbAdapter.close();
+        db = SQLiteDatabase.openDatabase(mDbAdapter.getDatabaseFile().getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+        db.execSQL("DROP TRIGGER fail_deletes");
+        db.close();
+        mDbAdapter.cleanupEvents(batch[0], MPDbAdapter.Table.EVENTS, TOKEN, false);
+        assertNull(readBatch(TOKEN, false, null, 100));
+        assertEquals(0, mDbAdapter.getQueueDepth(MPDbAdapter.Table.EVENTS, TOKEN, false));
+    }
+
+    // Reports how long paging through a large backlog takes, and checks that a page near the end
+    // of the table costs about the same as one at the start. Inserting the rows takes a while, so
+    // it's only run by hand.
+    @Ignore("Benchmark, inserts 100000 rows")
+    @Test
+    public void benchmarkPagingThroughALargeQueue() throws Exception {
+        final int rows = 100000;
+        final List<MPDbAdapter.PendingRecord> records = new ArrayList<>(1000);
+        final long insertStart = System.nanoTime();
+        for (int i = 0; i < rows; i++) {
+            records.add(new MPDbAdapter.PendingRecord(event(i), TOKEN, MPDbAdapter.Table.EVENTS, false));
+            if (records.size() == 1000) {
+                mDbAdapter.addJSON(records);
+                records.clear();
+            }
+        }
+        final long insertMillis = (System.nanoTime() - insertStart) / 1000000;
+
+        int read = 0;
+        final long[] pageNanos = new long[rows / 50];
+        int pages = 0;
+        String afterId = null;
+        final long readStart = System.nanoTime();
+        while (true) {
+            final long pageStart = System.nanoTime();
+            final String[] batch = readBatch(TOKEN, false, afterId, 50);
+            if (batch == null) {
+                break;
+            }
+            pageNanos[pages++] = System.nanoTime() - pageStart;
+            read += new JSONArray(batch[1]).length();
+            afterId = batch[0];
+        }
+        final long readMillis = (System.nanoTime() - readStart) / 1000000;
+
+        assertEquals(rows, read);
+        assertEquals(pageNanos.length, pages);
+        // Medians of the first and last pages, so a single page slowed down by GC doesn't count
+        final long startMedian = median(Arrays.copyOfRange(pageNanos, 0, BENCHMARK_SAMPLE_PAGES));
+        final long endMedian = median(Arrays.copyOfRange(pageNanos, pages - BENCHMARK_SAMPLE_PAGES, pages));
+        System.out.println("Inserted " + rows + " rows in " + insertMillis + " ms, read them in " + pages + " pages in " + readMillis +
+                " ms (median page " + startMedian / 1000 + " us at the start of the table, " + endMedian / 1000 + " us at the end)");
+        // Reading after an id seeks straight to it, rather than skipping the rows before it
+        assertTrue("Pages at the end take " + endMedian / 1000 + " us, at the start " + startMedian / 1000 + " us",
+                endMedian <= startMedian * 2 + 1000000);
+    }
+
+    private static long median(long[] values) {
+        Arrays.sort(values);
+        return values[values.length / 2];
+    }
+
+    private void addEvents(String token, int from, int to, boolean isAutomatic) throws Exception {
+        final List<MPDbAdapter.PendingRecord> records = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            records.add(new MPDbAdapter.PendingRecord(event(i), token, MPDbAdapter.Table.EVENTS, isAutomatic));
+        }
+        mDbAdapter.addJSON(records);
+    }
+
+    private String[] readBatch(String token, boolean includeAutomatic, String afterId, int maxRecords) {
+        return mDbAdapter.generateDataString(MPDbAdapter.Table.EVENTS, token, includeAutomatic, afterId, maxRecords, Integer.MAX_VALUE);
+    }
+
+    // Adds the index of every event in the batch, and returns how many there were.
+    private static int addIndexes(String[] batch, List<Integer> indexes) throws Exception {
+        final JSONArray events = new JSONArray(batch[1]);
+        for (int i = 0; i < events.length(); i++) {
+            indexes.add(events.getJSONObject(i).getJSONObject("properties").getInt("index"));
+        }
+        return events.length();
+    }
+
+    private static JSONObject event(int index) throws Exception {
+        return new JSONObject()
+                .put("event", "Viewed Screen")
+                .put("properties", new JSONObject().put("token", TOKEN).put("index", index).put("time", 1500000000L + index));
+    }
+
+    private static List<Integer> range(int from, int to) {
+        final List<Integer> ret = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            ret.add(i);
+        }
+        return ret;
+    }
+
+    private MPDbAdapter mDbAdapter;
+
+    private static final int BENCHMARK_SAMPLE_PAGES = 100;
+    private static final String TOKEN = "pagination-token";
+    private static final String OTHER_TOKEN = "other-token";
+}
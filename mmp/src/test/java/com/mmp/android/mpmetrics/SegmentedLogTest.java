@@ -0,0 +1,249 @@
+package com.mmp.android.mpmetrics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+// Each test writes a log, damages its files the way a crash or a bad sector would, and reopens it.
+public class SegmentedLogTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = new File(mFolder.getRoot(), "events");
+        mLog = new SegmentedLog(mDirectory, SEGMENT_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        mLog.close();
+    }
+
+    @Test
+    public void reopeningKeepsEveryRecord() throws IOException {
+        append(1, 5);
+        append(OTHER_TOKEN, 10);
+        mLog.acknowledge(TOKEN, false, 2);
+
+        reopen();
+
+        assertEquals(ids(3, 4, 5), readIds(TOKEN));
+        assertEquals(ids(6), readIds(OTHER_TOKEN));
+        assertEquals("record 4", new String(mLog.read(TOKEN, false, 3, 1).get(0).getData(), "UTF-8"));
+        assertEquals(7, mLog.append(TOKEN, false, 0, data(7)));
+    }
+
+    @Test
+    public void entryTornByATruncatedFileIsDropped() throws IOException {
+        append(1, 3);
+        mLog.close();
+
+        // The third entry was cut off part way through its body. Reopening maps the file at full
+        // size again, so the missing bytes read as zeros and the checksum fails.
+        truncate(segment(1), entryOffset(3) + 8 + 5);
+        reopen();
+
+        assertEquals(ids(1, 2), readIds(TOKEN));
+
+        // What's left of the torn entry is cleared, so the entry written in its place reads back
+        // cleanly and is not followed by stale bytes.
+        final long id = mLog.append(TOKEN, false, 0, "short".getBytes("UTF-8"));
+        reopen();
+        assertEquals(ids(1, 2, id), readIds(TOKEN));
+        assertEquals("short", new String(mLog.read(TOKEN, false, 2, 1).get(0).getData(), "UTF-8"));
+    }
+
+    @Test
+    public void badChecksumStopsTheSegmentAtThatEntry() throws IOException {
+        append(1, 4);
+        mLog.close();
+
+        flipByte(segment(1), entryOffset(2) + ENTRY_HEADER_SIZE + BODY_HEADER_SIZE + 3);
+        reopen();
+
+        // Entries after a damaged one can't be trusted to start where its length says, so the
+        // rest of the segment is dropped.
+        assertEquals(ids(1), readIds(TOKEN));
+        mLog.append(TOKEN, false, 0, data(5));
+        reopen();
+        assertEquals(1, readIds(TOKEN).get(0).longValue());
+        assertEquals(2, readIds(TOKEN).size());
+    }
+
+    @Test
+    public void damageInAnEarlierSegmentKeepsTheLaterOnes() throws IOException {
+        final int perSegment = SEGMENT_SIZE / entrySize();
+        append(1, perSegment * 2 + 3);
+        assertTrue(segment(3).exists());
+        mLog.close();
+
+        // The last record of the first segment and everything after it in that segment is lost
+        flipByte(segment(1), entryOffset(perSegment) + ENTRY_HEADER_SIZE + BODY_HEADER_SIZE);
+        reopen();
+
+        final List<Long> ids = readIds(TOKEN);
+        assertEquals(perSegment * 2 + 2, ids.size());
+        assertFalse(ids.contains((long) perSegment));
+        assertEquals(perSegment * 2 + 3, ids.get(ids.size() - 1).longValue());
+
+        // Appends go to the end of the last segment, never into the gap in the first
+        final long id = mLog.append(TOKEN, false, 0, data(0));
+        assertEquals(perSegment * 2 + 4, id);
+        assertFalse(segment(4).exists());
+    }
+
+    @Test
+    public void zeroFilledTailReadsAsTheEndOfTheLog() throws IOException {
+        append(1, 3);
+        mLog.close();
+
+        // The last entry's body and checksum reached the disk but its length, written last, didn't
+        zero(segment(1), entryOffset(3), 4);
+        reopen();
+        assertEquals(ids(1, 2), readIds(TOKEN));
+
+        // A shorter entry written over it leaves part of the old body behind it, which the next
+        // reopen must not mistake for an entry.
+        final long id = mLog.append(TOKEN, false, 0, "short".getBytes("UTF-8"));
+        reopen();
+        assertEquals(ids(1, 2, id), readIds(TOKEN));
+
+        // A tail that never made it to disk at all is just the end of the log
+        mLog.close();
+        zero(segment(1), entryOffset(2), SEGMENT_SIZE - entryOffset(2));
+        reopen();
+        assertEquals(ids(1), readIds(TOKEN));
+    }
+
+    @Test
+    public void lostAcknowledgementBringsTheRecordsBack() throws IOException {
+        append(1, 5);
+        assertEquals(3, mLog.acknowledge(TOKEN, false, 3));
+        assertEquals(ids(4, 5), readIds(TOKEN));
+        mLog.close();
+
+        // The acknowledgement is the last entry, and was torn by the crash
+        flipByte(segment(1), entryOffset(6) + ENTRY_HEADER_SIZE + 1);
+        reopen();
+
+        // The queue is at least once: the acknowledged records are sent again, with their ids
+        assertEquals(ids(1, 2, 3, 4, 5), readIds(TOKEN));
+        assertEquals(6, mLog.append(TOKEN, false, 0, data(6)));
+        assertEquals(5, mLog.acknowledge(TOKEN, false, 5));
+
+        reopen();
+        assertEquals(ids(6), readIds(TOKEN));
+    }
+
+    @Test
+    public void acknowledgedSegmentsStayDeletedAfterACrash() throws IOException {
+        final int perSegment = SEGMENT_SIZE / entrySize();
+        append(1, perSegment + 2);
+        mLog.acknowledge(TOKEN, false, perSegment);
+        assertFalse(segment(1).exists());
+        mLog.close();
+
+        // Whatever happened to the acknowledgement, the records it covered are gone with their segment
+        zero(segment(2), 0, SEGMENT_SIZE);
+        reopen();
+        assertEquals(new ArrayList<Long>(), readIds(TOKEN));
+        assertTrue(mLog.append(TOKEN, false, 0, data(0)) > 0);
+    }
+
+    private void append(int from, int to) throws IOException {
+        for (int i = from; i <= to; i++) {
+            assertEquals(i, mLog.append(TOKEN, false, 1500000000000L + i, data(i)));
+        }
+        mLog.sync();
+    }
+
+    private void append(String token, int i) throws IOException {
+        mLog.append(token, false, 1500000000000L + i, data(i));
+        mLog.sync();
+    }
+
+    private void reopen() throws IOException {
+        mLog.close();
+        mLog = new SegmentedLog(mDirectory, SEGMENT_SIZE);
+    }
+
+    private List<Long> readIds(String token) {
+        final List<Long> ret = new ArrayList<>();
+        for (final SegmentedLog.Record record : mLog.read(token, true, 0, Integer.MAX_VALUE)) {
+            ret.add(record.getId());
+        }
+        return ret;
+    }
+
+    private File segment(int sequence) {
+        return new File(mDirectory, sequence + ".seg");
+    }
+
+    // Records are all the same size, so the nth entry of a segment starts at a known offset
+    private static int entryOffset(int entry) {
+        return (entry - 1) * entrySize();
+    }
+
+    private static int entrySize() {
+        return ENTRY_HEADER_SIZE + BODY_HEADER_SIZE + TOKEN.length() + data(1).length;
+    }
+
+    private static byte[] data(int i) {
+        try {
+            return String.format("record %d", i % 10).getBytes("UTF-8");
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static List<Long> ids(long... ids) {
+        final List<Long> ret = new ArrayList<>();
+        for (final long id : ids) {
+            ret.add(id);
+        }
+        return ret;
+    }
+
+    private static void truncate(File file, int length) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(length);
+        raf.close();
+    }
+
+    private static void flipByte(File file, int offset) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(offset);
+        final int value = raf.read();
+        raf.seek(offset);
+        raf.write(value ^ 0xFF);
+        raf.close();
+    }
+
+    private static void zero(File file, int offset, int length) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(offset);
+        raf.write(new byte[length]);
+        raf.close();
+    }
+
+    private File mDirectory;
+    private SegmentedLog mLog;
+
+    private static final String TOKEN = "t";
+    private static final String OTHER_TOKEN = "o";
+    private static final int SEGMENT_SIZE = 1024;
+    private static final int ENTRY_HEADER_SIZE = 8; // length, crc
+    private static final int BODY_HEADER_SIZE = 20; // type, id, created at, automatic, token length
+}
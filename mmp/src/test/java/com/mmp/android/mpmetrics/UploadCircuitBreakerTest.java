@@ -0,0 +1,51 @@
+package com.mmp.android.mpmetrics;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class UploadCircuitBreakerTest {
+
+    @Test
+    public void jitteredDelayIsCapped() {
+        final UploadCircuitBreaker breaker = new UploadCircuitBreaker(new Random(42));
+        long now = 0;
+        for (int i = 0; i < 50; i++) {
+            final long delay = breaker.onFailure(now, -1);
+            assertTrue("Delay " + delay, delay >= UploadCircuitBreaker.BASE_DELAY);
+            assertTrue("Delay " + delay, delay <= UploadCircuitBreaker.MAX_DELAY);
+            now += delay;
+        }
+    }
+
+    @Test
+    public void retryAfterIsHonoredAsGiven() {
+        final UploadCircuitBreaker breaker = new UploadCircuitBreaker(new Random(42));
+        final long hour = 60 * 60 * 1000;
+        assertEquals(hour, breaker.onFailure(0, hour));
+        assertTrue(breaker.isOpen(hour - 1));
+        assertFalse(breaker.allowRequest(hour - 1));
+        assertTrue(breaker.allowRequest(hour));
+
+        // A long Retry-After doesn't push the following jittered delays past the cap
+        assertTrue(breaker.onFailure(hour, -1) <= UploadCircuitBreaker.MAX_DELAY);
+    }
+
+    @Test
+    public void isOpenDoesNotChangeState() {
+        final UploadCircuitBreaker breaker = new UploadCircuitBreaker(new Random(42));
+        assertFalse(breaker.isOpen(0));
+        final long delay = breaker.onFailure(0, -1);
+        assertTrue(breaker.isOpen(delay - 1));
+        assertFalse(breaker.isOpen(delay));
+        assertEquals(UploadCircuitBreaker.State.OPEN, breaker.getState());
+
+        assertTrue(breaker.allowRequest(delay));
+        assertEquals(UploadCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.isOpen(delay));
+        breaker.onSuccess();
+        assertEquals(UploadCircuitBreaker.State.CLOSED, breaker.getState());
+    }
+}
@@ -0,0 +1,125 @@
+package com.mmp.android.util;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+public class HttpServiceTest {
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/track", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                mMethod = exchange.getRequestMethod();
+                mContentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+                mBody = readAll(exchange.getRequestBody());
+                mRequests.incrementAndGet();
+                mClientPorts.add(exchange.getRemoteAddress().getPort());
+                final byte[] response = "1\n".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, response.length);
+                final OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        mServer.start();
+        mEndpoint = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/track";
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    @Test
+    public void gzipBodyIsTheBatch() throws Exception {
+        final StringBuilder batch = new StringBuilder("[");
+        for (int i = 0; i < 2000; i++) {
+            if (i > 0) {
+                batch.append(',');
+            }
+            batch.append("{\"event\":\"Viewed café ").append(i).append("\",\"properties\":{\"token\":\"abc\",\"time\":").append(1500000000 + i).append("}}");
+        }
+        batch.append(']');
+        final BatchPayload payload = new BatchPayload(batch.toString());
+        final Map<String, Object> params = new HashMap<String, Object>();
+        params.put("data", payload);
+
+        final byte[] response = new HttpService(true).performRequest(mEndpoint, params, null);
+
+        assertEquals("1\n", new String(response, "UTF-8"));
+        assertEquals("POST", mMethod);
+        assertEquals("gzip", mContentEncoding);
+        assertTrue("Body wasn't compressed", mBody.length < payload.getBytes().length);
+        final byte[] inflated = readAll(new GZIPInputStream(new ByteArrayInputStream(mBody)));
+        assertArrayEquals(payload.getBytes(), inflated);
+        assertEquals(batch.toString(), new String(inflated, "UTF-8"));
+    }
+
+    @Test
+    public void emptyBatchRoundTrips() throws Exception {
+        final BatchPayload payload = new BatchPayload("[]");
+        final Map<String, Object> params = new HashMap<String, Object>();
+        params.put("data", payload);
+
+        new HttpService(true).performRequest(mEndpoint, params, null);
+
+        assertEquals("gzip", mContentEncoding);
+        assertEquals("[]", new String(readAll(new GZIPInputStream(new ByteArrayInputStream(mBody))), "UTF-8"));
+    }
+
+    @Test
+    public void requestsReuseOneConnection() throws Exception {
+        final HttpService service = new HttpService(true);
+        for (int i = 0; i < 5; i++) {
+            final Map<String, Object> params = new HashMap<String, Object>();
+            params.put("data", new BatchPayload("[{\"event\":\"e" + i + "\"}]"));
+            assertEquals("1\n", new String(service.performRequest(mEndpoint, params, null), "UTF-8"));
+        }
+
+        assertEquals(5, mRequests.get());
+        assertEquals("Every request after the first should skip the TCP handshake", 1, mClientPorts.size());
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private HttpServer mServer;
+    private String mEndpoint;
+    private volatile String mMethod;
+    private volatile String mContentEncoding;
+    private volatile byte[] mBody;
+    private final AtomicInteger mRequests = new AtomicInteger();
+    private final Set<Integer> mClientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+}